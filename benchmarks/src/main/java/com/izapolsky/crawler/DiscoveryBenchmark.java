@@ -0,0 +1,65 @@
+package com.izapolsky.crawler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Html extraction of a single document already in memory, DOM against streaming tokenizer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+    @Param({"DOM", "STREAMING"})
+    public Main.HtmlParser parser;
+
+    //roughly 200 bytes of html per image
+    @Param({"10", "10000"})
+    public int imagesPerPage;
+
+    private UrlDiscovererImpl discoverer;
+    private URL document;
+    private byte[] page;
+
+    @Setup
+    public void setUp() throws IOException {
+        discoverer = new UrlDiscovererImpl(null, null, parser == Main.HtmlParser.STREAMING ? new StreamingLinkExtractor() : null);
+        document = new URL("http://127.0.0.1/page/0.html");
+        page = new SyntheticSite(1, imagesPerPage, 1).page(0).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int extract(Blackhole blackhole) throws IOException {
+        return discoverer.extract(document, new ByteArrayInputStream(page), StandardCharsets.UTF_8, new ImageDiscoveredCallback() {
+            @Override
+            public void notifyImageDiscovered(URL document, String imageSrc) {
+                blackhole.consume(imageSrc);
+            }
+
+            @Override
+            public void notifyLinkDiscovered(URL document, String href) {
+                blackhole.consume(href);
+            }
+        });
+    }
+}
@@ -0,0 +1,108 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery, download and thumbnailing of a synthetic site served from loopback interface, into empty output directory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    public static final int IO_THREADS = 10;
+
+    @Param({"DOM", "STREAMING"})
+    public Main.HtmlParser parser;
+
+    @Param({"false", "true"})
+    public boolean thumbnails;
+
+    private SyntheticSite site;
+    private ExecutorService ioBoundService;
+    private PooledHttpClient httpClient;
+    private ThumbnailGenerator generator;
+    private List<URL> pages;
+    private File outputDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        site = new SyntheticSite(10, 20, 640).start();
+        pages = site.pageUrls();
+        ioBoundService = Executors.newFixedThreadPool(IO_THREADS);
+        httpClient = new PooledHttpClient(IO_THREADS * 2, IO_THREADS, 10000, 30000, 60000, TimeUnit.SECONDS.toMillis(30));
+        generator = new ThumbnailGenerator(Arrays.asList(320, 220, 100), Arrays.asList("png", "jpeg"));
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutputDir() throws IOException {
+        //downloads would be skipped as fresh in directory of previous invocation
+        outputDir = Files.createTempDirectory("crawl-benchmark").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutputDir() {
+        FileUtils.deleteQuietly(outputDir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ioBoundService.shutdownNow();
+        IOUtils.closeQuietly(httpClient);
+        site.close();
+    }
+
+    @Benchmark
+    public int crawl() throws Exception {
+        UrlDiscoverer discoverer = new UrlDiscovererImpl(ioBoundService, httpClient.getClient(),
+                parser == Main.HtmlParser.STREAMING ? new StreamingLinkExtractor() : null);
+        HostScheduler scheduler = new HostScheduler(ioBoundService, IO_THREADS, IO_THREADS, 0);
+        UrlFetcherImpl fetcher = new UrlFetcherImpl(scheduler, httpClient.getClient(), outputDir);
+        try {
+            ImageFetchedCallback callback = thumbnails ? (url, file) -> {
+                try {
+                    generator.generate(file);
+                } catch (IOException e) {
+                    throw new RuntimeException(String.format("Failed processing file %1$s for %2$s", file, url), e);
+                }
+            } : null;
+            int downloaded = 0;
+            for (CompletableFuture<ImageResult> result : fetcher.downloadImages(discoverer.discover(pages), callback)) {
+                if ("200".equals(result.get().getStatus())) {
+                    downloaded++;
+                }
+            }
+            return downloaded;
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.izapolsky.crawler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Naming of every downloaded image - url parsing, normalisation and sha-256
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MangleBenchmark {
+
+    private static final int URLS = 1024;
+
+    private String[] sources;
+    private URL[] urls;
+    private int next;
+
+    @Setup
+    public void setUp() throws MalformedURLException {
+        sources = new String[URLS];
+        urls = new URL[URLS];
+        for (int i = 0; i < URLS; i++) {
+            sources[i] = "http://img" + (i % 16) + ".example.com/static/images/2015/07/" + i + "/picture.jpg?width=640&v=" + i;
+            urls[i] = new URL(sources[i]);
+        }
+    }
+
+    @Benchmark
+    public String mangle() {
+        return AbstractUrlFetcher.mangle(urls[next++ & (URLS - 1)]);
+    }
+
+    @Benchmark
+    public String normalise() {
+        return AbstractUrlFetcher.normalise(urls[next++ & (URLS - 1)]);
+    }
+
+    /**
+     * What fetcher does for every discovered image source
+     *
+     * @return
+     * @throws MalformedURLException
+     */
+    @Benchmark
+    public String parseAndMangle() throws MalformedURLException {
+        return AbstractUrlFetcher.mangle(new URL(sources[next++ & (URLS - 1)]));
+    }
+}
@@ -0,0 +1,82 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock, read, update and write cycle of image metadata, as done for every image
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+    private static final int IMAGES = 256;
+
+    @Param({"sidecar", "index"})
+    public String store;
+
+    private File outputDir;
+    private MetadataStore metadata;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        outputDir = Files.createTempDirectory("metadata-benchmark").toFile();
+        metadata = "index".equals(store) ? new MetadataIndex(outputDir) : new SidecarMetadataStore(outputDir);
+        names = new String[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            names[i] = AbstractUrlFetcher.mangle(new URL("http://example.com/" + i + ".jpg"));
+            Properties props = metadata.read(names[i]).second;
+            props.setProperty("image-uri", "http://example.com/" + i + ".jpg");
+            props.setProperty("ETag", "\"" + names[i].substring(0, 16) + "\"");
+            props.setProperty("Last-Modified", "Tue, 21 Jul 2015 10:00:00 GMT");
+            metadata.write(names[i], props);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        metadata.close();
+        FileUtils.deleteQuietly(outputDir);
+    }
+
+    @Benchmark
+    public Properties readWrite() throws IOException {
+        String name = names[next++ % IMAGES];
+        try (Closeable ignored = metadata.tryLock(name)) {
+            Properties props = metadata.read(name).second;
+            props.setProperty("fetched-at", String.valueOf(next));
+            metadata.write(name, props);
+            return props;
+        }
+    }
+
+    @Benchmark
+    public Properties read() {
+        return metadata.read(names[next++ % IMAGES]).second;
+    }
+}
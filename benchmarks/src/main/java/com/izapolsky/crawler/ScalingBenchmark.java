@@ -0,0 +1,113 @@
+package com.izapolsky.crawler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thumbnail stage pieces - scaling and encoding of the result. Scaling allocation rate is what <code>-prof gc</code>
+ * should be looked at for: {@link #scalePooled(Scaler)} is how thumbnail stage scales, {@link #scale()} allocates
+ * destination every time and {@link #scaleAffineTransformOp()} is the java2d op thumbnails used to be made with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScalingBenchmark {
+
+    //rose is decoded jpeg, rgb and argb are generated 1024x768 images, indexed is the rgb one after round trip through gif
+    @Param({"rose", "rgb", "argb", "indexed"})
+    public String source;
+
+    @Param({"320", "100"})
+    public int width;
+
+    private BufferedImage image;
+    private BufferedImage thumbnail;
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (source) {
+            case "rose":
+                image = ImageIO.read(new ByteArrayInputStream(SyntheticSite.rose()));
+                break;
+            case "argb":
+                image = SyntheticSite.image(1024, 768, BufferedImage.TYPE_INT_ARGB);
+                break;
+            case "indexed":
+                image = ImageIO.read(new ByteArrayInputStream(SyntheticSite.encode(SyntheticSite.image(1024, 768, BufferedImage.TYPE_INT_RGB), "gif")));
+                break;
+            default:
+                image = SyntheticSite.image(1024, 768, BufferedImage.TYPE_INT_RGB);
+                break;
+        }
+        thumbnail = Main.getScaledImage(image, width);
+    }
+
+    @Benchmark
+    public BufferedImage scale() throws IOException {
+        return Main.getScaledImage(image, width);
+    }
+
+    @Benchmark
+    public BufferedImage scalePooled(Scaler scaler) {
+        return scaler.scaler.scale(image, width);
+    }
+
+    @Benchmark
+    public BufferedImage scaleAffineTransformOp() {
+        double scale = (double) width / image.getWidth();
+        AffineTransformOp op = new AffineTransformOp(AffineTransform.getScaleInstance(scale, scale), AffineTransformOp.TYPE_BILINEAR);
+        return op.filter(image, new BufferedImage(width, (int) Math.floor(image.getHeight() * scale), image.getType()));
+    }
+
+    @Benchmark
+    public int encodePng() throws IOException {
+        return encode("png");
+    }
+
+    @Benchmark
+    public int encodeJpeg() throws IOException {
+        return encode("jpeg");
+    }
+
+    private int encode(String format) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        //jpeg writer can not encode images with alpha, that is reported by size 0 as in thumbnail stage
+        ImageIO.write(thumbnail, format, buffer);
+        return buffer.size();
+    }
+
+    @State(Scope.Thread)
+    public static class Scaler {
+
+        @Param({"BILINEAR", "PROGRESSIVE", "AREA"})
+        public ImageScaler.Quality quality;
+
+        private ImageScaler scaler;
+
+        @Setup
+        public void setUp() {
+            scaler = new ImageScaler(quality);
+        }
+    }
+}
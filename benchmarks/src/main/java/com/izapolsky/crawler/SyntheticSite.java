@@ -0,0 +1,165 @@
+package com.izapolsky.crawler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generated pages and images for benchmarks, optionally served by http server on loopback interface
+ */
+public class SyntheticSite implements AutoCloseable {
+
+    private final int pages;
+    private final int imagesPerPage;
+    private final byte[] rose;
+    private final byte[] generated;
+    private HttpServer server;
+    private ExecutorService serverThreads;
+
+    /**
+     * @param pages         number of pages, each links to the next one
+     * @param imagesPerPage distinct generated images referenced from every page, rose.jpg is referenced as well
+     * @param imageSize     width and height of generated images
+     */
+    public SyntheticSite(int pages, int imagesPerPage, int imageSize) {
+        this.pages = pages;
+        this.imagesPerPage = imagesPerPage;
+        this.rose = rose();
+        this.generated = encode(image(imageSize, imageSize, BufferedImage.TYPE_INT_RGB), "jpeg");
+    }
+
+    /**
+     * Starts serving pages under /page/, images under /img/ and /rose.jpg
+     *
+     * @return this
+     * @throws IOException
+     */
+    public SyntheticSite start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server.setExecutor(serverThreads);
+        server.createContext("/page/", exchange -> respond(exchange, "text/html; charset=utf-8",
+                page(Integer.parseInt(exchange.getRequestURI().getPath().replaceAll("\\D", ""))).getBytes(StandardCharsets.UTF_8)));
+        //every image url serves same body, so only transfer and storage are measured
+        server.createContext("/img/", exchange -> respond(exchange, "image/jpeg", generated));
+        server.createContext("/rose.jpg", exchange -> respond(exchange, "image/jpeg", rose));
+        server.start();
+        return this;
+    }
+
+    public URL url(String path) {
+        try {
+            return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public List<URL> pageUrls() {
+        List<URL> urls = new ArrayList<>(pages);
+        for (int i = 0; i < pages; i++) {
+            urls.add(url("/page/" + i + ".html"));
+        }
+        return urls;
+    }
+
+    /**
+     * Html of given page, padded with text so it resembles real pages
+     *
+     * @param index
+     * @return
+     */
+    public String page(int index) {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>Page ").append(index).append("</title>")
+                .append("<style>.hero { background-image: url('/img/hero-").append(index).append(".jpg') }</style></head><body>");
+        for (int i = 0; i < imagesPerPage; i++) {
+            html.append("<div class=\"item\"><p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.</p>")
+                    .append("<img alt=\"image ").append(i).append("\" src=\"/img/").append(index).append('-').append(i).append(".jpg\">")
+                    .append("<a href=\"/page/").append(i % Math.max(1, pages)).append(".html\">more</a></div>");
+        }
+        html.append("<img src=\"/rose.jpg\"><a href=\"/page/").append((index + 1) % Math.max(1, pages)).append(".html\">next</a></body></html>");
+        return html.toString();
+    }
+
+    public byte[] getRose() {
+        return rose;
+    }
+
+    public byte[] getGenerated() {
+        return generated;
+    }
+
+    /**
+     * Noisy gradient, so encoders can not take shortcuts on it
+     *
+     * @param width
+     * @param height
+     * @param type
+     * @return
+     */
+    public static BufferedImage image(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                image.setRGB(x, y, ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | (128 + noise));
+            }
+        }
+        return image;
+    }
+
+    public static byte[] encode(BufferedImage image, String format) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ImageIO.write(image, format, buffer);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static byte[] rose() {
+        try (InputStream is = SyntheticSite.class.getResourceAsStream("/rose.jpg")) {
+            return IOUtils.toByteArray(is);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parts of fetching shared by all engines - naming, de-duplication and image metadata handling
+ */
+public abstract class AbstractUrlFetcher implements UrlFetcher {
+
+    protected final File outputDir;
+    //null keeps one file per url
+    protected final ContentStore contentStore;
+    protected final MetadataStore metadata;
+    //null disables retries
+    protected final RetryEngine retries;
+    protected final CachePolicy cachePolicy = new CachePolicy();
+    protected final Metrics metrics;
+    //null accepts every image
+    protected final ImageFilter imageFilter;
+    private final TransferStats transferStats = new TransferStats();
+    //mangled image name -> pages referring to it
+    private final ConcurrentMap<String, Set<URL>> referrers = new ConcurrentHashMap<>();
+
+    protected AbstractUrlFetcher(File outputDir) {
+        this(outputDir, null);
+    }
+
+    protected AbstractUrlFetcher(File outputDir, ContentStore contentStore) {
+        this(outputDir, contentStore, new SidecarMetadataStore(outputDir), null);
+    }
+
+    protected AbstractUrlFetcher(File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries) {
+        this(outputDir, contentStore, metadata, retries, new Metrics());
+    }
+
+    protected AbstractUrlFetcher(File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries, Metrics metrics) {
+        this(outputDir, contentStore, metadata, retries, metrics, null);
+    }
+
+    protected AbstractUrlFetcher(File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries, Metrics metrics, ImageFilter imageFilter) {
+        this.outputDir = outputDir;
+        this.contentStore = contentStore;
+        this.metadata = metadata;
+        this.retries = retries;
+        this.metrics = metrics;
+        this.imageFilter = imageFilter;
+    }
+
+    @Override
+    public List<CompletableFuture<ImageResult>> downloadImages(List<Pair<URL, String>> images, ImageFetchedCallback callback) {
+
+        List<CompletableFuture<ImageResult>> results = new ArrayList<>(images.size());
+
+        for (Pair<URL, String> imageInfo : images) {
+            results.add(downloadImage(imageInfo, callback));
+        }
+
+        return results;
+    }
+
+    @Override
+    public CompletableFuture<ImageResult> downloadImage(Pair<URL, String> imageInfo, ImageFetchedCallback callback) {
+        long started = System.nanoTime();
+        URL imageUrl;
+        String mangledName;
+        try {
+            imageUrl = new URL(imageInfo.second);
+            mangledName = mangle(imageUrl);
+        } catch (Throwable e) {
+            return CompletableFuture.completedFuture(ImageResult.failed(imageInfo, e));
+        }
+
+        Download download = new Download(imageUrl, mangledName, callback);
+        CompletableFuture<String> status;
+        //same image is usually referenced from many pages, only first reference gets downloaded
+        if (!recordReferrer(mangledName, imageInfo.first)) {
+            status = CompletableFuture.completedFuture(SC_SKIPPED_DUPLICATE);
+        } else if (retries == null || isLocal(imageUrl)) {
+            status = submit(download);
+        } else {
+            status = retries.execute(imageUrl.getHost(), () -> submit(download));
+        }
+        status.whenComplete((code, e) -> metrics.status(imageUrl.getHost(), e == null ? code : SC_GENERIC_ERROR));
+        return status.handle((code, e) -> e == null ? download.result(imageInfo, code, started) : ImageResult.failed(imageInfo, e));
+    }
+
+    /**
+     * Starts download of image which was not seen before
+     *
+     * @param download
+     * @return completes with status once download is over
+     */
+    protected abstract CompletableFuture<String> submit(Download download);
+
+    /**
+     * Takes hold of image metadata, recording how long it took
+     *
+     * @param mangledName
+     * @return see {@link MetadataStore#tryLock(String)}
+     * @throws IOException
+     */
+    protected Closeable lockMetadata(String mangledName) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return metadata.tryLock(mangledName);
+        } finally {
+            metrics.recordSince(Metrics.LOCK_WAIT, started);
+        }
+    }
+
+    /**
+     * Remembers page which refers to the image
+     *
+     * @param mangledName
+     * @param referrer
+     * @return true if image was not seen before
+     */
+    protected boolean recordReferrer(String mangledName, URL referrer) {
+        Set<URL> pages = referrers.get(mangledName);
+        boolean firstSeen = false;
+        if (pages == null) {
+            Set<URL> created = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            pages = referrers.putIfAbsent(mangledName, created);
+            if (pages == null) {
+                pages = created;
+                firstSeen = true;
+            }
+        }
+        if (referrer != null) {
+            pages.add(referrer);
+        }
+        return firstSeen;
+    }
+
+    /**
+     * Pages that referred to given image during this run
+     *
+     * @param mangledName
+     * @return
+     */
+    public Set<URL> getReferrers(String mangledName) {
+        Set<URL> pages = referrers.get(mangledName);
+        return pages == null ? Collections.emptySet() : Collections.unmodifiableSet(pages);
+    }
+
+    /**
+     * Creates request for the image, conditional if we know its state from previous runs
+     *
+     * @param props
+     * @param url
+     * @return
+     */
+    protected HttpGet createRequest(Properties props, URL url) {
+        try {
+            HttpGet imageGet = new HttpGet(url.toURI());
+            cachePolicy.addValidators(imageGet, props);
+            return imageGet;
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(String.format("Failed to parse URI %1$s", url), e);
+        }
+    }
+
+    /**
+     * Remembers validators and freshness of full or not modified response, so next run can skip the request or issue
+     * conditional one
+     *
+     * @param response
+     * @param props
+     */
+    protected void recordResponse(HttpResponse response, Properties props) {
+        cachePolicy.record(response, props, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads Retry-After of overloaded or unavailable host and lets retries know about it
+     *
+     * @param imageUrl
+     * @param response
+     * @return delay host asked for, negative if it did not say
+     */
+    protected long retryAfter(URL imageUrl, HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null) {
+            return -1;
+        }
+        long delayMs;
+        try {
+            delayMs = TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().trim()));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(header.getValue());
+            if (date == null) {
+                return -1;
+            }
+            delayMs = Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        if (retries != null) {
+            retries.retryAfter(imageUrl.getHost(), delayMs);
+        }
+        return delayMs;
+    }
+
+    /**
+     * Checks if copy stored by previous run can be used without any request. If the copy is gone, its validators are
+     * dropped, so it is downloaded again rather than revalidated.
+     *
+     * @param props
+     * @param destinationFile
+     * @return
+     */
+    protected boolean isFresh(Properties props, File destinationFile) {
+        String hash = props.getProperty(ContentStore.CONTENT_HASH);
+        File stored = contentStore != null && hash != null ? contentStore.getBlob(hash) : destinationFile;
+        if (!stored.isFile()) {
+            props.remove(HttpHeaders.ETAG);
+            props.remove(HttpHeaders.LAST_MODIFIED);
+            props.remove(CachePolicy.FRESH_UNTIL);
+            return false;
+        }
+        return cachePolicy.isFresh(props, System.currentTimeMillis());
+    }
+
+    /**
+     * Saves downloaded body, either under url based name or in content store. Body is written to temporary file and
+     * renamed into place once complete.
+     *
+     * @param body
+     * @param destinationFile
+     * @param props           gets hash of content when content store is used
+     * @return file holding the body and flag telling if this body was not stored before
+     * @throws IOException
+     */
+    protected Pair<File, Boolean> store(InputStream body, File destinationFile, Properties props) throws IOException {
+        if (contentStore == null) {
+            File partFile = partFile(destinationFile);
+            try {
+                FileTransfers.copy(body, partFile);
+                FileTransfers.commit(partFile, destinationFile);
+            } finally {
+                partFile.delete();
+            }
+            return new Pair<>(destinationFile, true);
+        }
+        return linkContent(contentStore.store(body), props);
+    }
+
+    /**
+     * Same as {@link #store(InputStream, File, Properties)} for body which was already written to a temporary file
+     *
+     * @param partFile        left for caller to delete
+     * @param expectedLength  announced length of the body, {@link FileTransfers#UNKNOWN_LENGTH} if not known
+     * @param destinationFile
+     * @param props
+     * @return
+     * @throws IOException
+     */
+    protected Pair<File, Boolean> store(File partFile, long expectedLength, File destinationFile, Properties props) throws IOException {
+        FileTransfers.checkLength(expectedLength, partFile.length());
+        if (contentStore == null) {
+            FileTransfers.commit(partFile, destinationFile);
+            return new Pair<>(destinationFile, true);
+        }
+        return linkContent(contentStore.store(partFile), props);
+    }
+
+    /**
+     * Saves image from local file system
+     *
+     * @param imageUrl
+     * @param destinationFile
+     * @param props
+     * @return
+     * @throws IOException
+     */
+    protected Pair<File, Boolean> storeLocal(URL imageUrl, File destinationFile, Properties props) throws IOException {
+        File partFile = partFile(destinationFile);
+        try {
+            FileTransfers.copy(FileUtils.toFile(imageUrl), partFile);
+            return store(partFile, FileTransfers.UNKNOWN_LENGTH, destinationFile, props);
+        } finally {
+            partFile.delete();
+        }
+    }
+
+    /**
+     * Applies image filter to successful response, reading only as much of the body as the filter needs
+     *
+     * @param imageUrl
+     * @param contentType   null if not known
+     * @param contentLength negative if not known
+     * @param body
+     * @return body to store, null if image is rejected
+     * @throws IOException
+     */
+    protected InputStream filter(URL imageUrl, String contentType, long contentLength, InputStream body) throws IOException {
+        if (imageFilter == null) {
+            return body;
+        }
+        String rejected = imageFilter.rejectResponse(contentType, contentLength);
+        if (rejected != null) {
+            filtered(imageUrl, rejected);
+            return null;
+        }
+        InputStream probed = imageFilter.probe(body);
+        if (probed == null) {
+            filtered(imageUrl, "too small");
+        }
+        return probed;
+    }
+
+    /**
+     * Counts and reports image dropped by image filter
+     *
+     * @param imageUrl
+     * @param reason
+     */
+    protected void filtered(URL imageUrl, String reason) {
+        metrics.increment(Metrics.FILTERED);
+        System.out.println(String.format("Skipping %1$s : %2$s", imageUrl, reason));
+    }
+
+    /**
+     * Counts completed transfer and reports its throughput
+     *
+     * @param download
+     * @param stored
+     * @param startedNanos
+     */
+    protected void transferred(Download download, File stored, long startedNanos) {
+        URL imageUrl = download.imageUrl;
+        long nanos = System.nanoTime() - startedNanos;
+        long bytes = stored.length();
+        download.transferred(stored, bytes, nanos);
+        transferStats.record(bytes, nanos);
+        metrics.record(Metrics.DOWNLOAD, TimeUnit.NANOSECONDS.toMicros(nanos));
+        metrics.record(Metrics.BYTES, bytes);
+        System.out.println(String.format("Fetched %1$s, %2$s bytes at %3$s KB/s", imageUrl, bytes, FileTransfers.kilobytesPerSecond(bytes, nanos)));
+    }
+
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    protected File partFile(File destinationFile) {
+        return new File(destinationFile.getParentFile(), destinationFile.getName() + ".part");
+    }
+
+    private Pair<File, Boolean> linkContent(Pair<File, Boolean> stored, Properties props) {
+        props.setProperty(ContentStore.CONTENT_HASH, stored.first.getName());
+        return stored;
+    }
+
+    /**
+     * Marks stored body as new content and notifies callback, failures of callback do not affect download result
+     *
+     * @param download
+     * @param destinationFile
+     */
+    protected void notifyQuietly(Download download, File destinationFile) {
+        download.newContent = true;
+        try {
+            if (download.callback != null) {
+                download.callback.notifyImageDownloaded(download.imageUrl, destinationFile);
+            }
+        } catch (Throwable  e) {
+            //we'll swallow exception
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks if given url is from "local" filesystem
+     *
+     * @param url
+     * @return
+     */
+    protected boolean isLocal(URL url) {
+        return "file".equals(url.getProtocol());
+    }
+
+    /**
+     * Writes image metadata
+     *
+     * @param mangledName
+     * @param what
+     */
+    protected void writeProps(String mangledName, Properties what) {
+        metadata.write(mangledName, what);
+    }
+
+    /**
+     * Obtains or creates image metadata
+     *
+     * @param mangledName
+     * @param imageUrl
+     * @return
+     */
+    protected Pair<Boolean, Properties> readOrCreate(String mangledName, URL imageUrl) {
+        Pair<Boolean, Properties> result = metadata.read(mangledName);
+
+        if (!result.second.containsKey("image-uri")) {
+            result.second.setProperty("image-uri", imageUrl.toString());
+        }
+
+        return result;
+    }
+
+    /**
+     * Transforms file url into sha-256 hex hash
+     *
+     * @param imageUrl
+     * @return
+     */
+    protected static String mangle(URL imageUrl) {
+        return DigestUtils.sha256Hex(normalise(imageUrl));
+    }
+
+    /**
+     * Brings url to canonical form, which is used for hashing. Query part and default ports are dropped.
+     *
+     * @param url
+     * @return
+     */
+    protected static String normalise(URL url) {
+        //we exclude query part from image uri
+        try {
+            int port = url.getPort() == -1 ? detectPort(url.getProtocol()) : url.getPort();
+            return new URL(url.getProtocol(), url.getHost(), port, url.getPath(), null).toString();
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(String.format("Failed to construct url %1$s", url), e);
+        }
+    }
+
+    /**
+     * Detects port for few known protocols
+     *
+     * @param protocol
+     * @return
+     */
+    private static int detectPort(String protocol) {
+        if ("http".equals(protocol)) {
+            return 80;
+        }
+        if ("https".equals(protocol)) {
+            return 443;
+        }
+        if ("file".equals(protocol)) {
+            return 0;
+        }
+        throw new IllegalArgumentException(String.format("I don't know about protocol %1$s", protocol));
+    }
+
+    /**
+     * Image on its way through the engine, collects what engine stored for the result
+     */
+    protected static class Download {
+        protected final URL imageUrl;
+        protected final String mangledName;
+        //null if nobody listens
+        protected final ImageFetchedCallback callback;
+        //attempts of the same download never overlap, last one wins
+        private volatile File file;
+        private volatile long bytes;
+        private volatile long transferNanos;
+        private volatile boolean newContent;
+
+        protected Download(URL imageUrl, String mangledName, ImageFetchedCallback callback) {
+            this.imageUrl = imageUrl;
+            this.mangledName = mangledName;
+            this.callback = callback;
+        }
+
+        void transferred(File stored, long bytes, long nanos) {
+            this.file = stored;
+            this.bytes = bytes;
+            this.transferNanos = nanos;
+        }
+
+        ImageResult result(Pair<URL, String> image, String status, long startedNanos) {
+            return new ImageResult(image, status, file, newContent, bytes, TimeUnit.NANOSECONDS.toMicros(transferNanos),
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedNanos));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.izapolsky.crawler;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Discovery on top of non-blocking http client - no thread is held while document is waited for. Parsing is done on
+ * executor, it reads body as it arrives, so only a bounded part of document is held in memory at once.
+ */
+public class AsyncUrlDiscovererImpl extends UrlDiscovererImpl {
+
+    //body bytes received but not parsed yet, reading from connection is suspended beyond that
+    public static final int MAX_BUFFERED_BYTES = 64 * 1024;
+
+    private final CloseableHttpAsyncClient client;
+    private final ExecutorService parseService;
+
+    /**
+     * @param parseService executes parsing of received documents and local documents
+     * @param client       has to be started
+     */
+    public AsyncUrlDiscovererImpl(ExecutorService parseService, CloseableHttpAsyncClient client) {
+        this(parseService, client, null);
+    }
+
+    /**
+     * @param parseService executes parsing of received documents and local documents
+     * @param client       has to be started
+     * @param extractor    when given, documents are tokenized instead of being parsed into DOM
+     */
+    public AsyncUrlDiscovererImpl(ExecutorService parseService, CloseableHttpAsyncClient client, StreamingLinkExtractor extractor) {
+        this(parseService, client, extractor, new Metrics());
+    }
+
+    /**
+     * @param parseService executes parsing of received documents and local documents
+     * @param client       has to be started
+     * @param extractor    when given, documents are tokenized instead of being parsed into DOM
+     * @param metrics      receives discovery latency
+     */
+    public AsyncUrlDiscovererImpl(ExecutorService parseService, CloseableHttpAsyncClient client, StreamingLinkExtractor extractor, Metrics metrics) {
+        //remote documents never go through blocking client
+        super(parseService, null, extractor, metrics);
+        this.parseService = parseService;
+        this.client = client;
+    }
+
+    @Override
+    public List<Pair<URL, String>> discover(List<URL> documents) {
+        List<Pair<URL, String>> images = Collections.synchronizedList(new ArrayList<>());
+        for (Future<Integer> future : discover(documents, (document, imageSrc) -> images.add(new Pair<>(document, imageSrc)))) {
+            try {
+                future.get();
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return images;
+    }
+
+    @Override
+    public List<Future<Integer>> discover(List<URL> documents, ImageDiscoveredCallback callback) {
+        List<Future<Integer>> results = new ArrayList<>(documents.size());
+
+        for (URL url : documents) {
+            if ("file".equals(url.getProtocol())) {
+                results.addAll(super.discover(Collections.singletonList(url), callback));
+            } else {
+                results.add(request(url, callback));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Starts non-blocking request for document, body is parsed while it is being received
+     *
+     * @param url
+     * @param callback
+     * @return
+     */
+    protected Future<Integer> request(URL url, ImageDiscoveredCallback callback) {
+        long started = System.nanoTime();
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        try {
+            DocumentConsumer consumer = new DocumentConsumer(url, callback, result);
+            client.execute(HttpAsyncMethods.createGet(url.toURI()), consumer, new FutureCallback<Boolean>() {
+                @Override
+                public void completed(Boolean done) {
+                    //parsing completes the result once it has read the body to its end
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    consumer.fail(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    consumer.fail(new IllegalStateException("Request cancelled"));
+                }
+            });
+        } catch (URISyntaxException e) {
+            result.completeExceptionally(new RuntimeException(String.format("Failed to parse URI %1$s", url), e));
+        }
+
+        return result.whenComplete((count, e) -> {
+            metrics.recordSince(Metrics.DISCOVERY, started);
+            callback.notifyDocumentProcessed(url);
+        });
+    }
+
+    /**
+     * Hands body of successful response over to parsing as it arrives
+     */
+    private class DocumentConsumer extends AsyncByteConsumer<Boolean> {
+        final URL url;
+        final ImageDiscoveredCallback callback;
+        final CompletableFuture<Integer> result;
+        final ContentPipe pipe = new ContentPipe();
+
+        DocumentConsumer(URL url, ImageDiscoveredCallback callback, CompletableFuture<Integer> result) {
+            this.url = url;
+            this.callback = callback;
+            this.result = result;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                //body is not needed, exchange still runs to its end so connection can be reused
+                pipe.close();
+                fail(new IllegalStateException(String.format("Unexpected response %1$s", response.getStatusLine())));
+                return;
+            }
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            try {
+                //parsing is cpu work, it should not hold i/o reactor
+                parseService.execute(() -> {
+                    try (InputStream is = pipe) {
+                        result.complete(extract(url, is, charset, callback));
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pipe.close();
+                fail(e);
+            }
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) {
+            pipe.write(buf, ioctrl);
+        }
+
+        @Override
+        protected Boolean buildResult(HttpContext context) {
+            pipe.end();
+            return Boolean.TRUE;
+        }
+
+        void fail(Throwable e) {
+            pipe.fail(e);
+            RuntimeException failure = new RuntimeException(String.format("Failed processing url %1$s", url), e);
+            if (result.completeExceptionally(failure)) {
+                //nobody might be waiting on the promise, so make failure visible
+                failure.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Body on its way from i/o reactor to parsing thread. Reactor never waits - once too much is buffered it suspends
+     * reading from the connection, parsing thread resumes it when it has caught up.
+     */
+    private static class ContentPipe extends InputStream {
+        //all state is guarded by this
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+        private byte[] current;
+        private int offset;
+        private int buffered;
+        private boolean ended;
+        private boolean closed;
+        private IOException failure;
+        //set while reading from connection is suspended
+        private IOControl suspended;
+
+        synchronized void write(ByteBuffer data, IOControl ioctrl) {
+            if (closed) {
+                //parsing is over, rest of the body is dropped
+                data.position(data.limit());
+                return;
+            }
+            byte[] chunk = new byte[data.remaining()];
+            data.get(chunk);
+            chunks.add(chunk);
+            buffered += chunk.length;
+            if (buffered >= MAX_BUFFERED_BYTES && suspended == null) {
+                suspended = ioctrl;
+                ioctrl.suspendInput();
+            }
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read;
+            IOControl resume = null;
+            synchronized (this) {
+                while (current == null) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    current = chunks.poll();
+                    offset = 0;
+                    if (current == null) {
+                        if (ended) {
+                            return -1;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for document body");
+                        }
+                    }
+                }
+                read = Math.min(len, current.length - offset);
+                System.arraycopy(current, offset, b, off, read);
+                offset += read;
+                buffered -= read;
+                if (offset == current.length) {
+                    current = null;
+                }
+                if (suspended != null && buffered < MAX_BUFFERED_BYTES / 2) {
+                    resume = suspended;
+                    suspended = null;
+                }
+            }
+            //outside of the lock, reactor holds it while suspending input
+            if (resume != null) {
+                resume.requestInput();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            IOControl resume;
+            synchronized (this) {
+                closed = true;
+                chunks.clear();
+                current = null;
+                buffered = 0;
+                resume = suspended;
+                suspended = null;
+            }
+            if (resume != null) {
+                resume.requestInput();
+            }
+        }
+    }
+}
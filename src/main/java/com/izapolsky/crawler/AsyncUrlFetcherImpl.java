@@ -0,0 +1,368 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.client.methods.ZeroCopyConsumer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Fetcher on top of non-blocking http client. Response body is transferred from socket straight to a file, no thread
+ * is held while download is in progress. Image filter checks first bytes as they land in the file, so junk image is
+ * dropped without rest of its body. Given host scheduler, requests are paced and backed off per host the same way as
+ * those of blocking fetcher.
+ */
+public class AsyncUrlFetcherImpl extends AbstractUrlFetcher {
+
+    private final CloseableHttpAsyncClient client;
+    private final Executor completionService;
+    //null starts requests right away, per-host limit is then only that of client connection pool
+    private final HostScheduler scheduler;
+
+    /**
+     * @param client            has to be started
+     * @param completionService runs file bookkeeping and callbacks once transfer is over, so i/o reactor is never blocked -
+     *                          it must neither run tasks on calling thread nor make it wait, e.g. pool with unbounded queue
+     * @param outputDir
+     */
+    public AsyncUrlFetcherImpl(CloseableHttpAsyncClient client, Executor completionService, File outputDir) {
+        this(client, completionService, outputDir, null);
+    }
+
+    /**
+     * @param client
+     * @param completionService
+     * @param outputDir
+     * @param contentStore      keeps each distinct body once, null to keep file per url
+     */
+    public AsyncUrlFetcherImpl(CloseableHttpAsyncClient client, Executor completionService, File outputDir, ContentStore contentStore) {
+        this(client, completionService, outputDir, contentStore, new SidecarMetadataStore(outputDir), null);
+    }
+
+    /**
+     * @param client
+     * @param completionService
+     * @param outputDir
+     * @param contentStore      keeps each distinct body once, null to keep file per url
+     * @param metadata          where image metadata is kept between runs
+     * @param retries           null to give up after first attempt
+     */
+    public AsyncUrlFetcherImpl(CloseableHttpAsyncClient client, Executor completionService, File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries) {
+        this(client, completionService, outputDir, contentStore, metadata, retries, new Metrics());
+    }
+
+    /**
+     * @param client
+     * @param completionService
+     * @param outputDir
+     * @param contentStore      keeps each distinct body once, null to keep file per url
+     * @param metadata          where image metadata is kept between runs
+     * @param retries           null to give up after first attempt
+     * @param metrics           receives timings, sizes and statuses of downloads
+     */
+    public AsyncUrlFetcherImpl(CloseableHttpAsyncClient client, Executor completionService, File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries, Metrics metrics) {
+        this(client, completionService, outputDir, contentStore, metadata, retries, metrics, null);
+    }
+
+    /**
+     * @param client
+     * @param completionService
+     * @param outputDir
+     * @param contentStore      keeps each distinct body once, null to keep file per url
+     * @param metadata          where image metadata is kept between runs
+     * @param retries           null to give up after first attempt
+     * @param metrics           receives timings, sizes and statuses of downloads
+     * @param imageFilter       drops junk images by their headers, null to keep every image
+     */
+    public AsyncUrlFetcherImpl(CloseableHttpAsyncClient client, Executor completionService, File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries, Metrics metrics, ImageFilter imageFilter) {
+        this(null, client, completionService, outputDir, contentStore, metadata, retries, metrics, imageFilter);
+    }
+
+    /**
+     * @param scheduler         paces requests of every host, transfer holds its host slot until it is over
+     * @param client
+     * @param completionService
+     * @param outputDir
+     * @param contentStore      keeps each distinct body once, null to keep file per url
+     * @param metadata          where image metadata is kept between runs
+     * @param retries           null to give up after first attempt
+     * @param metrics           receives timings, sizes and statuses of downloads
+     * @param imageFilter       drops junk images by their headers, null to keep every image
+     */
+    public AsyncUrlFetcherImpl(HostScheduler scheduler, CloseableHttpAsyncClient client, Executor completionService, File outputDir, ContentStore contentStore, MetadataStore metadata,
+                               RetryEngine retries, Metrics metrics, ImageFilter imageFilter) {
+        super(outputDir, contentStore, metadata, retries, metrics, imageFilter);
+        this.scheduler = scheduler;
+        this.client = client;
+        this.completionService = completionService;
+    }
+
+    @Override
+    protected CompletableFuture<String> submit(Download download) {
+        if (scheduler == null) {
+            return start(download);
+        }
+        return scheduler.submitAsync(download.imageUrl.getHost(), () -> start(download));
+    }
+
+    /**
+     * Starts transfer of the image, only file bookkeeping is done on calling thread
+     *
+     * @param download
+     * @return completes with status once transfer is over
+     */
+    protected CompletableFuture<String> start(Download download) {
+        URL imageUrl = download.imageUrl;
+        String mangledName = download.mangledName;
+        File destinationFile = new File(outputDir, mangledName);
+        File partFile = partFile(destinationFile);
+
+        Closeable l = null;
+        try {
+            l = lockMetadata(mangledName);
+        } catch (OverlappingFileLockException e) {
+            new RuntimeException(String.format("URL %1$s already being processed", imageUrl), e).printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(SC_IO_ERROR);
+        }
+        if (l == null) {
+            return CompletableFuture.completedFuture(SC_SKIPPED_CONCURRENCY);
+        }
+
+        Transfer transfer = new Transfer(download, l, destinationFile, partFile);
+        try {
+            transfer.props = readOrCreate(mangledName, imageUrl).second;
+            if (isFresh(transfer.props, destinationFile)) {
+                transfer.release(false);
+                transfer.result.complete(SC_SKIPPED_FRESH);
+            } else if (isLocal(imageUrl)) {
+                completionService.execute(transfer::copyLocal);
+            } else {
+                client.execute(HttpAsyncMethods.create(createRequest(transfer.props, imageUrl)), new ZeroCopyConsumer<HttpResponse>(partFile) {
+                    @Override
+                    protected void onResponseReceived(HttpResponse response) {
+                        super.onResponseReceived(response);
+                        metrics.recordSince(Metrics.TIME_TO_FIRST_BYTE, transfer.started);
+                        if (imageFilter != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                            Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+                            transfer.rejected = imageFilter.rejectResponse(contentType == null ? null : contentType.getValue(), announcedLength(response));
+                            if (transfer.rejected == null) {
+                                transfer.head = new byte[ImageProbe.MAX_PROBE_BYTES];
+                            }
+                        }
+                    }
+
+                    @Override
+                    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+                        if (transfer.rejected != null) {
+                            //failing before body is consumed drops the connection, which is cheaper than the transfer
+                            throw new IOException(String.format("Image %1$s rejected : %2$s", imageUrl, transfer.rejected));
+                        }
+                        super.onEntityEnclosed(entity, contentType);
+                    }
+
+                    @Override
+                    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+                        super.onContentReceived(decoder, ioctrl);
+                        if (transfer.head != null && transfer.probe()) {
+                            //dropping connection once dimensions are known is cheaper than rest of the transfer
+                            throw new IOException(String.format("Image %1$s rejected : %2$s", imageUrl, transfer.rejected));
+                        }
+                    }
+
+                    @Override
+                    protected HttpResponse process(HttpResponse response, File file, ContentType contentType) {
+                        return response;
+                    }
+                }, transfer);
+            }
+        } catch (Throwable e) {
+            transfer.finish(null, e);
+        }
+
+        return transfer.result;
+    }
+
+    /**
+     * @param response
+     * @return value of Content-Length header, {@link FileTransfers#UNKNOWN_LENGTH} if it is missing or invalid
+     */
+    protected long announcedLength(HttpResponse response) {
+        Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+        if (contentLength == null) {
+            return FileTransfers.UNKNOWN_LENGTH;
+        }
+        try {
+            return Long.parseLong(contentLength.getValue().trim());
+        } catch (NumberFormatException e) {
+            return FileTransfers.UNKNOWN_LENGTH;
+        }
+    }
+
+    /**
+     * State of single download, holds lock on image metadata until it is over
+     */
+    private class Transfer implements FutureCallback<HttpResponse> {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final Download download;
+        final URL imageUrl;
+        final String mangledName;
+        final Closeable lock;
+        final File partFile;
+        final long started = System.nanoTime();
+        File destinationFile;
+        boolean newContent;
+        //reason image filter dropped the response for, set on i/o reactor thread before failure is reported
+        volatile String rejected;
+        //first bytes of accepted response body while they can still change verdict of image filter, null otherwise
+        byte[] head;
+        int headLength;
+        Properties props;
+
+        Transfer(Download download, Closeable lock, File destinationFile, File partFile) {
+            this.download = download;
+            this.imageUrl = download.imageUrl;
+            this.mangledName = download.mangledName;
+            this.lock = lock;
+            this.destinationFile = destinationFile;
+            this.partFile = partFile;
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            completionService.execute(() -> finish(response, null));
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            completionService.execute(() -> finish(null, ex));
+        }
+
+        @Override
+        public void cancelled() {
+            completionService.execute(() -> finish(null, new IllegalStateException("Request cancelled")));
+        }
+
+        /**
+         * Reads bytes of the body written to part file since last call, on i/o reactor thread
+         *
+         * @return true if image filter rejected the image
+         * @throws IOException
+         */
+        boolean probe() throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(partFile, "r")) {
+                file.seek(headLength);
+                int read;
+                while (headLength < head.length && (read = file.read(head, headLength, head.length - headLength)) > 0) {
+                    headLength += read;
+                }
+            }
+            if (!ImageFilter.isSettled(head, headLength)) {
+                return false;
+            }
+            rejected = imageFilter.rejectHeader(head, headLength);
+            head = null;
+            return rejected != null;
+        }
+
+        void copyLocal() {
+            boolean modified = false;
+            String status = String.valueOf(HttpStatus.SC_OK);
+            try {
+                keep(storeLocal(imageUrl, destinationFile, props));
+                writeProps(mangledName, props);
+                modified = true;
+            } catch (Throwable e) {
+                e.printStackTrace();
+                status = SC_IO_ERROR;
+            } finally {
+                release(modified);
+            }
+            result.complete(status);
+        }
+
+        void finish(HttpResponse response, Throwable failure) {
+            boolean modified = false;
+            String status = SC_IO_ERROR;
+            try {
+                if (failure != null && rejected != null) {
+                    filtered(imageUrl, rejected);
+                    status = SC_SKIPPED_FILTERED;
+                } else if (failure != null) {
+                    failure.printStackTrace();
+                } else {
+                    int code = response.getStatusLine().getStatusCode();
+                    status = String.valueOf(code);
+                    if (scheduler != null && code != SC_TOO_MANY_REQUESTS && code != HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                        scheduler.recover(imageUrl.getHost());
+                    }
+                    //body ended before header was settled, verdict is taken on what there is
+                    if (code == HttpStatus.SC_OK && head != null && (rejected = imageFilter.rejectHeader(head, headLength)) != null) {
+                        filtered(imageUrl, rejected);
+                        status = SC_SKIPPED_FILTERED;
+                    } else if (code == HttpStatus.SC_OK) {
+                        keep(store(partFile, announcedLength(response), destinationFile, props));
+                        recordResponse(response, props);
+                        writeProps(mangledName, props);
+                        modified = true;
+                    } else if (code == SC_TOO_MANY_REQUESTS || code == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                        //host slot is given up only after this, so next request of the host already waits
+                        long retryAfterMs = retryAfter(imageUrl, response);
+                        if (scheduler != null) {
+                            scheduler.backOff(imageUrl.getHost(), retryAfterMs);
+                        }
+                    } else if (code == HttpStatus.SC_NOT_MODIFIED) {
+                        //validators and freshness might have been renewed
+                        recordResponse(response, props);
+                        writeProps(mangledName, props);
+                    }
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                status = SC_IO_ERROR;
+            } finally {
+                partFile.delete();
+                release(modified);
+            }
+            result.complete(status);
+        }
+
+        private void keep(Pair<File, Boolean> stored) {
+            destinationFile = stored.first;
+            newContent = stored.second;
+            transferred(download, destinationFile, started);
+        }
+
+        /**
+         * Gives up hold of image metadata, then lets callback know about new content
+         *
+         * @param modified
+         */
+        private void release(boolean modified) {
+            IOUtils.closeQuietly(lock);
+            //same bytes served under another url were processed already
+            if (modified && newContent) {
+                notifyQuietly(download, destinationFile);
+            }
+        }
+    }
+}
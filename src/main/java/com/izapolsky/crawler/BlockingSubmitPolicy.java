@@ -0,0 +1,49 @@
+package com.izapolsky.crawler;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejection policy which makes submitting thread wait for free space in the queue, so slow consumer throttles its
+ * producers instead of growing the queue. Keeps track of how much time producers spent blocked.
+ */
+public class BlockingSubmitPolicy implements RejectedExecutionHandler {
+
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+
+        long started = System.nanoTime();
+        try {
+            executor.getQueue().put(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for free space in the queue", e);
+        } finally {
+            blocked.incrementAndGet();
+            blockedNanos.addAndGet(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * @return number of submissions which had to wait
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * @return total time producers spent waiting
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+}
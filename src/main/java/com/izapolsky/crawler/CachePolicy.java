@@ -0,0 +1,156 @@
+package com.izapolsky.crawler;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Http caching rules for images kept between runs - which validators are remembered, how long stored image stays
+ * fresh and how it is revalidated once it is not
+ */
+public class CachePolicy {
+
+    public static final String FRESH_UNTIL = "fresh-until";
+
+    /**
+     * Makes request conditional on validators of stored image
+     *
+     * @param request
+     * @param props
+     */
+    public void addValidators(HttpRequest request, Properties props) {
+        if (props.containsKey(HttpHeaders.ETAG)) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, props.getProperty(HttpHeaders.ETAG));
+        }
+        if (props.containsKey(HttpHeaders.LAST_MODIFIED)) {
+            request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, props.getProperty(HttpHeaders.LAST_MODIFIED));
+        }
+    }
+
+    /**
+     * Remembers validators and freshness of full (200) or not modified (304) response
+     *
+     * @param response
+     * @param props
+     * @param nowMillis
+     */
+    public void record(HttpResponse response, Properties props, long nowMillis) {
+        //304 only updates what it carries, full response replaces everything
+        boolean replace = response.getStatusLine().getStatusCode() != HttpStatus.SC_NOT_MODIFIED;
+
+        Header[] etags = response.getHeaders(HttpHeaders.ETAG);
+        if (etags.length > 0) {
+            //If-None-Match takes comma separated list, so every tag is kept
+            StringBuilder joined = new StringBuilder();
+            for (Header etag : etags) {
+                if (joined.length() > 0) {
+                    joined.append(", ");
+                }
+                joined.append(etag.getValue());
+            }
+            props.setProperty(HttpHeaders.ETAG, joined.toString());
+        } else if (replace) {
+            props.remove(HttpHeaders.ETAG);
+        }
+
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        if (lastModified != null) {
+            props.setProperty(HttpHeaders.LAST_MODIFIED, lastModified.getValue());
+        } else if (replace) {
+            props.remove(HttpHeaders.LAST_MODIFIED);
+        }
+
+        long lifetime = freshnessLifetime(response);
+        if (lifetime > 0) {
+            props.setProperty(FRESH_UNTIL, String.valueOf(nowMillis + lifetime));
+        } else {
+            props.remove(FRESH_UNTIL);
+        }
+    }
+
+    /**
+     * Checks if stored image can be used without asking server
+     *
+     * @param props
+     * @param nowMillis
+     * @return
+     */
+    public boolean isFresh(Properties props, long nowMillis) {
+        String freshUntil = props.getProperty(FRESH_UNTIL);
+        if (freshUntil == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(freshUntil) > nowMillis;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remaining freshness of the response - max-age wins over Expires, no-cache and no-store mean none, as does missing
+     * or invalid information
+     *
+     * @param response
+     * @return millis, 0 or less if response is stale already
+     */
+    protected long freshnessLifetime(HttpResponse response) {
+        Long maxAge = null;
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName().toLowerCase();
+                if ("no-cache".equals(name) || "no-store".equals(name)) {
+                    return 0;
+                }
+                if ("max-age".equals(name) && element.getValue() != null) {
+                    maxAge = parseSeconds(element.getValue());
+                }
+            }
+        }
+
+        long age = 0;
+        Header ageHeader = response.getFirstHeader(HttpHeaders.AGE);
+        if (ageHeader != null) {
+            Long parsed = parseSeconds(ageHeader.getValue());
+            age = parsed == null ? 0 : parsed;
+        }
+
+        if (maxAge != null) {
+            return maxAge - age;
+        }
+
+        Header expires = response.getFirstHeader(HttpHeaders.EXPIRES);
+        if (expires == null) {
+            return 0;
+        }
+        Date expiresDate = DateUtils.parseDate(expires.getValue());
+        if (expiresDate == null) {
+            return 0;
+        }
+        //server clock is used for both ends, so our clock skew does not matter
+        Header date = response.getFirstHeader(HttpHeaders.DATE);
+        Date dateDate = date == null ? null : DateUtils.parseDate(date.getValue());
+        long base = dateDate == null ? System.currentTimeMillis() : dateDate.getTime();
+        return expiresDate.getTime() - base - age;
+    }
+
+    /**
+     * @param value
+     * @return millis, null if value is not a number of seconds
+     */
+    private static Long parseSeconds(String value) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
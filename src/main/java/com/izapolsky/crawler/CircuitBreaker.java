@@ -0,0 +1,95 @@
+package com.izapolsky.crawler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host circuit breaker - after run of failures host is not contacted for a while, then single probe decides if it
+ * is back
+ */
+public class CircuitBreaker {
+
+    /**
+     * Per-host state, guarded by its own monitor
+     */
+    private static class HostState {
+        int failures;
+        long openUntilNanos;
+        boolean open;
+        boolean probing;
+    }
+
+    private final int failureThreshold;
+    private final long cooldownNanos;
+    private final ConcurrentMap<String, HostState> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param failureThreshold consecutive failures which open the circuit
+     * @param cooldownMs       how long open circuit stays open before probe is let through
+     */
+    public CircuitBreaker(int failureThreshold, long cooldownMs) {
+        this.failureThreshold = failureThreshold;
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMs);
+    }
+
+    /**
+     * @param host
+     * @return true if request to the host can be made
+     */
+    public boolean allow(String host) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (!state.open) {
+                return true;
+            }
+            if (state.probing || state.openUntilNanos - System.nanoTime() > 0) {
+                return false;
+            }
+            state.probing = true;
+            return true;
+        }
+    }
+
+    public void success(String host) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.failures = 0;
+            state.open = false;
+            state.probing = false;
+        }
+    }
+
+    public void failure(String host) {
+        HostState state = hosts.computeIfAbsent(host, h -> new HostState());
+        synchronized (state) {
+            state.failures++;
+            //failed probe opens the circuit again right away
+            if (state.probing || state.failures >= failureThreshold) {
+                state.open = true;
+                state.probing = false;
+                state.openUntilNanos = System.nanoTime() + cooldownNanos;
+            }
+        }
+    }
+
+    /**
+     * @param host
+     * @return true if requests to host are being refused
+     */
+    public boolean isOpen(String host) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            return state.open;
+        }
+    }
+}
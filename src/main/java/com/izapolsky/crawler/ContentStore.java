@@ -0,0 +1,135 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed image store - every distinct body is kept once, named by sha-256 of its bytes, no matter how many
+ * urls serve it.
+ */
+public class ContentStore {
+
+    public static final String CONTENT_HASH = "content-hash";
+    public static final String CONTENT_DIR = "content";
+
+    private final File dir;
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+    public ContentStore(File outputDir) {
+        this.dir = new File(outputDir, CONTENT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException(String.format("Failed to create %1$s", dir.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Stores body, hashing it while it is written to disk
+     *
+     * @param body
+     * @return blob file and flag telling if content was not known before
+     * @throws IOException
+     */
+    public Pair<File, Boolean> store(InputStream body) throws IOException {
+        File tmp = File.createTempFile("blob", ".part", dir);
+        try {
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            try (InputStream is = new DigestInputStream(body, digest)) {
+                FileTransfers.copy(is, tmp);
+            }
+            return publish(tmp, Hex.encodeHexString(digest.digest()));
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Stores already downloaded file, source file is left in place
+     *
+     * @param file
+     * @return blob file and flag telling if content was not known before
+     * @throws IOException
+     */
+    public Pair<File, Boolean> store(File file) throws IOException {
+        String hash;
+        try (InputStream is = new FileInputStream(file)) {
+            hash = DigestUtils.sha256Hex(is);
+        }
+        return publish(file, hash);
+    }
+
+    /**
+     * @param hash
+     * @return file which holds, or would hold, content with given hash
+     */
+    public File getBlob(String hash) {
+        return new File(dir, hash);
+    }
+
+    /**
+     * Makes complete file visible under its content hash, first writer wins
+     *
+     * @param complete
+     * @param hash
+     * @return
+     * @throws IOException
+     */
+    protected Pair<File, Boolean> publish(File complete, String hash) throws IOException {
+        File blob = getBlob(hash);
+        if (!blob.exists()) {
+            try {
+                //link creation fails if blob appeared meanwhile, unlike rename which would silently replace it
+                Files.createLink(blob.toPath(), complete.toPath());
+                stored.incrementAndGet();
+                return new Pair<>(blob, true);
+            } catch (FileAlreadyExistsException e) {
+                //other thread or process stored same content
+            } catch (UnsupportedOperationException e) {
+                //content is identical, so replacing blob stored meanwhile does no harm
+                File copy = File.createTempFile("blob", ".part", dir);
+                try {
+                    FileTransfers.copy(complete, copy);
+                    FileTransfers.commit(copy, blob);
+                } finally {
+                    copy.delete();
+                }
+                stored.incrementAndGet();
+                return new Pair<>(blob, true);
+            }
+        }
+
+        deduplicated.incrementAndGet();
+        deduplicatedBytes.addAndGet(complete.length());
+        return new Pair<>(blob, false);
+    }
+
+    /**
+     * @return number of distinct bodies stored
+     */
+    public long getStored() {
+        return stored.get();
+    }
+
+    /**
+     * @return number of bodies which were already present
+     */
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Content store : %1$s stored, %2$s duplicates (%3$s bytes) skipped", stored.get(), deduplicated.get(), deduplicatedBytes.get());
+    }
+}
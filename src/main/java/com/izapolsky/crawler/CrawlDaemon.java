@@ -0,0 +1,371 @@
+package com.izapolsky.crawler;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Takes crawl jobs over http on loopback interface and runs them on pools, connections and caches of a long running
+ * crawler. Job is json object with command line arguments of a crawl -
+ * <code>{"args": ["--max-depth", "1", "-o", "/tmp/out/example", "http://example.com"]}</code>, output directory defaults
+ * to the daemon's one and has to be inside it.
+ * <p>
+ * Every request carries token given to the daemon as <code>Authorization: Bearer &lt;token&gt;</code>, jobs are sent as
+ * <code>application/json</code> - pages open in a browser can reach loopback too, but can send neither.
+ * <ul>
+ * <li>POST /jobs - submits job, answers with its status</li>
+ * <li>GET /jobs - statuses of all jobs</li>
+ * <li>GET /jobs/id - status of one job</li>
+ * <li>POST /shutdown - stops taking jobs, daemon exits once queued and running ones are done</li>
+ * </ul>
+ */
+public class CrawlDaemon implements Closeable {
+
+    public static final String JOBS = "/jobs";
+    public static final String SHUTDOWN = "/shutdown";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String BEARER = "Bearer ";
+    public static final String JSON = "application/json";
+    //statuses of finished jobs are forgotten, oldest first, once there are more jobs than this
+    public static final int MAX_KEPT_JOBS = 1000;
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * Submitted job and its progress
+     */
+    protected static class Job {
+        final long id;
+        final List<String> args;
+        final Main.Args parsed;
+        final long submitted = System.currentTimeMillis();
+        volatile State state = State.QUEUED;
+        volatile long started;
+        volatile long finished;
+        volatile Map<String, AtomicInteger> results;
+        volatile String error;
+
+        Job(long id, List<String> args, Main.Args parsed) {
+            this.id = id;
+            this.args = args;
+            this.parsed = parsed;
+        }
+
+        boolean isFinished() {
+            return state == State.DONE || state == State.FAILED;
+        }
+
+        Map<String, Object> status() {
+            Map<String, Object> result = new TreeMap<>();
+            result.put("id", id);
+            result.put("state", state.name());
+            result.put("args", args);
+            result.put("outputDir", parsed.outputDir.getAbsolutePath());
+            result.put("submitted", submitted);
+            if (started > 0) {
+                result.put("started", started);
+            }
+            if (finished > 0) {
+                result.put("finished", finished);
+            }
+            if (results != null) {
+                result.put("results", new TreeMap<>(results));
+            }
+            if (error != null) {
+                result.put("error", error);
+            }
+            return result;
+        }
+    }
+
+    private final HttpServer server;
+    private final Function<Main.Args, Map<String, AtomicInteger>> crawler;
+    private final File defaultOutputDir;
+    private final byte[] token;
+    private final ExecutorService jobService;
+    private final ConcurrentNavigableMap<Long, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+
+    /**
+     * @param crawler          runs crawl of given arguments, returns number of images by status of their download
+     * @param port             0 picks any free port
+     * @param maxJobs          number of jobs run at once
+     * @param defaultOutputDir output directory of jobs not giving one, output directories of all jobs are inside it
+     * @param token            secret every request has to carry
+     * @throws IOException
+     */
+    public CrawlDaemon(Function<Main.Args, Map<String, AtomicInteger>> crawler, int port, int maxJobs, File defaultOutputDir, String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("Daemon needs a token");
+        }
+        this.crawler = crawler;
+        this.defaultOutputDir = defaultOutputDir;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        AtomicInteger threads = new AtomicInteger();
+        this.jobService = Executors.newFixedThreadPool(maxJobs, r -> new Thread(r, "crawler-job-" + threads.incrementAndGet()));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(JOBS, this::handleJobs);
+        server.createContext(SHUTDOWN, exchange -> {
+            try {
+                if (!isAuthorized(exchange)) {
+                    unauthorized(exchange);
+                } else if ("POST".equals(exchange.getRequestMethod())) {
+                    //answered first, daemon stops serving as soon as shutdown is requested and its jobs are done
+                    respond(exchange, 202, Collections.singletonMap("jobs", jobs.size()));
+                    shutdown.countDown();
+                } else {
+                    respond(exchange, 405, Collections.singletonMap("error", "Use POST"));
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Submits job
+     *
+     * @param args command line arguments of the crawl
+     * @return status of queued job
+     * @throws ParameterException         if arguments are not valid
+     * @throws IllegalStateException      if job would share crawl journal with unfinished one
+     * @throws RejectedExecutionException once daemon is shutting down
+     */
+    public synchronized Map<String, Object> submit(List<String> args) {
+        if (shutdown.getCount() == 0) {
+            throw new RejectedExecutionException("Daemon is shutting down");
+        }
+        Main.Args parsed = parse(args);
+        if (parsed.journal || parsed.resume) {
+            for (Job other : jobs.values()) {
+                if (!other.isFinished() && (other.parsed.journal || other.parsed.resume) && sameDir(other.parsed.outputDir, parsed.outputDir)) {
+                    throw new IllegalStateException(String.format("Job %1$s keeps crawl journal in %2$s", other.id, parsed.outputDir.getAbsolutePath()));
+                }
+            }
+        }
+        Job job = new Job(ids.incrementAndGet(), args, parsed);
+        jobs.put(job.id, job);
+        forgetFinished();
+        jobService.execute(() -> run(job));
+        return job.status();
+    }
+
+    /**
+     * @param id
+     * @return status of job, null if there is no such job
+     */
+    public Map<String, Object> status(long id) {
+        Job job = jobs.get(id);
+        return job == null ? null : job.status();
+    }
+
+    /**
+     * Blocks until shutdown is requested and all submitted jobs are done
+     *
+     * @throws InterruptedException
+     */
+    public void awaitShutdown() throws InterruptedException {
+        shutdown.await();
+        jobService.shutdown();
+        jobService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        shutdown.countDown();
+        server.stop(0);
+        jobService.shutdown();
+    }
+
+    /**
+     * Parses job arguments the way command line is, options starting daemon or distributed crawl are refused
+     *
+     * @param args
+     * @return
+     */
+    protected Main.Args parse(List<String> args) {
+        Main.Args parsed = new Main.Args();
+        parsed.outputDir = defaultOutputDir;
+        new JCommander(parsed, args.toArray(new String[args.size()]));
+        if (parsed.daemon || parsed.coordinator || parsed.join != null) {
+            throw new ParameterException("Jobs can not start daemon or distributed crawl");
+        }
+        if (parsed.outputDir == null) {
+            throw new ParameterException("The following option is required: -o, --output-dir ");
+        }
+        if (!isInside(parsed.outputDir, defaultOutputDir)) {
+            throw new ParameterException(String.format("Output directory %1$s is not inside %2$s", parsed.outputDir, defaultOutputDir.getAbsolutePath()));
+        }
+        if (parsed.metricsFile != null && !isInside(parsed.metricsFile.getAbsoluteFile().getParentFile(), defaultOutputDir)) {
+            throw new ParameterException(String.format("Metrics file %1$s is not inside %2$s", parsed.metricsFile, defaultOutputDir.getAbsolutePath()));
+        }
+        if (parsed.inputUrls == null || parsed.inputUrls.isEmpty()) {
+            throw new ParameterException("Main parameters are required (\"<url to process>+\")");
+        }
+        return parsed;
+    }
+
+    private void run(Job job) {
+        job.started = System.currentTimeMillis();
+        job.state = State.RUNNING;
+        try {
+            job.results = crawler.apply(job.parsed);
+            job.finished = System.currentTimeMillis();
+            job.state = State.DONE;
+        } catch (Throwable e) {
+            new RuntimeException(String.format("Job %1$s failed", job.id), e).printStackTrace();
+            job.error = String.valueOf(e);
+            job.finished = System.currentTimeMillis();
+            job.state = State.FAILED;
+        }
+    }
+
+    private void forgetFinished() {
+        Iterator<Job> oldest = jobs.values().iterator();
+        while (jobs.size() > MAX_KEPT_JOBS && oldest.hasNext()) {
+            if (oldest.next().isFinished()) {
+                oldest.remove();
+            }
+        }
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (!isAuthorized(exchange)) {
+                unauthorized(exchange);
+                return;
+            }
+            if (path.equals(JOBS) || path.equals(JOBS + "/")) {
+                if ("POST".equals(method)) {
+                    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                    if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith(JSON)) {
+                        respond(exchange, 415, Collections.singletonMap("error", String.format("Jobs are sent as %1$s", JSON)));
+                        return;
+                    }
+                    respond(exchange, 202, submit(args(IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8))));
+                } else if ("GET".equals(method)) {
+                    List<Object> statuses = new ArrayList<>();
+                    for (Job job : jobs.values()) {
+                        statuses.add(job.status());
+                    }
+                    respond(exchange, 200, statuses);
+                } else {
+                    respond(exchange, 405, Collections.singletonMap("error", "Use GET or POST"));
+                }
+                return;
+            }
+            Map<String, Object> status = null;
+            try {
+                status = status(Long.parseLong(path.substring(JOBS.length() + 1)));
+            } catch (NumberFormatException e) {
+                //no such job
+            }
+            if (status == null) {
+                respond(exchange, 404, Collections.singletonMap("error", String.format("No job at %1$s", path)));
+            } else if ("GET".equals(method)) {
+                respond(exchange, 200, status);
+            } else {
+                respond(exchange, 405, Collections.singletonMap("error", "Use GET"));
+            }
+        } catch (IllegalArgumentException | ParameterException e) {
+            respond(exchange, 400, Collections.singletonMap("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            respond(exchange, 409, Collections.singletonMap("error", e.getMessage()));
+        } catch (RejectedExecutionException e) {
+            respond(exchange, 503, Collections.singletonMap("error", e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static List<String> args(String body) {
+        Object job = Json.parse(body);
+        Object args = job instanceof Map ? ((Map<?, ?>) job).get("args") : null;
+        if (!(args instanceof List)) {
+            throw new IllegalArgumentException("Job has to be json object with \"args\" array");
+        }
+        List<String> result = new ArrayList<>();
+        for (Object arg : (List<?>) args) {
+            result.add(String.valueOf(arg));
+        }
+        return result;
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst(AUTHORIZATION);
+        return authorization != null && authorization.startsWith(BEARER)
+                && MessageDigest.isEqual(token, authorization.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void unauthorized(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+        respond(exchange, 401, Collections.singletonMap("error", "Missing or wrong token"));
+    }
+
+    /**
+     * @param dir
+     * @param parent
+     * @return true if dir is parent or below it, links resolved
+     */
+    private static boolean isInside(File dir, File parent) {
+        try {
+            return dir.toPath().toRealPath().startsWith(parent.toPath().toRealPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean sameDir(File a, File b) {
+        return a.getAbsoluteFile().toPath().normalize().equals(b.getAbsoluteFile().toPath().normalize());
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] json = Json.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, json.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(json);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Crawl frontier - keeps documents to be processed, feeds them to discoverer and follows discovered links until depth
+ * or page limits are reached. Shallow documents are processed first.
+ */
+public class CrawlFrontier {
+
+    /**
+     * Document waiting to be processed
+     */
+    protected static class Entry implements Comparable<Entry> {
+        final URL url;
+        final int depth;
+        final long sequence;
+
+        Entry(URL url, int depth, long sequence) {
+            this.url = url;
+            this.depth = depth;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int result = Integer.compare(depth, o.depth);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private static final int INITIAL_VISITED = 1 << 16;
+
+    private final UrlDiscoverer discoverer;
+    private final ImageDiscoveredCallback downstream;
+    private final int maxDepth;
+    private final int maxPages;
+    private final int maxInFlight;
+    //null if progress is not recorded
+    private final CrawlJournal journal;
+
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>();
+    private final LongFingerprintSet visited;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //queued and in-flight documents, crawl is over once it drops to 0
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param discoverer
+     * @param downstream receives images found on every crawled document
+     * @param maxDepth   how many links away from seeds to go, 0 means only seeds are processed
+     * @param maxPages   total number of documents to process
+     * @param maxInFlight how many documents can be processed concurrently
+     */
+    public CrawlFrontier(UrlDiscoverer discoverer, ImageDiscoveredCallback downstream, int maxDepth, int maxPages, int maxInFlight) {
+        this(discoverer, downstream, maxDepth, maxPages, maxInFlight, null);
+    }
+
+    /**
+     * @param discoverer
+     * @param downstream
+     * @param maxDepth
+     * @param maxPages
+     * @param maxInFlight
+     * @param journal     records enqueued and processed documents and discovered images, can be null
+     */
+    public CrawlFrontier(UrlDiscoverer discoverer, ImageDiscoveredCallback downstream, int maxDepth, int maxPages, int maxInFlight, CrawlJournal journal) {
+        this.discoverer = discoverer;
+        this.downstream = downstream;
+        this.maxDepth = maxDepth;
+        this.maxPages = maxPages;
+        this.maxInFlight = maxInFlight;
+        this.journal = journal;
+        //visited set grows with the crawl, large page limit must not allocate its whole table up front
+        this.visited = new LongFingerprintSet(Math.min(maxPages, INITIAL_VISITED));
+    }
+
+    /**
+     * Starts crawl from given seeds
+     *
+     * @param seeds
+     */
+    public void start(List<URL> seeds) {
+        for (URL seed : seeds) {
+            offer(seed, 0);
+        }
+    }
+
+    /**
+     * Continues crawl recorded by journal - processed documents are not visited again, pending ones are enqueued
+     *
+     * @param state
+     */
+    public void resume(CrawlJournal.State state) {
+        for (URL document : state.getProcessedDocuments()) {
+            if (admitted.get() >= maxPages) {
+                break;
+            }
+            if (visited.add(fingerprint(document))) {
+                admitted.incrementAndGet();
+            }
+        }
+        for (Pair<URL, Integer> document : state.getPendingDocuments()) {
+            offer(document.first, document.second);
+        }
+    }
+
+    /**
+     * Adds document to the frontier, unless it was seen already or limits are reached
+     *
+     * @param url
+     * @param depth
+     * @return true if document was accepted
+     */
+    public boolean offer(URL url, int depth) {
+        if (depth > maxDepth || !isFollowable(url)) {
+            return false;
+        }
+        if (forward(url, depth)) {
+            return false;
+        }
+        if (admitted.get() >= maxPages || !visited.add(fingerprint(url))) {
+            return false;
+        }
+        if (admitted.incrementAndGet() > maxPages) {
+            return false;
+        }
+
+        if (journal != null) {
+            journal.enqueued(url, depth);
+        }
+        pending.incrementAndGet();
+        queue.add(new Entry(url, depth, sequence.getAndIncrement()));
+        dispatch();
+        return true;
+    }
+
+    /**
+     * @return true when no documents are queued or being processed
+     */
+    public boolean isDone() {
+        return pending.get() == 0;
+    }
+
+    /**
+     * @return number of documents accepted so far
+     */
+    public int getAdmitted() {
+        return Math.min(admitted.get(), maxPages);
+    }
+
+    /**
+     * Hands queued documents to discoverer while there is free capacity
+     */
+    protected void dispatch() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight || queue.isEmpty()) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Entry entry = queue.poll();
+            if (entry == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            try {
+                discoverer.discover(Collections.singletonList(entry.url), new DocumentCallback(entry));
+            } catch (RuntimeException e) {
+                //io pool is shut down, document is given up rather than left pending forever; not journaled, so resume retries it
+                new RuntimeException(String.format("Failed to submit document %1$s", entry.url), e).printStackTrace();
+                inFlight.decrementAndGet();
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Hands document over to another crawler, before it is checked against visited documents and page limit
+     *
+     * @param url
+     * @param depth
+     * @return true if document is taken care of elsewhere
+     */
+    protected boolean forward(URL url, int depth) {
+        return false;
+    }
+
+    /**
+     * Fingerprint of url - first 64 bits of the same hash that is used for naming files
+     *
+     * @param url
+     * @return
+     */
+    protected static long fingerprint(URL url) {
+        return ByteBuffer.wrap(DigestUtils.sha256(UrlFetcherImpl.normalise(url))).getLong();
+    }
+
+    /**
+     * Checks if document can be fetched by discoverer
+     *
+     * @param url
+     * @return
+     */
+    protected boolean isFollowable(URL url) {
+        String protocol = url.getProtocol();
+        return "http".equals(protocol) || "https".equals(protocol) || "file".equals(protocol);
+    }
+
+    private class DocumentCallback implements ImageDiscoveredCallback {
+        private final Entry entry;
+
+        DocumentCallback(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void notifyImageDiscovered(URL document, String imageSrc) {
+            if (journal != null) {
+                journal.discovered(document, imageSrc);
+            }
+            downstream.notifyImageDiscovered(document, imageSrc);
+        }
+
+        @Override
+        public void notifyLinkDiscovered(URL document, String href) {
+            if (entry.depth >= maxDepth || href.isEmpty()) {
+                return;
+            }
+            try {
+                offer(new URL(href), entry.depth + 1);
+            } catch (MalformedURLException e) {
+                //not something we can follow
+            }
+        }
+
+        @Override
+        public void notifyDocumentProcessed(URL document) {
+            if (journal != null) {
+                journal.processed(document);
+            }
+            inFlight.decrementAndGet();
+            pending.decrementAndGet();
+            dispatch();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.izapolsky.crawler;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only log of crawl progress, replayed by next run to skip work which was completed already.
+ * <p>
+ * One entry per line, tab separated: type followed by its fields -
+ * <ul>
+ * <li>Q depth document - document was enqueued</li>
+ * <li>D document - document was parsed, all its images and links were passed on</li>
+ * <li>I document image - image was discovered</li>
+ * <li>F image status - image download finished</li>
+ * <li>S file - new image was stored</li>
+ * <li>T file - thumbnails of stored image were generated</li>
+ * </ul>
+ * Entries are buffered, so a crash loses the last few of them - their work is simply done again. Entry torn by a crash
+ * is dropped when journal is opened again, so the next entry does not get appended to its remains.
+ */
+public class CrawlJournal implements Closeable {
+
+    public static final String FILE_NAME = "crawl.journal";
+
+    private static final char ENQUEUED = 'Q';
+    private static final char PROCESSED = 'D';
+    private static final char DISCOVERED = 'I';
+    private static final char FETCHED = 'F';
+    private static final char STORED = 'S';
+    private static final char THUMBNAILED = 'T';
+    private static final String SEPARATOR = "\t";
+    private static final Pattern DEPTH = Pattern.compile("\\d+");
+
+    //statuses after which image has to be tried again by next run
+    private static final Set<String> INCOMPLETE_STATUSES = new HashSet<>(Arrays.asList(UrlFetcher.SC_SKIPPED_CONCURRENCY,
+            UrlFetcher.SC_IO_ERROR, UrlFetcher.SC_GENERIC_ERROR, UrlFetcher.SC_SKIPPED_DUPLICATE, UrlFetcher.SC_CIRCUIT_OPEN));
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Writer writer;
+
+    /**
+     * Opens journal in given directory for appending
+     *
+     * @param outputDir
+     * @throws IOException
+     */
+    public CrawlJournal(File outputDir) throws IOException {
+        File file = new File(outputDir, FILE_NAME);
+        dropTornTail(file);
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8));
+    }
+
+    public void enqueued(URL document, int depth) {
+        append(ENQUEUED, String.valueOf(depth), document.toString());
+    }
+
+    public void processed(URL document) {
+        append(PROCESSED, document.toString());
+    }
+
+    public void discovered(URL document, String image) {
+        append(DISCOVERED, document.toString(), image);
+    }
+
+    /**
+     * Records final status of image download, duplicates are not recorded as they say nothing about the image
+     *
+     * @param image
+     * @param status
+     */
+    public void fetched(String image, String status) {
+        if (!UrlFetcher.SC_SKIPPED_DUPLICATE.equals(status)) {
+            append(FETCHED, image, status);
+        }
+    }
+
+    public void stored(File file) {
+        append(STORED, file.getAbsolutePath());
+    }
+
+    public void thumbnailed(File file) {
+        append(THUMBNAILED, file.getAbsolutePath());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Reads journal left by previous runs
+     *
+     * @param outputDir
+     * @return empty state if there is no journal
+     * @throws IOException
+     */
+    public static State replay(File outputDir) throws IOException {
+        File file = new File(outputDir, FILE_NAME);
+        State result = new State();
+        if (!file.isFile()) {
+            result.fetched = new LongFingerprintSet(1);
+            return result;
+        }
+
+        //first pass sizes fingerprint set, second one fills it, third one collects what is left to do
+        int[] counts = new int[2];
+        read(file, fields -> {
+            if (fields[0].charAt(0) == FETCHED) {
+                counts[0]++;
+            } else if (fields[0].charAt(0) == THUMBNAILED) {
+                counts[1]++;
+            }
+        });
+
+        result.fetched = new LongFingerprintSet(Math.max(1, counts[0]));
+        LongFingerprintSet thumbnailed = new LongFingerprintSet(Math.max(1, counts[1]));
+        Set<String> processed = new HashSet<>();
+        read(file, fields -> {
+            switch (fields[0].charAt(0)) {
+                case FETCHED:
+                    if (!INCOMPLETE_STATUSES.contains(fields[2]) && !RetryEngine.TRANSIENT_STATUSES.contains(fields[2])) {
+                        result.fetched.add(fingerprint(fields[1]));
+                    }
+                    break;
+                case PROCESSED:
+                    processed.add(fields[1]);
+                    break;
+                case THUMBNAILED:
+                    thumbnailed.add(fingerprint(fields[1]));
+                    break;
+                default:
+            }
+        });
+
+        Set<String> pendingDocuments = new HashSet<>();
+        Set<String> pendingImages = new HashSet<>();
+        read(file, fields -> {
+            switch (fields[0].charAt(0)) {
+                case ENQUEUED:
+                    if (!processed.contains(fields[2]) && pendingDocuments.add(fields[2])) {
+                        result.pendingDocuments.add(new Pair<>(toUrl(fields[2]), Integer.parseInt(fields[1])));
+                    }
+                    break;
+                case DISCOVERED:
+                    if (!result.isFetched(fields[2]) && pendingImages.add(fields[2])) {
+                        result.pendingImages.add(new Pair<>(toUrl(fields[1]), fields[2]));
+                    }
+                    break;
+                case STORED:
+                    if (!thumbnailed.contains(fingerprint(fields[1]))) {
+                        result.pendingThumbnails.add(new File(fields[1]));
+                    }
+                    break;
+                default:
+            }
+        });
+        for (String document : processed) {
+            result.processedDocuments.add(toUrl(document));
+        }
+        return result;
+    }
+
+    /**
+     * Work recorded by previous runs
+     */
+    public static class State {
+        private final List<URL> processedDocuments = new ArrayList<>();
+        private final List<Pair<URL, Integer>> pendingDocuments = new ArrayList<>();
+        private final List<Pair<URL, String>> pendingImages = new ArrayList<>();
+        private final List<File> pendingThumbnails = new ArrayList<>();
+        private LongFingerprintSet fetched;
+
+        /**
+         * @return documents which don't need to be parsed again
+         */
+        public List<URL> getProcessedDocuments() {
+            return processedDocuments;
+        }
+
+        /**
+         * @return documents which were enqueued, but not parsed, with their depth
+         */
+        public List<Pair<URL, Integer>> getPendingDocuments() {
+            return pendingDocuments;
+        }
+
+        /**
+         * @return images which were discovered, but not downloaded, with documents referring to them
+         */
+        public List<Pair<URL, String>> getPendingImages() {
+            return pendingImages;
+        }
+
+        /**
+         * @return stored images which don't have thumbnails yet
+         */
+        public List<File> getPendingThumbnails() {
+            return pendingThumbnails;
+        }
+
+        /**
+         * @param image
+         * @return true if image download was completed by previous run
+         */
+        public boolean isFetched(String image) {
+            return fetched.contains(fingerprint(image));
+        }
+    }
+
+    private synchronized void append(char type, String... fields) {
+        try {
+            writer.write(type);
+            for (String field : fields) {
+                writer.write(SEPARATOR);
+                writer.write(escape(field));
+            }
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to write journal entry %1$s", type), e);
+        }
+    }
+
+    private static void read(File file, EntryHandler handler) throws IOException {
+        boolean tornTail;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            tornTail = raf.length() > 0 && readLast(raf) != '\n';
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                //last line without line end was torn by crash
+                if (next != null || !tornTail) {
+                    String[] fields = line.split(SEPARATOR, -1);
+                    if (isValid(fields)) {
+                        for (int i = 1; i < fields.length; i++) {
+                            fields[i] = unescape(fields[i]);
+                        }
+                        handler.handle(fields);
+                    }
+                }
+                line = next;
+            }
+        }
+    }
+
+    private static int readLast(RandomAccessFile raf) throws IOException {
+        raf.seek(raf.length() - 1);
+        return raf.read();
+    }
+
+    /**
+     * Cuts journal back to its last line end, removing what is left of an entry torn by crash
+     *
+     * @param file
+     * @throws IOException
+     */
+    private static void dropTornTail(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long end = raf.length();
+            byte[] buffer = new byte[8192];
+            while (end > 0) {
+                int length = (int) Math.min(buffer.length, end);
+                raf.seek(end - length);
+                raf.readFully(buffer, 0, length);
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer[i] == '\n') {
+                        raf.setLength(end - length + i + 1);
+                        return;
+                    }
+                }
+                end -= length;
+            }
+            raf.setLength(0);
+        }
+    }
+
+    /**
+     * Checks that entry has the fields of its type, lines mangled by crash of an older version are skipped
+     *
+     * @param fields
+     * @return
+     */
+    private static boolean isValid(String[] fields) {
+        if (fields[0].length() != 1) {
+            return false;
+        }
+        switch (fields[0].charAt(0)) {
+            case ENQUEUED:
+                return fields.length == 3 && DEPTH.matcher(fields[1]).matches();
+            case DISCOVERED:
+            case FETCHED:
+                return fields.length == 3;
+            case PROCESSED:
+            case STORED:
+            case THUMBNAILED:
+                return fields.length == 2;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Urls hardly ever contain separators, if they do they are percent-encoded, as is percent sign itself so that
+     * {@link #unescape(String)} gets back exactly the same field
+     *
+     * @param field
+     * @return
+     */
+    private static String escape(String field) {
+        return field.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    /**
+     * Reverses {@link #escape(String)}, other percent-encoded sequences were not written by it and are left as they are
+     *
+     * @param field
+     * @return
+     */
+    private static String unescape(String field) {
+        if (field.indexOf('%') < 0) {
+            return field;
+        }
+        StringBuilder result = new StringBuilder(field.length());
+        int i = 0;
+        while (i < field.length()) {
+            char decoded = i + 2 < field.length() && field.charAt(i) == '%' ? decode(field.substring(i + 1, i + 3)) : 0;
+            if (decoded != 0) {
+                result.append(decoded);
+                i += 3;
+            } else {
+                result.append(field.charAt(i));
+                i++;
+            }
+        }
+        return result.toString();
+    }
+
+    private static char decode(String code) {
+        switch (code) {
+            case "25":
+                return '%';
+            case "09":
+                return '\t';
+            case "0A":
+                return '\n';
+            case "0D":
+                return '\r';
+            default:
+                return 0;
+        }
+    }
+
+    private static long fingerprint(String image) {
+        return HASH.hashString(image, Charsets.UTF_8).asLong();
+    }
+
+    private static URL toUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(String.format("Journal holds invalid url %1$s", url), e);
+        }
+    }
+
+    private interface EntryHandler {
+        void handle(String[] fields);
+    }
+}
@@ -0,0 +1,117 @@
+package com.izapolsky.crawler;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Window of downloads in flight shared by crawls running at once. Every crawl holds at most its even share of the
+ * window, so crawl finding many images can not starve one started after it - share of each crawl shrinks as others
+ * join and grows back as they leave.
+ */
+public class DownloadShares {
+
+    private final int size;
+    private final ReentrantLock lock = new ReentrantLock();
+    //signalled whenever permit is given back or crawl joins or leaves
+    private final Condition changed = lock.newCondition();
+    private int crawls;
+    private int held;
+
+    /**
+     * Permits of single crawl, given up once crawl is over
+     */
+    public class Share implements AutoCloseable {
+        private int held;
+        private boolean closed;
+
+        /**
+         * Waits until crawl is within its share and whole window is not taken
+         */
+        public void acquire() {
+            lock.lock();
+            try {
+                while (held >= limit() || DownloadShares.this.held >= size) {
+                    changed.awaitUninterruptibly();
+                }
+                held++;
+                DownloadShares.this.held++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release() {
+            lock.lock();
+            try {
+                held--;
+                DownloadShares.this.held--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Leaves the window, permits still held are given back as their downloads complete
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    crawls--;
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getHeld() {
+            lock.lock();
+            try {
+                return held;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param size downloads in flight of all crawls together
+     */
+    public DownloadShares(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(String.format("Window of %1$s downloads", size));
+        }
+        this.size = size;
+    }
+
+    /**
+     * Starts crawl's hold of the window
+     *
+     * @return
+     */
+    public Share join() {
+        lock.lock();
+        try {
+            crawls++;
+            return new Share();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return permits single crawl may hold now, window is rounded up so none of it is left unused
+     */
+    public int limit() {
+        lock.lock();
+        try {
+            return (size + Math.max(crawls, 1) - 1) / Math.max(crawls, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving bodies to disk - they are written to temporary file first and renamed into place once complete, so a file
+ * under final name is never partial
+ */
+public final class FileTransfers {
+
+    public static final long UNKNOWN_LENGTH = -1;
+    //bytes handed to single transferFrom call
+    private static final long CHUNK = 1 << 20;
+
+    private FileTransfers() {
+    }
+
+    /**
+     * Streams body into the file, through channel transfer rather than through heap buffer of the caller
+     *
+     * @param body   closed by caller
+     * @param target replaced if exists
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public static long copy(InputStream body, File target) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(body);
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = out.transferFrom(source, position, CHUNK)) > 0) {
+                position += transferred;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Copies local file, letting file system do it the cheapest way it knows
+     *
+     * @param source
+     * @param target replaced if exists
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public static long copy(File source, File target) throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target.length();
+    }
+
+    /**
+     * Makes complete temporary file visible under its final name
+     *
+     * @param complete
+     * @param target
+     * @throws IOException
+     */
+    public static void commit(File complete, File target) throws IOException {
+        try {
+            Files.move(complete.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(complete.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Fails if body turned out to be shorter or longer than announced
+     *
+     * @param expected {@link #UNKNOWN_LENGTH} skips the check
+     * @param actual
+     * @throws IOException
+     */
+    public static void checkLength(long expected, long actual) throws IOException {
+        if (expected != UNKNOWN_LENGTH && expected != actual) {
+            throw new IOException(String.format("Body has %1$s bytes, %2$s were announced", actual, expected));
+        }
+    }
+
+    /**
+     * Wraps body so that reading it to the end fails unless announced number of bytes was read
+     *
+     * @param body
+     * @param expected {@link #UNKNOWN_LENGTH} skips the check
+     * @return
+     */
+    public static InputStream expectLength(InputStream body, long expected) {
+        if (expected == UNKNOWN_LENGTH) {
+            return body;
+        }
+        return new ProxyInputStream(body) {
+            private long read;
+
+            @Override
+            protected void afterRead(int n) throws IOException {
+                if (n < 0) {
+                    checkLength(expected, read);
+                } else {
+                    read += n;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param bytes
+     * @param nanos
+     * @return throughput in KB/s
+     */
+    public static long kilobytesPerSecond(long bytes, long nanos) {
+        //in double, running totals of long crawls overflow long once multiplied by nanos per second
+        return nanos <= 0 ? 0 : (long) (bytes / 1024.0 * TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+}
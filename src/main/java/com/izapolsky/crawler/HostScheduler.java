@@ -0,0 +1,341 @@
+package com.izapolsky.crawler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Politeness scheduler - keeps queue of tasks per host and hands them to executor round-robin across hosts, with limit
+ * of concurrent tasks and minimal delay between task starts for every host. Task either runs to its end on executor, or
+ * just starts non-blocking work and holds its slot until that work completes.
+ */
+public class HostScheduler {
+
+    public static final long MAX_BACK_OFF_MS = TimeUnit.MINUTES.toMillis(1);
+    public static final long INITIAL_BACK_OFF_MS = 500;
+
+    /**
+     * Per-host state
+     */
+    private static class HostQueue {
+        final String host;
+        final Deque<Task> tasks = new ArrayDeque<>();
+        int active;
+        long delayNanos;
+        long nextStartNanos;
+        boolean ready;
+        boolean timerScheduled;
+
+        HostQueue(String host, long delayNanos) {
+            this.host = host;
+            this.delayNanos = delayNanos;
+        }
+    }
+
+    /**
+     * Queued task, calls back once it gives up its slot
+     */
+    private interface Task {
+        void start(Runnable done);
+    }
+
+    private final Executor executor;
+    private final int maxConcurrency;
+    private final int perHostLimit;
+    private final long minDelayNanos;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "host-scheduler-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    //executor might run task in the calling thread, timer hands tasks over from here so it never gets stuck behind one
+    private final ExecutorService handOff = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "host-scheduler-hand-off");
+        t.setDaemon(true);
+        return t;
+    });
+
+    //all state below is guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private final Deque<HostQueue> ready = new ArrayDeque<>();
+    private int running;
+
+    /**
+     * @param executor       executes tasks once their turn comes
+     * @param maxConcurrency total number of tasks handed to executor at once, should match its thread count
+     * @param perHostLimit   number of concurrent tasks for single host
+     * @param minDelayMs     minimal time between starts of two tasks for the same host
+     */
+    public HostScheduler(Executor executor, int maxConcurrency, int perHostLimit, long minDelayMs) {
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.perHostLimit = perHostLimit;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMs);
+    }
+
+    /**
+     * Queues task for given host
+     *
+     * @param host
+     * @param task
+     * @param <T>
+     * @return completes once task has run
+     */
+    public <T> CompletableFuture<T> submit(String host, Callable<T> task) {
+        CompletableFuture<T> completion = new CompletableFuture<>();
+        FutureTask<T> result = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                try {
+                    completion.complete(get());
+                } catch (ExecutionException e) {
+                    completion.completeExceptionally(e.getCause());
+                } catch (CancellationException | InterruptedException e) {
+                    completion.cancel(false);
+                }
+            }
+        };
+        enqueue(host, done -> {
+            try {
+                result.run();
+            } finally {
+                done.run();
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Queues task which starts non-blocking work, host slot is held until the work completes rather than until task
+     * returns
+     *
+     * @param host
+     * @param task returns completion of the work it started
+     * @param <T>
+     * @return completes once the work is over
+     */
+    public <T> CompletableFuture<T> submitAsync(String host, Callable<CompletableFuture<T>> task) {
+        CompletableFuture<T> completion = new CompletableFuture<>();
+        enqueue(host, done -> {
+            CompletableFuture<T> started;
+            try {
+                started = task.call();
+            } catch (Throwable e) {
+                done.run();
+                completion.completeExceptionally(e);
+                return;
+            }
+            started.whenComplete((value, e) -> {
+                done.run();
+                if (e != null) {
+                    completion.completeExceptionally(e);
+                } else {
+                    completion.complete(value);
+                }
+            });
+        });
+        return completion;
+    }
+
+    private void enqueue(String host, Task task) {
+        List<Runnable> toRun;
+        lock.lock();
+        try {
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                queue = new HostQueue(host, minDelayNanos);
+                hosts.put(host, queue);
+            }
+            queue.tasks.add(task);
+            markReady(queue);
+            toRun = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        run(toRun);
+    }
+
+    /**
+     * Host signalled that it is overloaded (e.g. 429) - doubles delay between its requests
+     *
+     * @param host
+     */
+    public void backOff(String host) {
+        backOff(host, -1);
+    }
+
+    /**
+     * Same as {@link #backOff(String)}, next request also waits for time host asked for
+     *
+     * @param host
+     * @param retryAfterMs value of Retry-After, negative if not sent
+     */
+    public void backOff(String host, long retryAfterMs) {
+        lock.lock();
+        try {
+            HostQueue queue = hosts.get(host);
+            if (queue != null) {
+                long doubled = Math.max(queue.delayNanos * 2, TimeUnit.MILLISECONDS.toNanos(INITIAL_BACK_OFF_MS));
+                queue.delayNanos = Math.min(doubled, TimeUnit.MILLISECONDS.toNanos(MAX_BACK_OFF_MS));
+                long wait = Math.max(queue.delayNanos, TimeUnit.MILLISECONDS.toNanos(Math.min(retryAfterMs, MAX_BACK_OFF_MS)));
+                queue.nextStartNanos = System.nanoTime() + wait;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Host served request fine - brings delay back to configured one
+     *
+     * @param host
+     */
+    public void recover(String host) {
+        lock.lock();
+        try {
+            HostQueue queue = hosts.get(host);
+            if (queue != null) {
+                queue.delayNanos = minDelayNanos;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for their turn
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            int result = 0;
+            for (HostQueue queue : hosts.values()) {
+                result += queue.tasks.size();
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        handOff.shutdown();
+    }
+
+    /**
+     * Picks tasks to run, has to be called with lock held
+     *
+     * @return
+     */
+    private List<Runnable> dispatch() {
+        List<Runnable> toRun = new ArrayList<>();
+        long now = System.nanoTime();
+        while (running < maxConcurrency && !ready.isEmpty()) {
+            HostQueue queue = ready.poll();
+            queue.ready = false;
+            if (queue.tasks.isEmpty() || queue.active >= perHostLimit) {
+                //will become ready again once one of its tasks completes or new one arrives
+                continue;
+            }
+
+            long wait = queue.nextStartNanos - now;
+            if (wait > 0) {
+                if (!queue.timerScheduled) {
+                    queue.timerScheduled = true;
+                    timer.schedule(() -> wakeUp(queue), wait, TimeUnit.NANOSECONDS);
+                }
+                continue;
+            }
+
+            Task task = queue.tasks.poll();
+            queue.active++;
+            queue.nextStartNanos = now + queue.delayNanos;
+            running++;
+            markReady(queue);
+            toRun.add(() -> task.start(() -> completed(queue)));
+        }
+        return toRun;
+    }
+
+    private void wakeUp(HostQueue queue) {
+        List<Runnable> toRun;
+        lock.lock();
+        try {
+            queue.timerScheduled = false;
+            markReady(queue);
+            toRun = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        if (!toRun.isEmpty()) {
+            try {
+                handOff.execute(() -> run(toRun));
+            } catch (RejectedExecutionException e) {
+                //scheduler is shut down
+                run(toRun);
+            }
+        }
+    }
+
+    private void completed(HostQueue queue) {
+        List<Runnable> toRun;
+        lock.lock();
+        try {
+            queue.active--;
+            running--;
+            boolean idle = queue.tasks.isEmpty() && queue.active == 0 && !queue.timerScheduled;
+            //host state has to outlive pending delay, otherwise next task would start too early
+            if (idle && queue.delayNanos == minDelayNanos && queue.nextStartNanos - System.nanoTime() <= 0) {
+                hosts.remove(queue.host);
+                ready.remove(queue);
+                queue.ready = false;
+            } else {
+                markReady(queue);
+            }
+            toRun = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        run(toRun);
+    }
+
+    /**
+     * Puts host at the end of round-robin line, if it has anything to run
+     *
+     * @param queue
+     */
+    private void markReady(HostQueue queue) {
+        if (!queue.ready && !queue.tasks.isEmpty() && queue.active < perHostLimit) {
+            queue.ready = true;
+            ready.add(queue);
+        }
+    }
+
+    /**
+     * Tasks are handed to executor outside of lock, as executor might decide to run them in the calling thread
+     *
+     * @param toRun
+     */
+    private void run(List<Runnable> toRun) {
+        for (Runnable runnable : toRun) {
+            executor.execute(runnable);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.izapolsky.crawler;
+
+import java.net.URL;
+
+/**
+ * Callback interface to notify that image reference was found on a document
+ */
+public interface ImageDiscoveredCallback {
+    /**
+     * Called from discoverer as soon as image is found, before the rest of document is processed
+     * @param document
+     * @param imageSrc
+     */
+    void notifyImageDiscovered(URL document, String imageSrc);
+
+    /**
+     * Called from discoverer for every outgoing link of a document
+     * @param document
+     * @param href absolute link target
+     */
+    default void notifyLinkDiscovered(URL document, String href) {
+    }
+
+    /**
+     * Called from discoverer once document is processed, whether it succeeded or not
+     * @param document
+     */
+    default void notifyDocumentProcessed(URL document) {
+    }
+}
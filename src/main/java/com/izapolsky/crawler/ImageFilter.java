@@ -0,0 +1,159 @@
+package com.izapolsky.crawler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drops junk images - tracking pixels, spacers, error pages served as images - before they cost bandwidth or cpu.
+ * Responses are checked by content type and length first, then dimensions are read from the first bytes of the body.
+ */
+public class ImageFilter {
+
+    public static final int UNLIMITED = 0;
+
+    private final int minWidth;
+    private final int minHeight;
+    private final long minBytes;
+    private final long maxBytes;
+    //lower case prefixes, empty accepts any
+    private final List<String> contentTypes = new ArrayList<>();
+
+    /**
+     * @param minWidth     narrower images are dropped
+     * @param minHeight    lower images are dropped
+     * @param minBytes     smaller bodies are dropped when their length is announced
+     * @param maxBytes     larger bodies are dropped, {@link #UNLIMITED} to accept any
+     * @param contentTypes prefixes of accepted content types, responses without content type are always accepted
+     */
+    public ImageFilter(int minWidth, int minHeight, long minBytes, long maxBytes, List<String> contentTypes) {
+        this.minWidth = minWidth;
+        this.minHeight = minHeight;
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        for (String contentType : contentTypes) {
+            this.contentTypes.add(contentType.trim().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Checks response before its body is read
+     *
+     * @param contentType   null if not known
+     * @param contentLength negative if not known
+     * @return reason of rejection, null if response is acceptable
+     */
+    public String rejectResponse(String contentType, long contentLength) {
+        if (contentType != null && !contentTypes.isEmpty()) {
+            String normalised = contentType.trim().toLowerCase(Locale.ROOT);
+            boolean accepted = false;
+            for (String prefix : contentTypes) {
+                if (normalised.startsWith(prefix)) {
+                    accepted = true;
+                    break;
+                }
+            }
+            if (!accepted) {
+                return String.format("content type %1$s", contentType);
+            }
+        }
+        if (contentLength >= 0 && contentLength < minBytes) {
+            return String.format("%1$s bytes", contentLength);
+        }
+        if (maxBytes != UNLIMITED && contentLength > maxBytes) {
+            return String.format("%1$s bytes", contentLength);
+        }
+        return null;
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @return reason of rejection, null if image is large enough
+     */
+    public String rejectDimensions(int width, int height) {
+        if (width < minWidth || height < minHeight) {
+            return String.format("%1$sx%2$s pixels", width, height);
+        }
+        return null;
+    }
+
+    /**
+     * Reads just enough of the body to find image dimensions
+     *
+     * @param body
+     * @return body with read bytes put back in front of it, null if image is too small
+     * @throws IOException
+     */
+    public InputStream probe(InputStream body) throws IOException {
+        byte[] header = new byte[ImageProbe.MAX_PROBE_BYTES];
+        int length = 0;
+        //reads come in network sized pieces, header is checked after each of them
+        while (length < header.length) {
+            int read = body.read(header, length, header.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            if (isSettled(header, length)) {
+                break;
+            }
+        }
+        if (rejectHeader(header, length) != null) {
+            return null;
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(header, 0, length), body);
+    }
+
+    /**
+     * Tells if more bytes of the body can change outcome of {@link #rejectHeader(byte[], int)}
+     *
+     * @param header first bytes of the body
+     * @param length number of valid bytes in header
+     * @return true once dimensions are known, format is not known or header is full
+     */
+    public static boolean isSettled(byte[] header, int length) {
+        if (length >= header.length || ImageProbe.dimensions(header, length) != null) {
+            return true;
+        }
+        //left for image io to sort out
+        return length >= 12 && !ImageProbe.isKnownFormat(header, length);
+    }
+
+    /**
+     * Checks dimensions found in the first bytes of the body
+     *
+     * @param header
+     * @param length number of valid bytes in header
+     * @return reason of rejection, null if image is large enough or its dimensions are not known
+     */
+    public String rejectHeader(byte[] header, int length) {
+        int[] dimensions = ImageProbe.dimensions(header, length);
+        return dimensions == null ? null : rejectDimensions(dimensions[0], dimensions[1]);
+    }
+
+    /**
+     * Checks dimensions of image already on disk
+     *
+     * @param file
+     * @return reason of rejection, null if image is large enough or its format is not known
+     * @throws IOException
+     */
+    public String rejectFile(File file) throws IOException {
+        byte[] header = new byte[ImageProbe.MAX_PROBE_BYTES];
+        int length = 0;
+        try (InputStream is = new FileInputStream(file)) {
+            int read;
+            while (length < header.length && (read = is.read(header, length, header.length - length)) >= 0) {
+                length += read;
+            }
+        }
+        return rejectHeader(header, length);
+    }
+}
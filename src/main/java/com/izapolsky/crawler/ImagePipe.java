@@ -0,0 +1,59 @@
+package com.izapolsky.crawler;
+
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Bounded hand-off between discovery and fetching. Producers block when consumer falls behind.
+ */
+public class ImagePipe implements ImageDiscoveredCallback {
+
+    public static final long POLL_INTERVAL_MS = 50;
+
+    private final BlockingQueue<Pair<URL, String>> queue;
+
+    public ImagePipe(int capacity) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void notifyImageDiscovered(URL document, String imageSrc) {
+        try {
+            queue.put(new Pair<>(document, imageSrc));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(String.format("Interrupted while queueing %1$s from %2$s", imageSrc, document), e);
+        }
+    }
+
+    /**
+     * Hands queued images to consumer until producers are done and nothing is left in the queue
+     *
+     * @param producersDone has to return true only once no more images will be queued
+     * @param consumer
+     * @return number of images drained
+     */
+    public int drain(BooleanSupplier producersDone, Consumer<Pair<URL, String>> consumer) {
+        int drained = 0;
+        try {
+            while (true) {
+                //producers have to be checked before the queue, otherwise last images might be lost
+                boolean done = producersDone.getAsBoolean();
+                Pair<URL, String> image = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (image != null) {
+                    consumer.accept(image);
+                    drained++;
+                } else if (done) {
+                    return drained;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while draining images", e);
+        }
+    }
+}
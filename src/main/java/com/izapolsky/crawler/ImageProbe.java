@@ -0,0 +1,137 @@
+package com.izapolsky.crawler;
+
+/**
+ * Reads image dimensions from the first bytes of PNG, GIF, JPEG and WebP files, without decoding any pixels
+ */
+public final class ImageProbe {
+
+    //JPEG frame header usually comes after EXIF and ICC segments, which can be large
+    public static final int MAX_PROBE_BYTES = 64 * 1024;
+
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private ImageProbe() {
+    }
+
+    /**
+     * Checks if data starts like one of known image formats
+     *
+     * @param data
+     * @param length number of valid bytes in data
+     * @return false if more bytes can not help
+     */
+    public static boolean isKnownFormat(byte[] data, int length) {
+        if (length >= PNG.length && startsWith(data, PNG)) {
+            return true;
+        }
+        if (length >= 6 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8' && data[5] == 'a') {
+            return true;
+        }
+        if (length >= 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            return true;
+        }
+        return length >= 12 && data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P';
+    }
+
+    /**
+     * @param data
+     * @param length number of valid bytes in data
+     * @return width and height, null if format is not known or header is not complete yet
+     */
+    public static int[] dimensions(byte[] data, int length) {
+        if (!isKnownFormat(data, length)) {
+            return null;
+        }
+        switch (data[0]) {
+            case (byte) 0x89:
+                //IHDR is always first chunk
+                return length < 24 ? null : new int[]{int32(data, 16), int32(data, 20)};
+            case 'G':
+                return length < 10 ? null : new int[]{uint16le(data, 6), uint16le(data, 8)};
+            case 'R':
+                return webp(data, length);
+            default:
+                return jpeg(data, length);
+        }
+    }
+
+    private static int[] jpeg(byte[] data, int length) {
+        int position = 2;
+        while (position + 4 <= length) {
+            if ((data[position] & 0xff) != 0xff) {
+                //lost sync, file is damaged
+                return null;
+            }
+            int marker = data[position + 1] & 0xff;
+            if (marker == 0xff) {
+                //fill byte
+                position++;
+                continue;
+            }
+            if (marker == 0xd8 || marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                //markers without segment
+                position += 2;
+                continue;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                //start of frame: length, precision, height, width
+                return position + 9 > length ? null : new int[]{uint16(data, position + 7), uint16(data, position + 5)};
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                //end of image or start of scan before any frame header
+                return null;
+            }
+            position += 2 + uint16(data, position + 2);
+        }
+        return null;
+    }
+
+    private static int[] webp(byte[] data, int length) {
+        if (length < 30) {
+            return null;
+        }
+        if (data[12] == 'V' && data[13] == 'P' && data[14] == '8') {
+            switch (data[15]) {
+                case ' ':
+                    //lossy key frame, 14 bit dimensions after start code
+                    return new int[]{uint16le(data, 26) & 0x3fff, uint16le(data, 28) & 0x3fff};
+                case 'L':
+                    //lossless, 14 bit dimensions minus one after signature byte
+                    int bits = uint16le(data, 21) | (uint16le(data, 23) << 16);
+                    return new int[]{(bits & 0x3fff) + 1, ((bits >>> 14) & 0x3fff) + 1};
+                case 'X':
+                    //extended, 24 bit canvas dimensions minus one
+                    return new int[]{uint24le(data, 24) + 1, uint24le(data, 27) + 1};
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int int32(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int uint16(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static int uint16le(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+    }
+
+    private static int uint24le(byte[] data, int offset) {
+        return uint16le(data, offset) | ((data[offset + 2] & 0xff) << 16);
+    }
+}
@@ -0,0 +1,169 @@
+package com.izapolsky.crawler;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Outcome of single image going through the pipeline - status of its download, what was stored and how long it took,
+ * thumbnails made of it and failure of any stage. Results are immutable, every stage completes with a copy carrying
+ * its own part.
+ */
+public class ImageResult {
+
+    public static final Set<String> SKIPPED_STATUSES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            UrlFetcher.SC_SKIPPED_CONCURRENCY, UrlFetcher.SC_SKIPPED_DUPLICATE, UrlFetcher.SC_SKIPPED_FRESH, UrlFetcher.SC_SKIPPED_FILTERED)));
+    public static final Set<String> ERROR_STATUSES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            UrlFetcher.SC_IO_ERROR, UrlFetcher.SC_GENERIC_ERROR, UrlFetcher.SC_CIRCUIT_OPEN)));
+
+    private final URL document;
+    private final String image;
+    private final String status;
+    private final File file;
+    private final boolean newContent;
+    private final long bytes;
+    private final long transferMicros;
+    private final long elapsedMicros;
+    private final List<File> thumbnails;
+    private final long thumbnailMicros;
+    private final Throwable failure;
+
+    /**
+     * @param image          page the image was found on, if known, and image url
+     * @param status         one of statuses of {@link UrlFetcher} or http status
+     * @param file           where body was stored, null if nothing was transferred
+     * @param newContent     true if body was not stored before, so it needs thumbnails
+     * @param bytes          size of stored body
+     * @param transferMicros time from request start to body being stored
+     * @param elapsedMicros  time from download being asked for to its completion, including waiting and retries
+     */
+    public ImageResult(Pair<URL, String> image, String status, File file, boolean newContent, long bytes, long transferMicros, long elapsedMicros) {
+        this(image.first, image.second, status, file, newContent, bytes, transferMicros, elapsedMicros, Collections.emptyList(), 0, null);
+    }
+
+    private ImageResult(URL document, String image, String status, File file, boolean newContent, long bytes, long transferMicros, long elapsedMicros,
+                        List<File> thumbnails, long thumbnailMicros, Throwable failure) {
+        this.document = document;
+        this.image = image;
+        this.status = status;
+        this.file = file;
+        this.newContent = newContent;
+        this.bytes = bytes;
+        this.transferMicros = transferMicros;
+        this.elapsedMicros = elapsedMicros;
+        this.thumbnails = thumbnails;
+        this.thumbnailMicros = thumbnailMicros;
+        this.failure = failure;
+    }
+
+    /**
+     * @param image
+     * @param failure
+     * @return result of image which could not be downloaded because of unexpected failure
+     */
+    public static ImageResult failed(Pair<URL, String> image, Throwable failure) {
+        return new ImageResult(image.first, image.second, UrlFetcher.SC_GENERIC_ERROR, null, false, 0, 0, 0, Collections.emptyList(), 0, failure);
+    }
+
+    /**
+     * @param generated
+     * @param micros    time thumbnails took, including wait for thumbnail thread
+     * @return copy with thumbnails made of the image
+     */
+    public ImageResult withThumbnails(List<File> generated, long micros) {
+        return new ImageResult(document, image, status, file, newContent, bytes, transferMicros, elapsedMicros,
+                Collections.unmodifiableList(generated), micros, failure);
+    }
+
+    /**
+     * @param stageFailure
+     * @return copy recording failure of later stage, status of the download stays
+     */
+    public ImageResult withFailure(Throwable stageFailure) {
+        return new ImageResult(document, image, status, file, newContent, bytes, transferMicros, elapsedMicros, thumbnails, thumbnailMicros, stageFailure);
+    }
+
+    /**
+     * @return page the image was found on, null if not known
+     */
+    public URL getDocument() {
+        return document;
+    }
+
+    public String getImage() {
+        return image;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return where body was stored, null if nothing was transferred
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isNewContent() {
+        return newContent;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getTransferMicros() {
+        return transferMicros;
+    }
+
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    public List<File> getThumbnails() {
+        return thumbnails;
+    }
+
+    public long getThumbnailMicros() {
+        return thumbnailMicros;
+    }
+
+    /**
+     * @return failure of download or of later stage, null if there was none
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if image was not downloaded on purpose - seen before, fresh, filtered or taken by another process
+     */
+    public boolean isSkipped() {
+        return SKIPPED_STATUSES.contains(status);
+    }
+
+    /**
+     * @return true if any stage failed or server answered with an error
+     */
+    public boolean isFailed() {
+        if (failure != null || ERROR_STATUSES.contains(status)) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(status) >= 400;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%1$s : %2$s, %3$s bytes in %4$s us, %5$s thumbnails in %6$s us%7$s", image, status, bytes, elapsedMicros, thumbnails.size(),
+                thumbnailMicros, failure == null ? "" : ", failed with " + failure);
+    }
+}
@@ -0,0 +1,404 @@
+package com.izapolsky.crawler;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scales images into int packed pixels. Int packed and byte interleaved sources are read in place, others - indexed,
+ * custom - are converted once into a kept buffer. Destination pixels are kept between calls by target width, so scaling
+ * the same sizes over and over allocates next to nothing.
+ * <p>
+ * Large images can be split into horizontal bands of destination rows, which are scaled in parallel on a fork/join pool
+ * straight into the shared destination.
+ * <p>
+ * Instances are not thread safe. Image returned by {@link #scale(BufferedImage, int)} is overwritten by the next call
+ * with the same width.
+ */
+public class ImageScaler {
+
+    public enum Quality {
+        //single pass, fastest, aliases on large reductions
+        BILINEAR,
+        //halves by 2x2 averages while image is at least twice the target, then bilinear
+        PROGRESSIVE,
+        //every destination pixel averages all source pixels it covers
+        AREA
+    }
+
+    //larger conversion buffers are dropped after use instead of being held by the thread
+    public static final int MAX_POOLED_PIXELS = 4 * 1024 * 1024;
+    //bands are small enough for idle workers to steal, but not so small that splitting costs more than scaling
+    public static final int BANDS_PER_THREAD = 4;
+    public static final int MIN_BAND_ROWS = 16;
+
+    private static final int WEIGHT_BITS = 8;
+    private static final int ONE = 1 << WEIGHT_BITS;
+    private static final ColorModel RGB = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    private static final ColorModel ARGB = ColorModel.getRGBdefault();
+
+    private final Quality quality;
+    //null scales on calling thread only
+    private final ForkJoinPool pool;
+    private final long parallelPixels;
+    private final Map<Integer, BufferedImage> destinations = new HashMap<>();
+    private int[] converted = new int[0];
+    private int[][] halved = {new int[0], new int[0]};
+    private int[] columns = new int[0];
+    private int[] columnWeights = new int[0];
+    private long[] sums = new long[0];
+    //pixels being read, either ints or bytes are set while image is scaled
+    private int[] ints;
+    private byte[] bytes;
+    private int offset;
+    private int stride;
+    private int pixelStride;
+
+    public ImageScaler(Quality quality) {
+        this(quality, null, 0);
+    }
+
+    /**
+     * @param quality
+     * @param pool           runs bands of large images, null to scale every image on calling thread
+     * @param parallelPixels images with fewer pixels are scaled on calling thread
+     */
+    public ImageScaler(Quality quality, ForkJoinPool pool, long parallelPixels) {
+        this.quality = quality;
+        this.pool = pool;
+        this.parallelPixels = parallelPixels;
+    }
+
+    public Quality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Scales image to given width, keeping aspect ratio
+     *
+     * @param image
+     * @param width
+     * @return image of type {@link BufferedImage#TYPE_INT_RGB}, or {@link BufferedImage#TYPE_INT_ARGB} if source has alpha
+     */
+    public BufferedImage scale(BufferedImage image, int width) {
+        int height = Math.max(1, (int) Math.floor((double) image.getHeight() * width / image.getWidth()));
+        boolean alpha = image.getColorModel().hasAlpha();
+        boolean parallel = pool != null && (long) image.getWidth() * image.getHeight() >= parallelPixels;
+        read(image, alpha, parallel);
+        BufferedImage destination = destination(width, height, alpha);
+        int[] dst = pixels(destination);
+
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        if (quality == Quality.PROGRESSIVE) {
+            for (int step = 0; sourceWidth / 2 >= width; step ^= 1) {
+                int fromWidth = sourceWidth;
+                int fromHeight = sourceHeight;
+                int[] to = halved[step];
+                sourceWidth = fromWidth / 2;
+                sourceHeight = Math.max(1, fromHeight / 2);
+                if (to.length < sourceWidth * sourceHeight) {
+                    to = halved[step] = new int[sourceWidth * sourceHeight];
+                }
+                int[] halvedPixels = to;
+                bands(sourceHeight, parallel, (from, until) -> halve(fromWidth, fromHeight, halvedPixels, from, until));
+                read(to, sourceWidth);
+            }
+        }
+        int scaledHeight = sourceHeight;
+        if (quality == Quality.AREA) {
+            areaColumns(sourceWidth, width);
+            bands(height, parallel, (from, until) -> area(scaledHeight, dst, width, height, parallel ? new long[width * 4] : sums(width), from, until));
+        } else {
+            bilinearColumns(sourceWidth, width);
+            bands(height, parallel, (from, until) -> bilinear(scaledHeight, dst, width, height, from, until));
+        }
+        if (halved[0].length > MAX_POOLED_PIXELS) {
+            halved = new int[][]{new int[0], new int[0]};
+        }
+        ints = null;
+        bytes = null;
+        return destination;
+    }
+
+    /**
+     * Points pixel reads at given image. Int packed and byte interleaved rasters, which is what image io decodes most
+     * images into, are read in place, others are converted to int packed pixels first.
+     *
+     * @param image
+     * @param alpha
+     * @param parallel convert in bands
+     */
+    protected void read(BufferedImage image, boolean alpha, boolean parallel) {
+        WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                ints = ((DataBufferInt) raster.getDataBuffer()).getData();
+                offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+                return;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                stride = sampleModel.getScanlineStride();
+                pixelStride = sampleModel.getPixelStride();
+                bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+                offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX() * pixelStride;
+                return;
+            default:
+                break;
+        }
+        int size = image.getWidth() * image.getHeight();
+        int[] buffer = converted.length >= size ? converted : new int[size];
+        if (size <= MAX_POOLED_PIXELS) {
+            converted = buffer;
+        }
+        BufferedImage copy = wrap(buffer, image.getWidth(), image.getHeight(), alpha);
+        bands(image.getHeight(), parallel, (from, until) -> {
+            Graphics2D g = copy.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                g.setClip(0, from, image.getWidth(), until - from);
+                g.drawImage(image, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+        });
+        read(buffer, image.getWidth());
+    }
+
+    private void read(int[] pixels, int width) {
+        ints = pixels;
+        bytes = null;
+        offset = 0;
+        stride = width;
+    }
+
+    /**
+     * @param row index of first pixel of source row
+     * @param x
+     * @return source pixel as int argb
+     */
+    private int pixel(int row, int x) {
+        if (ints != null) {
+            return ints[row + x];
+        }
+        int i = row + x * pixelStride;
+        if (pixelStride == 3) {
+            return 0xff000000 | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i] & 0xff;
+        }
+        return (bytes[i] & 0xff) << 24 | (bytes[i + 3] & 0xff) << 16 | (bytes[i + 2] & 0xff) << 8 | bytes[i + 1] & 0xff;
+    }
+
+    private BufferedImage destination(int width, int height, boolean alpha) {
+        BufferedImage kept = destinations.get(width);
+        //source can be earlier result for the same width
+        if (kept != null && pixels(kept) != ints) {
+            if (kept.getHeight() == height && kept.getColorModel().hasAlpha() == alpha) {
+                return kept;
+            }
+            if (pixels(kept).length >= width * height) {
+                kept = wrap(pixels(kept), width, height, alpha);
+                destinations.put(width, kept);
+                return kept;
+            }
+        }
+        kept = wrap(new int[width * height], width, height, alpha);
+        destinations.put(width, kept);
+        return kept;
+    }
+
+    /**
+     * Runs given band over all rows, split among pool workers when scaling in parallel
+     *
+     * @param rows
+     * @param parallel
+     * @param band
+     */
+    private void bands(int rows, boolean parallel, Band band) {
+        int bandRows = parallel ? Math.max(MIN_BAND_ROWS, rows / (pool.getParallelism() * BANDS_PER_THREAD)) : rows;
+        if (bandRows >= rows) {
+            band.rows(0, rows);
+        } else {
+            pool.invoke(new Bands(band, 0, rows, bandRows));
+        }
+    }
+
+    private void bilinearColumns(int sourceWidth, int width) {
+        if (columns.length < width) {
+            columns = new int[width];
+            columnWeights = new int[width];
+        }
+        for (int x = 0; x < width; x++) {
+            columnWeights[x] = coordinate(x, sourceWidth, width);
+            columns[x] = columnWeights[x] >> WEIGHT_BITS;
+            columnWeights[x] &= ONE - 1;
+        }
+    }
+
+    private void bilinear(int sourceHeight, int[] dst, int width, int height, int from, int until) {
+        int target = from * width;
+        for (int y = from; y < until; y++) {
+            int coordinate = coordinate(y, sourceHeight, height);
+            int fy = coordinate & (ONE - 1);
+            int row0 = offset + (coordinate >> WEIGHT_BITS) * stride;
+            int row1 = fy == 0 ? row0 : row0 + stride;
+            for (int x = 0; x < width; x++) {
+                int x0 = columns[x];
+                int fx = columnWeights[x];
+                int x1 = fx == 0 ? x0 : x0 + 1;
+                dst[target++] = lerp(lerp(pixel(row0, x0), pixel(row0, x1), fx), lerp(pixel(row1, x0), pixel(row1, x1), fx), fy);
+            }
+        }
+    }
+
+    private void areaColumns(int sourceWidth, int width) {
+        if (columns.length < width) {
+            columns = new int[width];
+            columnWeights = new int[width];
+        }
+        //columns hold first source column of every destination pixel, weights the one past last
+        for (int x = 0; x < width; x++) {
+            columns[x] = (int) ((long) x * sourceWidth / width);
+            columnWeights[x] = Math.max(columns[x] + 1, (int) ((long) (x + 1) * sourceWidth / width));
+        }
+    }
+
+    private long[] sums(int width) {
+        if (sums.length < width * 4) {
+            sums = new long[width * 4];
+        }
+        return sums;
+    }
+
+    private void area(int sourceHeight, int[] dst, int width, int height, long[] sums, int from, int until) {
+        int target = from * width;
+        for (int y = from; y < until; y++) {
+            int y0 = (int) ((long) y * sourceHeight / height);
+            int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * sourceHeight / height));
+            Arrays.fill(sums, 0, width * 4, 0);
+            for (int sy = y0; sy < y1; sy++) {
+                int row = offset + sy * stride;
+                for (int x = 0, s = 0; x < width; x++, s += 4) {
+                    for (int sx = columns[x]; sx < columnWeights[x]; sx++) {
+                        int p = pixel(row, sx);
+                        sums[s] += p >>> 24;
+                        sums[s + 1] += (p >> 16) & 0xff;
+                        sums[s + 2] += (p >> 8) & 0xff;
+                        sums[s + 3] += p & 0xff;
+                    }
+                }
+            }
+            for (int x = 0, s = 0; x < width; x++, s += 4) {
+                long count = (long) (y1 - y0) * (columnWeights[x] - columns[x]);
+                long half = count / 2;
+                dst[target++] = (int) ((sums[s] + half) / count) << 24
+                        | (int) ((sums[s + 1] + half) / count) << 16
+                        | (int) ((sums[s + 2] + half) / count) << 8
+                        | (int) ((sums[s + 3] + half) / count);
+            }
+        }
+    }
+
+    private void halve(int sourceWidth, int sourceHeight, int[] dst, int from, int until) {
+        int width = sourceWidth / 2;
+        int target = from * width;
+        for (int y = from; y < until; y++) {
+            int row0 = offset + 2 * y * stride;
+            int row1 = sourceHeight > 1 ? row0 + stride : row0;
+            for (int x = 0; x < width; x++) {
+                dst[target++] = average(pixel(row0, 2 * x), pixel(row0, 2 * x + 1), pixel(row1, 2 * x), pixel(row1, 2 * x + 1));
+            }
+        }
+    }
+
+    /**
+     * Maps centre of destination pixel onto source
+     *
+     * @param position
+     * @param sourceSize
+     * @param size
+     * @return source index shifted by {@link #WEIGHT_BITS}, with weight of the next source pixel in lower bits
+     */
+    private static int coordinate(int position, int sourceSize, int size) {
+        double s = (position + 0.5) * sourceSize / size - 0.5;
+        if (s <= 0) {
+            return 0;
+        }
+        int index = (int) s;
+        if (index >= sourceSize - 1) {
+            return (sourceSize - 1) << WEIGHT_BITS;
+        }
+        int weight = (int) ((s - index) * ONE + 0.5);
+        //rounding up to a whole pixel moves to the next one
+        return weight == ONE ? (index + 1) << WEIGHT_BITS : index << WEIGHT_BITS | weight;
+    }
+
+    //channels are processed in pairs, 16 bits each leave room for 8 bit weights
+
+    private static int lerp(int a, int b, int weight) {
+        int rb = ((a & 0xff00ff) * (ONE - weight) + (b & 0xff00ff) * weight + 0x800080) >>> WEIGHT_BITS & 0xff00ff;
+        int ag = ((a >>> 8 & 0xff00ff) * (ONE - weight) + (b >>> 8 & 0xff00ff) * weight + 0x800080) >>> WEIGHT_BITS & 0xff00ff;
+        return ag << 8 | rb;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int rb = ((a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff) + 0x20002) >>> 2 & 0xff00ff;
+        int ag = ((a >>> 8 & 0xff00ff) + (b >>> 8 & 0xff00ff) + (c >>> 8 & 0xff00ff) + (d >>> 8 & 0xff00ff) + 0x20002) >>> 2 & 0xff00ff;
+        return ag << 8 | rb;
+    }
+
+    private static BufferedImage wrap(int[] pixels, int width, int height, boolean alpha) {
+        ColorModel cm = alpha ? ARGB : RGB;
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width * height), width, height, width,
+                alpha ? new int[]{0xff0000, 0xff00, 0xff, 0xff000000} : new int[]{0xff0000, 0xff00, 0xff}, null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private interface Band {
+        void rows(int from, int until);
+    }
+
+    private static class Bands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Band band;
+        private final int from;
+        private final int until;
+        private final int bandRows;
+
+        Bands(Band band, int from, int until, int bandRows) {
+            this.band = band;
+            this.from = from;
+            this.until = until;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (until - from <= bandRows) {
+                band.rows(from, until);
+            } else {
+                int middle = (from + until) >>> 1;
+                invokeAll(new Bands(band, from, middle, bandRows), new Bands(band, middle, until, bandRows));
+            }
+        }
+    }
+}
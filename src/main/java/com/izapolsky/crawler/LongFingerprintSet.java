@@ -0,0 +1,143 @@
+package com.izapolsky.crawler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrent set of 64 bit fingerprints. Uses open addressing over a primitive array, so each entry costs 8 bytes
+ * instead of a String and a hash map node. Lookups are lock-free, adds run concurrently with each other and table is
+ * doubled once it gets half full.
+ */
+public class LongFingerprintSet {
+
+    private static final long EMPTY = 0L;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    //adds share read lock, only growing the table excludes them
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile AtomicLongArray table;
+
+    /**
+     * @param expectedEntries entries the set is expected to hold, table is sized to keep load factor under 0.5 and
+     *                        grows beyond that if needed
+     */
+    public LongFingerprintSet(int expectedEntries) {
+        int capacity = Integer.highestOneBit(Math.max(2, Math.min(MAX_CAPACITY / 2, expectedEntries)) * 2 - 1) << 1;
+        this.table = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Adds fingerprint to the set
+     *
+     * @param fingerprint
+     * @return true if fingerprint was not present before
+     */
+    public boolean add(long fingerprint) {
+        long value = fingerprint == EMPTY ? 1L : fingerprint;
+        int capacity;
+        lock.readLock().lock();
+        try {
+            AtomicLongArray current = table;
+            if (!insert(current, value)) {
+                return false;
+            }
+            capacity = current.length();
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (size.incrementAndGet() > capacity / 2 && capacity < MAX_CAPACITY) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Checks if fingerprint is present in the set
+     *
+     * @param fingerprint
+     * @return
+     */
+    public boolean contains(long fingerprint) {
+        long value = fingerprint == EMPTY ? 1L : fingerprint;
+        AtomicLongArray current = table;
+        int mask = current.length() - 1;
+        int index = spread(value) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long existing = current.get(index);
+            if (existing == value) {
+                return true;
+            }
+            if (existing == EMPTY) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int capacity() {
+        return table.length();
+    }
+
+    /**
+     * @param target
+     * @param value
+     * @return false if value is present already
+     */
+    private static boolean insert(AtomicLongArray target, long value) {
+        int mask = target.length() - 1;
+        int index = spread(value) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = target.get(index);
+            if (current == value) {
+                return false;
+            }
+            if (current == EMPTY) {
+                if (target.compareAndSet(index, EMPTY, value)) {
+                    return true;
+                }
+                //somebody took the slot - re-check it before moving on
+                if (target.get(index) == value) {
+                    return false;
+                }
+            }
+            index = (index + 1) & mask;
+        }
+        throw new IllegalStateException(String.format("Fingerprint set is full, capacity %1$s", target.length()));
+    }
+
+    /**
+     * Rehashes entries into table of twice the size, unless another add has done it already
+     */
+    private void grow() {
+        lock.writeLock().lock();
+        try {
+            AtomicLongArray current = table;
+            if (size.get() <= current.length() / 2 || current.length() >= MAX_CAPACITY) {
+                return;
+            }
+            AtomicLongArray grown = new AtomicLongArray(current.length() * 2);
+            for (int i = 0; i < current.length(); i++) {
+                long value = current.get(i);
+                if (value != EMPTY) {
+                    insert(grown, value);
+                }
+            }
+            table = grown;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int spread(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -1,20 +1,30 @@
 package com.izapolsky.crawler;
 
 import com.beust.jcommander.*;
-
-import javax.imageio.ImageIO;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+
+import javax.management.JMException;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Main entry point for the crawler engine
@@ -23,6 +33,8 @@ public class Main {
 
 
     public static final int IO_QUEUE_SIZING_FACTOR = 2;
+    public static final long IDLE_CONNECTION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    public static final String NEAR_DUPLICATES_FILE = "near-duplicates.txt";
 
     public static class WritableDirValidator implements IValueValidator<File> {
         @Override
@@ -45,14 +57,34 @@ public class Main {
         }
     }
 
+    /**
+     * Http engines available for discovery and fetching
+     */
+    public enum Engine {
+        //thread per transfer
+        BLOCKING,
+        //transfers multiplexed over few i/o reactor threads
+        ASYNC
+    }
+
+    /**
+     * Ways of reading html documents
+     */
+    public enum HtmlParser {
+        //whole document is parsed into DOM, then queried
+        DOM,
+        //urls are extracted by tokenizer while document is read
+        STREAMING
+    }
+
     public static class Args {
         @Parameter(names = {"-v", "--debug"}, description = "Verbose mode")
         public boolean debug;
 
-        @Parameter(names = {"-o", "--output-dir"}, description = "Output directory", required = true, validateValueWith = WritableDirValidator.class)
+        @Parameter(names = {"-o", "--output-dir"}, description = "Output directory, default one of jobs in daemon mode", validateValueWith = WritableDirValidator.class)
         public File outputDir;
 
-        @Parameter(description = "<url to process>+", required = true, converter = URLConverter.class)
+        @Parameter(description = "<url to process>+, not needed by workers of distributed crawl", converter = URLConverter.class)
         public List<URL> inputUrls;
 
         @Parameter(names = {"-rs", "--io-pool-size"}, description = "Number of concurrent io threads")
@@ -64,6 +96,144 @@ public class Main {
         @Parameter(names = {"-cs", "--cpu-pool-size"}, description = "Number of concurrent processing tasks")
         public int cpuPoolSize = 2;
 
+        @Parameter(names = "--cpu-queue-size", description = "Number of downloaded images waiting for processing, downloads are paused once it is reached")
+        public int cpuQueueSize = 16;
+
+        @Parameter(names = "--streaming", description = "Start downloading images as soon as they are discovered, instead of waiting for all pages")
+        public boolean streaming = false;
+
+        @Parameter(names = "--max-depth", description = "How many links away from input urls to crawl, 0 processes only input urls")
+        public int maxDepth = 0;
+
+        @Parameter(names = "--max-pages", description = "Maximum number of documents to process")
+        public int maxPages = 100000;
+
+        @Parameter(names = "--per-host-connections", description = "Number of concurrent downloads from a single host")
+        public int perHostConnections = 4;
+
+        @Parameter(names = "--per-host-delay-ms", description = "Minimal delay between starting downloads from a single host")
+        public long perHostDelayMs = 0;
+
+        @Parameter(names = "--connect-timeout-ms", description = "Timeout for establishing http connection")
+        public int connectTimeoutMs = 10000;
+
+        @Parameter(names = "--socket-timeout-ms", description = "Timeout for inactivity while reading http response")
+        public int socketTimeoutMs = 30000;
+
+        @Parameter(names = "--lease-timeout-ms", description = "Timeout for waiting on free connection in the pool")
+        public int leaseTimeoutMs = 60000;
+
+        @Parameter(names = "--engine", description = "Http engine to use: BLOCKING or ASYNC")
+        public Engine engine = Engine.BLOCKING;
+
+        @Parameter(names = "--html-parser", description = "How documents are read: DOM or STREAMING, which also finds srcset, lazy-load and css background images")
+        public HtmlParser htmlParser = HtmlParser.DOM;
+
+        @Parameter(names = "--async-max-connections", description = "Number of concurrent transfers for ASYNC engine")
+        public int asyncMaxConnections = 1000;
+
+        @Parameter(names = "--virtual-threads", description = "Run every io task on its own virtual thread (needs java 21+, platform threads are used otherwise)")
+        public boolean virtualThreads = false;
+
+        @Parameter(names = "--max-io-tasks", description = "Number of concurrent io tasks with --virtual-threads, replaces --io-pool-size")
+        public int maxIoTasks = 1000;
+
+        @Parameter(names = "--thumbnail-widths", description = "Comma separated widths of generated thumbnails")
+        public List<Integer> thumbnailWidths = Arrays.asList(320, 220, 100);
+
+        @Parameter(names = "--thumbnail-formats", description = "Comma separated formats of generated thumbnails")
+        public List<String> thumbnailFormats = Arrays.asList("png", "jpeg");
+
+        @Parameter(names = "--scaling-quality", description = "How thumbnails are scaled: BILINEAR, PROGRESSIVE halving or AREA averaging")
+        public ImageScaler.Quality scalingQuality = ImageScaler.Quality.BILINEAR;
+
+        @Parameter(names = "--parallel-scaling-pixels", description = "Decoded images with at least this many pixels are scaled in bands on all cores, 0 disables")
+        public long parallelScalingPixels = 4 * 1024 * 1024;
+
+        @Parameter(names = "--content-addressed", description = "Store each distinct image body once under its sha-256, thumbnails are made once per body")
+        public boolean contentAddressed = false;
+
+        @Parameter(names = "--near-duplicates", description = "Skip thumbnails of pictures perceptually close to already processed ones, clusters are written to " + NEAR_DUPLICATES_FILE)
+        public boolean nearDuplicates = false;
+
+        @Parameter(names = "--near-duplicate-distance", description = "Maximal number of differing bits of 64 bit perceptual hashes of near-duplicates")
+        public int nearDuplicateDistance = 4;
+
+        @Parameter(names = "--min-image-width", description = "Narrower images are dropped, as soon as their headers are read")
+        public int minImageWidth = ThumbnailGenerator.MIN_DIMENSION + 1;
+
+        @Parameter(names = "--min-image-height", description = "Lower images are dropped, as soon as their headers are read")
+        public int minImageHeight = ThumbnailGenerator.MIN_DIMENSION + 1;
+
+        @Parameter(names = "--min-image-bytes", description = "Images with smaller announced length are not downloaded")
+        public long minImageBytes = 0;
+
+        @Parameter(names = "--max-image-bytes", description = "Images with larger announced length are not downloaded, 0 for no limit")
+        public long maxImageBytes = ImageFilter.UNLIMITED;
+
+        @Parameter(names = "--image-content-types", description = "Comma separated prefixes of accepted content types, responses without content type are always accepted")
+        public List<String> imageContentTypes = Arrays.asList("image/", "application/octet-stream", "binary/octet-stream");
+
+        @Parameter(names = "--metadata-index", description = "Keep image metadata in single log file instead of .properties file per image")
+        public boolean metadataIndex = false;
+
+        @Parameter(names = "--max-attempts", description = "Attempts per image for i/o errors, 429, 502, 503 and 504, including the first one")
+        public int maxAttempts = 3;
+
+        @Parameter(names = "--retry-base-delay-ms", description = "Delay ceiling after first failed attempt, doubles with every next one")
+        public long retryBaseDelayMs = 500;
+
+        @Parameter(names = "--retry-max-delay-ms", description = "Cap of delay between attempts")
+        public long retryMaxDelayMs = 30000;
+
+        @Parameter(names = "--breaker-failures", description = "Consecutive failures after which host is not contacted for a while")
+        public int breakerFailures = 5;
+
+        @Parameter(names = "--breaker-cooldown-ms", description = "How long failing host is not contacted before it is probed again")
+        public long breakerCooldownMs = 30000;
+
+        @Parameter(names = "--journal", description = "Record crawl progress, so interrupted crawl can be resumed")
+        public boolean journal = false;
+
+        @Parameter(names = "--resume", description = "Skip work recorded as completed by journal of previous run, implies --journal")
+        public boolean resume = false;
+
+        @Parameter(names = "--metrics-port", description = "Serve live metrics as json at http://127.0.0.1:<port>/metrics, 0 disables it")
+        public int metricsPort = 0;
+
+        @Parameter(names = "--coordinator", description = "Coordinate distributed crawl of given urls instead of crawling them, waits for --workers workers on --coordinator-port")
+        public boolean coordinator = false;
+
+        @Parameter(names = "--workers", description = "Number of workers of distributed crawl")
+        public int workers = 2;
+
+        @Parameter(names = "--coordinator-port", description = "Port coordinator of distributed crawl listens on")
+        public int coordinatorPort = 7700;
+
+        @Parameter(names = "--join", description = "Crawl one shard of distributed crawl, given host:port of its coordinator")
+        public String join;
+
+        @Parameter(names = "--worker-host", description = "Address peers reach this worker at, defaults to the one coordinator is reached from")
+        public String workerHost;
+
+        @Parameter(names = "--worker-port", description = "Port this worker takes urls of its shard from peers on, 0 picks any free port")
+        public int workerPort = 0;
+
+        @Parameter(names = "--daemon", description = "Keep pools, connections and caches warm and take crawl jobs over http at http://127.0.0.1:<daemon-port>/jobs instead of crawling given urls")
+        public boolean daemon = false;
+
+        @Parameter(names = "--daemon-port", description = "Port daemon takes crawl jobs on, 0 picks any free port")
+        public int daemonPort = 7800;
+
+        @Parameter(names = "--daemon-token", description = "Secret every daemon request has to carry as 'Authorization: Bearer <token>', required in daemon mode")
+        public String daemonToken;
+
+        @Parameter(names = "--max-jobs", description = "Number of crawl jobs daemon runs at once, others wait for their turn")
+        public int maxJobs = 4;
+
+        @Parameter(names = "--metrics-file", description = "Write final metrics as json to given file")
+        public File metricsFile;
+
         @Parameter(names = "--keep-going", description = "Do not kill JVM on exit", hidden = true)
         public boolean keepGoing = false;
     }
@@ -78,6 +248,15 @@ public class Main {
             jc.usage();
             throw new RuntimeException("Check usage... / FIX ME");
         }
+        if (parsedCmdLine.outputDir == null) {
+            throw new ParameterException("The following option is required: -o, --output-dir ");
+        }
+        if (parsedCmdLine.daemon && (parsedCmdLine.daemonToken == null || parsedCmdLine.daemonToken.isEmpty())) {
+            throw new ParameterException("The following option is required in daemon mode: --daemon-token ");
+        }
+        if (parsedCmdLine.join == null && !parsedCmdLine.daemon && (parsedCmdLine.inputUrls == null || parsedCmdLine.inputUrls.isEmpty())) {
+            throw new ParameterException("Main parameters are required (\"<url to process>+\")");
+        }
 
         new Main(parsedCmdLine);
 
@@ -86,103 +265,549 @@ public class Main {
         }
     }
 
+    //everything below is created once and shared by all crawls, see open(Args)
+    private int ioConcurrency;
+    private int documentsInFlight;
+    //downloads in flight at once - io threads and their queue for blocking engine, connections for async one; split
+    //evenly between crawls running at once
+    private DownloadShares downloadShares;
     private BlockingQueue<Runnable> ioBoundQueue;
     private ExecutorService ioBoundService;
+    private ExecutorService discoveryService;
+    //runs what follows async transfers, null for blocking engine
+    private ExecutorService completionService;
     private ExecutorService cpuBoundService;
     private BlockingQueue<Runnable> cpuBoundQueue;
+    private final BlockingSubmitPolicy cpuBackpressure = new BlockingSubmitPolicy();
+    private final AtomicInteger cpuQueueMaxDepth = new AtomicInteger();
+    private final Metrics metrics = new Metrics();
+    private Closeable metricsMBean;
+    private MetricsServer metricsServer;
+    private PooledHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncClient;
+    private HostScheduler scheduler;
+    private RetryEngine retries;
+    private ForkJoinPool scalingPool;
+    //stores keep their caches and locks until shutdown, crawls writing to the same directory share them
+    private final Map<String, MetadataStore> metadataStores = new ConcurrentHashMap<>();
+    private final Map<String, ContentStore> contentStores = new ConcurrentHashMap<>();
 
     public Main(Args parsedArgs) {
         execute(parsedArgs);
     }
 
     protected void execute(Args parsedArgs) {
-        ioBoundQueue = new LinkedBlockingDeque<>(parsedArgs.ioPoolSize * IO_QUEUE_SIZING_FACTOR);
-        ioBoundService = new ThreadPoolExecutor(parsedArgs.ioPoolSize, parsedArgs.ioPoolSize, 0, TimeUnit.SECONDS, ioBoundQueue, new ThreadPoolExecutor.CallerRunsPolicy());
+        if (parsedArgs.coordinator) {
+            coordinate(parsedArgs);
+            return;
+        }
+        open(parsedArgs);
+        if (parsedArgs.daemon) {
+            serve(parsedArgs);
+        } else {
+            //downloads queued in host scheduler are bounded, so discovery waits instead of piling up tasks
+            try (DownloadShares.Share downloads = downloadShares.join()) {
+                crawl(parsedArgs, downloads);
+            }
+        }
+        close(parsedArgs);
+    }
 
-        //we don't put bound for cpu-constrained tasks, for now...
-        cpuBoundQueue = new LinkedBlockingQueue<>();
-        cpuBoundService = new ThreadPoolExecutor(parsedArgs.cpuPoolSize, parsedArgs.cpuPoolSize, 0, TimeUnit.SECONDS, cpuBoundQueue);
+    /**
+     * Creates pools, http clients, host scheduler and retry engine shared by all crawls
+     *
+     * @param parsedArgs
+     */
+    protected void open(Args parsedArgs) {
+        if (parsedArgs.virtualThreads) {
+            if (!VirtualThreads.isSupported()) {
+                System.out.println("Virtual threads are not supported by this jvm, using platform thread per task");
+            }
+            //concurrency is bounded by scheduler, frontier and connection pool rather than by thread count
+            ioBoundService = VirtualThreads.newThreadPerTaskExecutor("crawler-io-");
+            ioConcurrency = parsedArgs.maxIoTasks;
+        } else {
+            ioBoundQueue = new LinkedBlockingDeque<>(parsedArgs.ioPoolSize * IO_QUEUE_SIZING_FACTOR);
+            ioBoundService = new ThreadPoolExecutor(parsedArgs.ioPoolSize, parsedArgs.ioPoolSize, 0, TimeUnit.SECONDS, ioBoundQueue, new ThreadPoolExecutor.CallerRunsPolicy());
+            ioConcurrency = parsedArgs.ioPoolSize;
+        }
 
-        List<Pair<URL, String>> images = new UrlDiscovererImpl(ioBoundService).discover(parsedArgs.inputUrls);
+        //downloads wait for thumbnailing when it falls behind, rather than piling up decoded images in memory
+        cpuBoundQueue = new ArrayBlockingQueue<>(parsedArgs.cpuQueueSize);
+        cpuBoundService = new ThreadPoolExecutor(parsedArgs.cpuPoolSize, parsedArgs.cpuPoolSize, 0, TimeUnit.SECONDS, cpuBoundQueue, cpuBackpressure);
+
+        try {
+            metricsMBean = metrics.registerMBean(Metrics.DEFAULT_OBJECT_NAME);
+            if (parsedArgs.metricsPort > 0) {
+                metricsServer = new MetricsServer(metrics, parsedArgs.metricsPort);
+                System.out.println(String.format("Serving metrics at http://127.0.0.1:%1$s%2$s", metricsServer.getPort(), MetricsServer.PATH));
+            }
+        } catch (IOException | JMException e) {
+            throw new RuntimeException("Failed to expose metrics", e);
+        }
 
+        //every io thread can hold connection, discovery and fetching share the pool
+        httpClient = new PooledHttpClient(ioConcurrency * IO_QUEUE_SIZING_FACTOR, ioConcurrency,
+                parsedArgs.connectTimeoutMs, parsedArgs.socketTimeoutMs, parsedArgs.leaseTimeoutMs, IDLE_CONNECTION_TIMEOUT_MS);
+        retries = new RetryEngine(parsedArgs.maxAttempts, parsedArgs.retryBaseDelayMs, parsedArgs.retryMaxDelayMs,
+                new CircuitBreaker(parsedArgs.breakerFailures, parsedArgs.breakerCooldownMs));
+        if (parsedArgs.engine == Engine.ASYNC) {
+            asyncClient = createAsyncClient(parsedArgs);
+            documentsInFlight = parsedArgs.asyncMaxConnections;
+            downloadShares = new DownloadShares(parsedArgs.asyncMaxConnections);
+            //completions are handed over by i/o reactor, so the pool must never run them on calling thread or block it;
+            //queue is bounded by transfers in flight
+            completionService = parsedArgs.virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("crawler-completion-")
+                    : new ThreadPoolExecutor(ioConcurrency, ioConcurrency, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            //scheduler slot of async transfer is held by the request rather than by io thread
+            scheduler = new HostScheduler(ioBoundService, parsedArgs.asyncMaxConnections, parsedArgs.perHostConnections, parsedArgs.perHostDelayMs);
+        } else {
+            documentsInFlight = ioConcurrency;
+            downloadShares = new DownloadShares(ioConcurrency * IO_QUEUE_SIZING_FACTOR);
+            scheduler = new HostScheduler(ioBoundService, ioConcurrency, parsedArgs.perHostConnections, parsedArgs.perHostDelayMs);
+        }
+        //parsing blocks on full image pipe, on threads of its own it never holds io threads downloads need to drain the pipe
+        if (parsedArgs.virtualThreads) {
+            discoveryService = VirtualThreads.newThreadPerTaskExecutor("crawler-discovery-");
+        } else {
+            //frontier bounds documents in flight, so the queue stays short
+            int parsers = Math.min(documentsInFlight, ioConcurrency);
+            discoveryService = new ThreadPoolExecutor(parsers, parsers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        }
+        //huge images are rare, bands of one run on cores thumbnail threads leave idle
+        scalingPool = parsedArgs.parallelScalingPixels > 0 ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+    }
 
-        List<Future<String>> results = new UrlFetcherImpl(ioBoundService, parsedArgs.outputDir).downloadImages(images, (url, file) -> {
-            cpuBoundService.submit(() -> {
+    /**
+     * Crawls urls of given arguments on shared resources, returns once all images are downloaded and thumbnailed. Pool,
+     * connection, politeness and retry options are those given to {@link #open(Args)}. Metrics of the crawl are kept
+     * apart from those of others, process wide metrics sum all of them.
+     *
+     * @param parsedArgs
+     * @param downloads  share of download window for images downloaded at once, null for no limit
+     * @return number of images by status of their download
+     */
+    protected Map<String, AtomicInteger> crawl(Args parsedArgs, DownloadShares.Share downloads) {
+        Metrics metrics = new Metrics(this.metrics);
+        String dir = parsedArgs.outputDir.getAbsoluteFile().toPath().normalize().toString();
+        ContentStore contentStore = parsedArgs.contentAddressed ? contentStores.computeIfAbsent(dir, d -> new ContentStore(parsedArgs.outputDir)) : null;
+        MetadataStore metadata = metadataStores.computeIfAbsent(parsedArgs.metadataIndex ? dir + File.separator + MetadataIndex.FILE_NAME : dir,
+                d -> createMetadataStore(parsedArgs));
+        ImageFilter imageFilter = new ImageFilter(parsedArgs.minImageWidth, parsedArgs.minImageHeight, parsedArgs.minImageBytes,
+                parsedArgs.maxImageBytes, parsedArgs.imageContentTypes);
+        StreamingLinkExtractor extractor = parsedArgs.htmlParser == HtmlParser.STREAMING ? new StreamingLinkExtractor() : null;
+        UrlDiscoverer discoverer;
+        AbstractUrlFetcher fetcher;
+        if (asyncClient != null) {
+            discoverer = new AsyncUrlDiscovererImpl(discoveryService, asyncClient, extractor, metrics);
+            fetcher = new AsyncUrlFetcherImpl(scheduler, asyncClient, completionService, parsedArgs.outputDir, contentStore, metadata, retries, metrics, imageFilter);
+        } else {
+            discoverer = new UrlDiscovererImpl(discoveryService, httpClient.getClient(), extractor, metrics);
+            fetcher = new UrlFetcherImpl(scheduler, httpClient.getClient(), parsedArgs.outputDir, contentStore, metadata, retries, metrics, imageFilter);
+        }
+        CrawlJournal.State resumed = null;
+        CrawlJournal journal = null;
+        try {
+            if (parsedArgs.resume) {
+                resumed = CrawlJournal.replay(parsedArgs.outputDir);
+            }
+            if (parsedArgs.journal || parsedArgs.resume) {
+                journal = new CrawlJournal(parsedArgs.outputDir);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to open crawl journal in %1$s", parsedArgs.outputDir), e);
+        }
+        NearDuplicateIndex nearDuplicates = parsedArgs.nearDuplicates ? new NearDuplicateIndex(parsedArgs.nearDuplicateDistance) : null;
+        Function<ImageResult, CompletableFuture<ImageResult>> thumbnails = thumbnailStage(new ThumbnailGenerator(parsedArgs.thumbnailWidths, parsedArgs.thumbnailFormats,
+                metrics, nearDuplicates, imageFilter, parsedArgs.scalingQuality, scalingPool, parsedArgs.parallelScalingPixels), journal, metrics);
+
+        ShardWorker worker = parsedArgs.join == null ? null : joinCrawl(parsedArgs);
+
+        //outcomes are counted as they complete, not in order images were found
+        Map<String, AtomicInteger> codes = new ConcurrentHashMap<>();
+        //chains are not kept around, each one releases a permit once done and crawl waits for as many permits as chains it started
+        Semaphore completed = new Semaphore(0);
+        AtomicInteger chains = new AtomicInteger();
+        if (parsedArgs.streaming || parsedArgs.maxDepth > 0 || journal != null || worker != null) {
+            //images flow to fetcher while other documents are still being parsed
+            ImagePipe pipe = new ImagePipe(ioConcurrency * IO_QUEUE_SIZING_FACTOR);
+            ImageDiscoveredCallback downstream = pipe;
+            if (resumed != null) {
+                CrawlJournal.State state = resumed;
+                downstream = (document, image) -> {
+                    if (!state.isFetched(image)) {
+                        pipe.notifyImageDiscovered(document, image);
+                    }
+                };
+            }
+            CrawlFrontier frontier;
+            if (worker == null) {
+                frontier = new CrawlFrontier(discoverer, downstream, parsedArgs.maxDepth, parsedArgs.maxPages, documentsInFlight, journal);
+            } else {
+                //documents and images of other shards go to their owners, those of own shard come back from peers
+                ImageDiscoveredCallback local = downstream;
+                frontier = new CrawlFrontier(discoverer, (document, image) -> {
+                    if (!worker.forwardImage(document, image)) {
+                        local.notifyImageDiscovered(document, image);
+                    }
+                }, parsedArgs.maxDepth, parsedArgs.maxPages, documentsInFlight, journal) {
+                    @Override
+                    protected boolean forward(URL url, int depth) {
+                        return worker.forwardDocument(url, depth);
+                    }
+                };
+                worker.start(frontier, local);
+            }
+            CrawlJournal crawlJournal = journal;
+            AtomicInteger streamed = new AtomicInteger();
+            Consumer<Pair<URL, String>> download = image -> {
+                streamed.incrementAndGet();
+                track(download(fetcher, image, thumbnails, crawlJournal, downloads, codes, metrics), chains, completed);
+            };
+            if (resumed != null) {
+                System.out.println(String.format("Resuming : %1$s documents done, %2$s documents, %3$s images and %4$s thumbnails pending",
+                        resumed.getProcessedDocuments().size(), resumed.getPendingDocuments().size(), resumed.getPendingImages().size(), resumed.getPendingThumbnails().size()));
+                for (File stored : resumed.getPendingThumbnails()) {
+                    //downloaded by previous run, only thumbnails are missing
+                    track(thumbnails.apply(new ImageResult(new Pair<>(null, stored.getAbsolutePath()), String.valueOf(HttpStatus.SC_OK),
+                            stored, true, stored.length(), 0, 0)), chains, completed);
+                }
+                resumed.getPendingImages().forEach(download);
+            }
+            //discovery can run inline on a full io pool and block on the pipe, so it is seeded only once pipe is drained
+            CrawlJournal.State resumedState = resumed;
+            AtomicReference<RuntimeException> seedFailure = new AtomicReference<>();
+            Thread seeder = new Thread(() -> {
                 try {
-                    BufferedImage image = ImageIO.read(file);
-                    if (image.getHeight() <= 10 || image.getWidth() <= 10) {
-                        return;
+                    if (resumedState != null) {
+                        frontier.resume(resumedState);
                     }
-
-                    for (int width : new int[]{320, 220, 100}) {
-                        image = getScaledImage(image, width);
-
-
-                        writeImage(image, "png", new File(file.getParent(), file.getName() + "x" + width + ".png"));
-                        writeImage(image, "jpeg", new File(file.getParent(), file.getName() + "x" + width + ".jpg"));
+                    if (parsedArgs.inputUrls != null) {
+                        frontier.start(parsedArgs.inputUrls);
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(String.format("Failed processing file %1$s for %2$s", file, url), e);
+                } catch (RuntimeException e) {
+                    seedFailure.set(e);
                 }
-            });
-        });
-
-        System.out.println(String.format("Found %1$s image urls, total %2$s", images, images.size()));
+            }, "crawler-seeds");
+            seeder.start();
+            pipe.drain(() -> !seeder.isAlive() && (worker == null ? frontier.isDone() : worker.isStopped()), download);
+            if (seedFailure.get() != null) {
+                throw seedFailure.get();
+            }
 
-        Map<String, AtomicInteger> codes = new HashMap<>();
+            System.out.println(String.format("Streamed %1$s image urls from %2$s documents", streamed.get(), frontier.getAdmitted()));
+        } else {
+            List<Pair<URL, String>> images = discoverer.discover(parsedArgs.inputUrls);
+            for (Pair<URL, String> image : images) {
+                track(download(fetcher, image, thumbnails, journal, downloads, codes, metrics), chains, completed);
+            }
 
+            System.out.println(String.format("Found %1$s image urls, total %2$s", images, images.size()));
+        }
 
-        //eagerly await for download results
-        for (Future<String> future : results) {
+        //chains never complete exceptionally, crawl is over once every one of them has completed
+        completed.acquireUninterruptibly(chains.get());
+        System.out.println(String.format("Stats of processing : %1$s", codes));
+        System.out.println(httpClient);
+        System.out.println(fetcher.getTransferStats());
+        System.out.println(retries);
+        if (worker != null) {
+            System.out.println(worker);
+            IOUtils.closeQuietly(worker);
+        }
+        if (contentStore != null) {
+            System.out.println(contentStore);
+        }
+        IOUtils.closeQuietly(journal);
+        if (nearDuplicates != null) {
+            System.out.println(nearDuplicates);
+            File clusters = new File(parsedArgs.outputDir, NEAR_DUPLICATES_FILE);
             try {
-                increment(codes, future.get());
-            } catch (Throwable e) {
-                e.printStackTrace();
-                increment(codes, UrlFetcher.SC_GENERIC_ERROR);
+                nearDuplicates.writeClusters(clusters);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Failed writing near-duplicates to %1$s", clusters), e);
             }
         }
-        System.out.println(String.format("Stats of processing : %1$s", codes));
+        if (parsedArgs.metricsFile != null) {
+            try {
+                FileUtils.writeStringToFile(parsedArgs.metricsFile, metrics.toJson(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Failed writing metrics to %1$s", parsedArgs.metricsFile), e);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Counts chain as started and releases one permit of completed once it is done, whatever its outcome
+     *
+     * @param chain
+     * @param chains
+     * @param completed
+     */
+    private static void track(CompletableFuture<?> chain, AtomicInteger chains, Semaphore completed) {
+        chains.incrementAndGet();
+        chain.whenComplete((result, e) -> completed.release());
+    }
+
+    /**
+     * Takes crawl jobs over http until asked to shut down, see {@link CrawlDaemon}
+     *
+     * @param parsedArgs
+     */
+    protected void serve(Args parsedArgs) {
+        //running jobs split the download window evenly, however many images each finds
+        Function<Args, Map<String, AtomicInteger>> crawler = job -> {
+            try (DownloadShares.Share downloads = downloadShares.join()) {
+                return crawl(job, downloads);
+            }
+        };
+        try (CrawlDaemon daemon = new CrawlDaemon(crawler, parsedArgs.daemonPort, parsedArgs.maxJobs, parsedArgs.outputDir, parsedArgs.daemonToken)) {
+            System.out.println(String.format("Taking crawl jobs at http://127.0.0.1:%1$s%2$s", daemon.getPort(), CrawlDaemon.JOBS));
+            daemon.awaitShutdown();
+        } catch (IOException e) {
+            throw new RuntimeException("Crawl daemon failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for crawl jobs", e);
+        }
+    }
+
+    /**
+     * Releases everything created by {@link #open(Args)}, once thumbnail pool is done
+     *
+     * @param parsedArgs
+     */
+    protected void close(Args parsedArgs) {
+        discoveryService.shutdown();
+        scheduler.shutdown();
+        retries.shutdown();
+        IOUtils.closeQuietly(httpClient);
+        IOUtils.closeQuietly(asyncClient);
+        if (completionService != null) {
+            completionService.shutdown();
+        }
         try {
             cpuBoundService.shutdown();
             cpuBoundService.awaitTermination(10, TimeUnit.MINUTES);
+            if (scalingPool != null) {
+                scalingPool.shutdown();
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Failed to process all images", e);
         }
+        for (MetadataStore metadata : metadataStores.values()) {
+            IOUtils.closeQuietly(metadata);
+        }
+        System.out.println(String.format("Thumbnail queue : max depth %1$s of %2$s, downloads blocked %3$s times for %4$s ms",
+                cpuQueueMaxDepth.get(), parsedArgs.cpuQueueSize, cpuBackpressure.getBlocked(), cpuBackpressure.getBlockedMillis()));
+        System.out.println(String.format("Metrics : %1$s", metrics.toJson()));
+        IOUtils.closeQuietly(metricsServer);
+        IOUtils.closeQuietly(metricsMBean);
     }
 
-    private void writeImage(BufferedImage image, String png, File output) throws IOException {
-        System.out.println("Generating " + output);
-        ImageIO.write(image, png, output);
+    /**
+     * Runs coordinator of distributed crawl until all workers are done
+     *
+     * @param parsedArgs
+     */
+    protected void coordinate(Args parsedArgs) {
+        try (ShardCoordinator coordinator = new ShardCoordinator(parsedArgs.coordinatorPort, parsedArgs.workers)) {
+            System.out.println(String.format("Waiting for %1$s workers on port %2$s", parsedArgs.workers, coordinator.getPort()));
+            coordinator.run(parsedArgs.inputUrls);
+        } catch (IOException e) {
+            throw new RuntimeException("Distributed crawl failed", e);
+        }
     }
 
     /**
-     * Calculates statistics
+     * Registers with coordinator of distributed crawl, returns once all workers have registered
      *
-     * @param codes
-     * @param type
+     * @param parsedArgs
+     * @return
+     */
+    protected ShardWorker joinCrawl(Args parsedArgs) {
+        int colon = parsedArgs.join.lastIndexOf(':');
+        if (colon < 0) {
+            throw new ParameterException(String.format("Parameter --join (%1$s) has to be host:port", parsedArgs.join));
+        }
+        try {
+            ShardWorker worker = new ShardWorker(new InetSocketAddress(parsedArgs.join.substring(0, colon), Integer.parseInt(parsedArgs.join.substring(colon + 1))),
+                    parsedArgs.workerHost, parsedArgs.workerPort);
+            System.out.println(String.format("Crawling shard %1$s of %2$s", worker.getShard(), worker.getShards()));
+            return worker;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to join distributed crawl at %1$s", parsedArgs.join), e);
+        }
+    }
+
+    /**
+     * Creates store of image metadata
+     *
+     * @param parsedArgs
+     * @return
      */
-    protected void increment(Map<String, AtomicInteger> codes, String type) {
-        AtomicInteger value = codes.get(type);
-        if (value == null) {
-            value = new AtomicInteger(0);
-            codes.put(type, value);
+    protected MetadataStore createMetadataStore(Args parsedArgs) {
+        if (!parsedArgs.metadataIndex) {
+            return new SidecarMetadataStore(parsedArgs.outputDir);
+        }
+        try {
+            return new MetadataIndex(parsedArgs.outputDir);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to open metadata index in %1$s", parsedArgs.outputDir), e);
         }
+    }
 
-        value.incrementAndGet();
+    /**
+     * Creates and starts non-blocking http client, its connection pool enforces per-host limit along with host scheduler
+     *
+     * @param parsedArgs
+     * @return
+     */
+    protected CloseableHttpAsyncClient createAsyncClient(Args parsedArgs) {
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setMaxConnTotal(parsedArgs.asyncMaxConnections)
+                .setMaxConnPerRoute(parsedArgs.perHostConnections)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(parsedArgs.connectTimeoutMs)
+                        .setSocketTimeout(parsedArgs.socketTimeoutMs)
+                        .setConnectionRequestTimeout(parsedArgs.leaseTimeoutMs)
+                        .build())
+                .build();
+        client.start();
+        return client;
     }
 
-    public static BufferedImage getScaledImage(BufferedImage image, int width) throws IOException {
-        int imageWidth = image.getWidth();
-        int imageHeight = image.getHeight();
+    /**
+     * Creates stage making thumbnails of newly stored image on thumbnail pool, other results pass through
+     *
+     * @param generator
+     * @param journal   null if crawl is not journaled
+     * @param metrics   those of the crawl
+     * @return completes with generated thumbnails or with failure of thumbnailing, never exceptionally
+     */
+    protected Function<ImageResult, CompletableFuture<ImageResult>> thumbnailStage(ThumbnailGenerator generator, CrawlJournal journal, Metrics metrics) {
+        return downloaded -> {
+            if (!downloaded.isNewContent()) {
+                //nothing stored, or same bytes served under another url were processed already
+                return CompletableFuture.completedFuture(downloaded);
+            }
+            File file = downloaded.getFile();
+            if (journal != null) {
+                journal.stored(file);
+            }
+            long queued = System.nanoTime();
+            CompletableFuture<ImageResult> thumbnailed = new CompletableFuture<>();
+            try {
+                //blocks thread completing the download while queue is full
+                cpuBoundService.execute(() -> {
+                    metrics.recordSince(Metrics.CPU_QUEUE_WAIT, queued);
+                    try {
+                        List<File> generated = generator.generate(file);
+                        if (journal != null) {
+                            journal.thumbnailed(file);
+                        }
+                        thumbnailed.complete(downloaded.withThumbnails(generated, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queued)));
+                    } catch (Throwable e) {
+                        metrics.increment(Metrics.THUMBNAIL_FAILURES);
+                        thumbnailed.complete(downloaded.withFailure(new RuntimeException(String.format("Failed processing file %1$s for %2$s", file, downloaded.getImage()), e)));
+                    }
+                });
+            } catch (RuntimeException e) {
+                thumbnailed.complete(downloaded.withFailure(e));
+            }
+            cpuQueueMaxDepth.accumulateAndGet(cpuBoundQueue.size(), Math::max);
+            return thumbnailed;
+        };
+    }
+
+    /**
+     * Starts image download and chains its later stages
+     *
+     * @param fetcher
+     * @param image
+     * @param thumbnails
+     * @param journal    null if crawl is not journaled
+     * @param downloads  permit is held until download completes, null for no limit
+     * @param codes      gets status of the image once it is processed
+     * @param metrics    those of the crawl
+     * @return
+     */
+    protected CompletableFuture<ImageResult> download(AbstractUrlFetcher fetcher, Pair<URL, String> image, Function<ImageResult, CompletableFuture<ImageResult>> thumbnails,
+                                                      CrawlJournal journal, DownloadShares.Share downloads, Map<String, AtomicInteger> codes, Metrics metrics) {
+        if (downloads != null) {
+            downloads.acquire();
+        }
+        CompletableFuture<ImageResult> downloaded;
+        try {
+            downloaded = fetcher.downloadImage(image, null);
+        } catch (RuntimeException e) {
+            if (downloads != null) {
+                downloads.release();
+            }
+            throw e;
+        }
+        if (downloads != null) {
+            downloaded.whenComplete((result, failure) -> downloads.release());
+        }
+        Function<ImageResult, CompletableFuture<ImageResult>> stages = thumbnails;
+        if (journal != null) {
+            stages = result -> {
+                //thumbnail stage journals stored body first, so resumed crawl still makes thumbnails of fetched image
+                CompletableFuture<ImageResult> thumbnailed = thumbnails.apply(result);
+                journal.fetched(image.second, result.getStatus());
+                return thumbnailed;
+            };
+        }
+        return process(image, downloaded, stages, codes, metrics);
+    }
 
-        double scaleX = (double) width / imageWidth;
-        int height = (int) Math.floor((double) imageHeight * scaleX);
-        AffineTransform scaleTransform = AffineTransform.getScaleInstance(scaleX, scaleX);
-        AffineTransformOp bilinearScaleOp = new AffineTransformOp(scaleTransform, AffineTransformOp.TYPE_BILINEAR);
+    /**
+     * Chains later stages after download, counting outcome as soon as all of them are over
+     *
+     * @param image
+     * @param downloaded
+     * @param stages
+     * @param codes
+     * @param metrics
+     * @return never completes exceptionally, failures are carried by the result
+     */
+    protected CompletableFuture<ImageResult> process(Pair<URL, String> image, CompletableFuture<ImageResult> downloaded,
+                                                     Function<ImageResult, CompletableFuture<ImageResult>> stages, Map<String, AtomicInteger> codes, Metrics metrics) {
+        return downloaded.thenCompose(stages)
+                .exceptionally(e -> ImageResult.failed(image, e))
+                .thenApply(result -> {
+                    increment(metrics, codes, result.getStatus());
+                    if (result.getFailure() != null) {
+                        //nobody waits on single image, so make failure visible
+                        result.getFailure().printStackTrace();
+                    }
+                    return result;
+                });
+    }
 
-        return bilinearScaleOp.filter(
-                image,
-                new BufferedImage(width, height, image.getType()));
+    /**
+     * Calculates statistics
+     *
+     * @param metrics
+     * @param codes
+     * @param type
+     */
+    protected void increment(Metrics metrics, Map<String, AtomicInteger> codes, String type) {
+        codes.computeIfAbsent(type, t -> new AtomicInteger()).incrementAndGet();
+        metrics.increment(Metrics.RESULTS + "." + type);
+    }
+
+    /**
+     * Scales image to given width with single bilinear pass, result is not shared with any other call
+     *
+     * @param image
+     * @param width
+     * @return int packed image
+     * @throws IOException
+     */
+    public static BufferedImage getScaledImage(BufferedImage image, int width) throws IOException {
+        return new ImageScaler(ImageScaler.Quality.BILINEAR).scale(image, width);
     }
 
 }
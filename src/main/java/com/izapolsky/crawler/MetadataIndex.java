@@ -0,0 +1,416 @@
+package com.izapolsky.crawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata of all images in single append-only log. Every write appends a record, latest record of an image wins.
+ * Only position of latest record of every image is kept in memory, records themselves are read through memory mapping
+ * of the log. Log is compacted once most of it is superseded records.
+ * <p>
+ * Record layout: payload length (int), payload - name followed by property count and key / value pairs, crc32 of
+ * payload (long). Strings of payload are written as length of their utf-8 bytes (int) followed by the bytes.
+ * <p>
+ * Processes sharing the log coordinate through byte range locks of a separate lock file: byte 0 guards the log
+ * itself, images are locked at position derived from their name. Appends hold the log lock exclusively. Reads are
+ * served from memory, log is only read again, under shared lock, once its size shows other process appended to it or
+ * replaced it by compaction.
+ */
+public class MetadataIndex implements MetadataStore {
+
+    public static final String FILE_NAME = "metadata.idx";
+    public static final String LOCK_FILE_NAME = FILE_NAME + ".lock";
+    //log is rewritten once it holds this many records per image
+    public static final int COMPACTION_RATIO = 2;
+    //smaller logs are only compacted on close, rewriting them on append costs more than it saves
+    public static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private static final int HEADER = 4;
+    private static final int TRAILER = 8;
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+    private final Path log;
+    private final FileChannel lockChannel;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //all state below is guarded by lock and log lock of lock file
+    //position of latest record of every image
+    private Map<String, Long> entries = new HashMap<>();
+    private FileChannel channel;
+    //log from its start, mapped again once a record past its end is read, null until then
+    private MappedByteBuffer mapped;
+    private Object fileKey;
+    private long position;
+    //size of the log when it was last read, reads compare it with current size to notice other writers
+    private long checkedSize;
+    private long records;
+
+    public MetadataIndex(File outputDir) throws IOException {
+        this.log = new File(outputDir, FILE_NAME).toPath();
+        this.lockChannel = FileChannel.open(new File(outputDir, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        locked(() -> null);
+    }
+
+    @Override
+    public Closeable tryLock(String mangledName) throws IOException {
+        FileLock l = lockChannel.tryLock(lockPosition(mangledName), 1, false);
+        return l == null ? null : l::release;
+    }
+
+    @Override
+    public Pair<Boolean, Properties> read(String mangledName) {
+        return current(() -> {
+            Long offset = entries.get(mangledName);
+            Properties result = new Properties();
+            if (offset == null) {
+                return new Pair<>(true, result);
+            }
+            ByteBuffer payload = payloadAt(offset);
+            readString(payload);
+            for (int i = payload.getInt(); i > 0; i--) {
+                result.setProperty(readString(payload), readString(payload));
+            }
+            return new Pair<>(false, result);
+        });
+    }
+
+    @Override
+    public void write(String mangledName, Properties props) {
+        byte[] payload = encode(mangledName, props);
+        locked(() -> {
+            long offset = position;
+            ByteBuffer record = record(ByteBuffer.wrap(payload));
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            checkedSize = position;
+            records++;
+            entries.put(mangledName, offset);
+            if (records > Math.max(MIN_COMPACTION_RECORDS, (long) entries.size() * COMPACTION_RATIO)) {
+                rewrite();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Rewrites log keeping only latest record of every image
+     */
+    public void compact() {
+        locked(() -> {
+            rewrite();
+            return null;
+        });
+    }
+
+    /**
+     * Rewrites log keeping only latest record of every image, both locks have to be held
+     *
+     * @throws IOException
+     */
+    private void rewrite() throws IOException {
+        Path compacted = log.resolveSibling(FILE_NAME + ".compact");
+        Map<String, Long> kept = new HashMap<>();
+        long written = 0;
+        try {
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    kept.put(entry.getKey(), written);
+                    ByteBuffer record = record(payloadAt(entry.getValue()));
+                    while (record.hasRemaining()) {
+                        written += out.write(record);
+                    }
+                }
+                out.force(true);
+            }
+            FileTransfers.commit(compacted.toFile(), log.toFile());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        //empty header grows the replaced log, so processes reading from memory go and find the new one by its key
+        ByteBuffer moved = ByteBuffer.allocate(HEADER);
+        while (moved.hasRemaining()) {
+            channel.write(moved, position + moved.position());
+        }
+        channel.close();
+        channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapped = null;
+        fileKey = fileKey();
+        entries = kept;
+        position = written;
+        checkedSize = written;
+        records = entries.size();
+    }
+
+    /**
+     * @return number of images known
+     */
+    public int size() {
+        return current(() -> entries.size());
+    }
+
+    /**
+     * @return number of records in the log, including superseded ones
+     */
+    public long getRecords() {
+        return current(() -> records);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (getRecords() > (long) size() * COMPACTION_RATIO) {
+                compact();
+            }
+        } finally {
+            lock.lock();
+            try {
+                channel.close();
+                lockChannel.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs action holding both in-process lock and log lock of lock file, with state brought up to date with the log
+     *
+     * @param action
+     * @param <T>
+     * @return
+     */
+    private <T> T locked(IOAction<T> action) {
+        lock.lock();
+        try {
+            FileLock logLock = lockChannel.lock(0, 1, false);
+            try {
+                refresh(true);
+                return action.run();
+            } finally {
+                logLock.release();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to access %1$s", log), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs action holding in-process lock, with state brought up to date with the log if it changed since last read
+     *
+     * @param action
+     * @param <T>
+     * @return
+     */
+    private <T> T current(IOAction<T> action) {
+        lock.lock();
+        try {
+            if (channel.size() != checkedSize) {
+                FileLock logLock = lockChannel.lock(0, 1, true);
+                try {
+                    refresh(false);
+                } finally {
+                    logLock.release();
+                }
+            }
+            return action.run();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to access %1$s", log), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reopens log if other process replaced it by compaction, then reads records appended since last time
+     *
+     * @param exclusive true if log lock is held exclusively, so torn record can be dropped
+     * @throws IOException
+     */
+    private void refresh(boolean exclusive) throws IOException {
+        if (channel == null || !Files.exists(log) || (fileKey != null && !fileKey.equals(fileKey()))) {
+            if (channel != null) {
+                channel.close();
+            }
+            channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapped = null;
+            fileKey = fileKey();
+            entries.clear();
+            position = 0;
+            records = 0;
+        }
+
+        long size = channel.size();
+        while (position < size) {
+            int consumed = load(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAX_MAPPING)), position);
+            if (consumed == 0) {
+                break;
+            }
+            position += consumed;
+        }
+        if (position < size && exclusive) {
+            //record torn by crash of a writer, nobody else can be writing while we hold the log lock
+            channel.truncate(position);
+            size = position;
+        }
+        checkedSize = size;
+    }
+
+    /**
+     * Loads positions of complete records from the buffer
+     *
+     * @param buffer
+     * @param base   position of the buffer in the log
+     * @return number of bytes consumed
+     */
+    private int load(ByteBuffer buffer, long base) {
+        int start = buffer.position();
+        while (buffer.remaining() >= HEADER + TRAILER) {
+            int offset = buffer.position();
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.remaining() - HEADER - TRAILER) {
+                break;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(offset + HEADER);
+            payload.limit(offset + HEADER + length);
+            if (buffer.getLong(offset + HEADER + length) != crc(payload.duplicate())) {
+                break;
+            }
+            records++;
+            entries.put(readString(payload), base + offset - start);
+            buffer.position(offset + HEADER + length + TRAILER);
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Payload of record at given position, read through mapping of the log
+     *
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer payloadAt(long offset) throws IOException {
+        if (position > MAX_MAPPING) {
+            //log outgrew single mapping, it is read directly until compaction shrinks it
+            ByteBuffer header = readFully(ByteBuffer.allocate(HEADER), offset);
+            return readFully(ByteBuffer.allocate(header.getInt()), offset + HEADER);
+        }
+        if (mapped == null || offset >= mapped.capacity()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+        }
+        ByteBuffer payload = mapped.duplicate();
+        payload.position((int) offset);
+        int length = payload.getInt();
+        payload.limit(payload.position() + length);
+        return payload.slice();
+    }
+
+    private ByteBuffer readFully(ByteBuffer target, long offset) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, offset + target.position()) < 0) {
+                throw new IOException(String.format("Record at %1$s is cut short in %2$s", offset, log));
+            }
+        }
+        target.flip();
+        return target;
+    }
+
+    private Object fileKey() throws IOException {
+        return Files.readAttributes(log, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Position of image lock in the lock file, byte 0 is taken by the log lock
+     *
+     * @param mangledName
+     * @return
+     */
+    protected static long lockPosition(String mangledName) {
+        return 1 + (Long.parseUnsignedLong(mangledName.substring(0, 15), 16) & (Long.MAX_VALUE >> 1));
+    }
+
+    private static byte[] encode(String mangledName, Properties props) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(buffer);
+            writeString(dos, mangledName);
+            Map<String, String> copy = new HashMap<>();
+            for (String key : props.stringPropertyNames()) {
+                copy.put(key, props.getProperty(key));
+            }
+            dos.writeInt(copy.size());
+            for (Map.Entry<String, String> entry : copy.entrySet()) {
+                writeString(dos, entry.getKey());
+                writeString(dos, entry.getValue());
+            }
+            dos.flush();
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to encode metadata of %1$s", mangledName), e);
+        }
+    }
+
+    /**
+     * Unlike {@link DataOutputStream#writeUTF(String)} takes strings of any length
+     *
+     * @param dos
+     * @param value
+     * @throws IOException
+     */
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param payload
+     * @return record framing the payload, ready to be written
+     */
+    private static ByteBuffer record(ByteBuffer payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + payload.remaining() + TRAILER);
+        record.putInt(payload.remaining()).put(payload.duplicate()).putLong(crc(payload));
+        record.flip();
+        return record;
+    }
+
+    private static long crc(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private interface IOAction<T> {
+        T run() throws IOException;
+    }
+}
@@ -0,0 +1,37 @@
+package com.izapolsky.crawler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Keeps image metadata (validators, content hash etc.) between runs, keyed by mangled image name
+ */
+public interface MetadataStore extends Closeable {
+
+    /**
+     * Takes exclusive hold of image metadata, both within this jvm and across processes
+     *
+     * @param mangledName
+     * @return handle which gives the hold up once closed, null if image is being processed by other process
+     * @throws IOException
+     * @throws java.nio.channels.OverlappingFileLockException if image is being processed by other thread
+     */
+    Closeable tryLock(String mangledName) throws IOException;
+
+    /**
+     * Reads metadata of the image
+     *
+     * @param mangledName
+     * @return flag telling if image is not known yet, and its metadata
+     */
+    Pair<Boolean, Properties> read(String mangledName);
+
+    /**
+     * Replaces metadata of the image
+     *
+     * @param mangledName
+     * @param props
+     */
+    void write(String mangledName, Properties props);
+}
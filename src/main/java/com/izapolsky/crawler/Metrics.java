@@ -0,0 +1,230 @@
+package com.izapolsky.crawler;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of counters and histograms of every pipeline stage. Metrics are created on first use and can be read at any
+ * time - as json, through JMX or over http with {@link MetricsServer}.
+ * <p>
+ * Durations are recorded in microseconds, names of such histograms end with <code>.us</code>.
+ */
+public class Metrics {
+
+    public static final String DEFAULT_OBJECT_NAME = "com.izapolsky.crawler:type=Metrics";
+
+    //time to fetch and extract single document
+    public static final String DISCOVERY = "discovery.us";
+    //time from request start to response headers
+    public static final String TIME_TO_FIRST_BYTE = "fetch.ttfb.us";
+    //time from request start to body being stored
+    public static final String DOWNLOAD = "fetch.download.us";
+    public static final String BYTES = "fetch.bytes";
+    //counter of images dropped by image filter
+    public static final String FILTERED = "fetch.filtered";
+    //time spent acquiring hold of image metadata
+    public static final String LOCK_WAIT = "metadata.lock.us";
+    //time downloaded image waits for thumbnail thread
+    public static final String CPU_QUEUE_WAIT = "thumbnail.queue.us";
+    public static final String DECODE = "thumbnail.decode.us";
+    public static final String SCALE = "thumbnail.scale.us";
+    public static final String ENCODE = "thumbnail.encode.us";
+    public static final String PERCEPTUAL_HASH = "thumbnail.phash.us";
+    public static final String NEAR_DUPLICATES = "thumbnail.near.duplicates";
+    //counters, followed by host and status
+    public static final String STATUS = "status";
+    //counters, followed by status of download
+    public static final String RESULTS = "results";
+    public static final String THUMBNAIL_FAILURES = "thumbnail.failures";
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    //gets everything recorded here as well, null if there is none
+    private final Metrics parent;
+
+    public Metrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent registry summing this one with others, e.g. that of the whole process for one of crawls it runs
+     */
+    public Metrics(Metrics parent) {
+        this.parent = parent;
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public void record(String histogram, long value) {
+        histogram(histogram).record(value);
+        if (parent != null) {
+            parent.record(histogram, value);
+        }
+    }
+
+    /**
+     * Records time elapsed since given moment, in microseconds
+     *
+     * @param histogram
+     * @param startedNanos value of {@link System#nanoTime()} when measured activity started
+     */
+    public void recordSince(String histogram, long startedNanos) {
+        record(histogram, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedNanos));
+    }
+
+    public void increment(String counter) {
+        counters.computeIfAbsent(counter, n -> new LongAdder()).increment();
+        if (parent != null) {
+            parent.increment(counter);
+        }
+    }
+
+    /**
+     * Counts status of download from given host
+     *
+     * @param host
+     * @param status
+     */
+    public void status(String host, String status) {
+        increment(STATUS + "." + host + "." + status);
+    }
+
+    public long getCount(String counter) {
+        LongAdder value = counters.get(counter);
+        return value == null ? 0 : value.sum();
+    }
+
+    /**
+     * @return values of all counters and snapshots of all histograms, by name
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            result.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            result.put(histogram.getKey(), histogram.getValue().snapshot());
+        }
+        return result;
+    }
+
+    public String toJson() {
+        return Json.toJson(snapshot());
+    }
+
+    /**
+     * Makes metrics readable through platform MBean server, every counter and histogram field is an attribute
+     *
+     * @param objectName
+     * @return handle which unregisters metrics once closed
+     * @throws JMException
+     */
+    public Closeable registerMBean(String objectName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        try {
+            server.registerMBean(new MBean(), name);
+        } catch (InstanceAlreadyExistsException e) {
+            //left behind by previous run in the same jvm
+            server.unregisterMBean(name);
+            server.registerMBean(new MBean(), name);
+        }
+        return () -> {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                //already gone
+            }
+        };
+    }
+
+    /**
+     * @return metrics with histograms flattened into <code>name.field</code> entries
+     */
+    protected Map<String, Number> flatten() {
+        Map<String, Number> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            result.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            for (Map.Entry<String, Number> field : histogram.getValue().snapshot().entrySet()) {
+                result.put(histogram.getKey() + "." + field.getKey(), field.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Attributes of MBean are read from registry on every request, so new metrics show up once MBean info is refreshed
+     */
+    private class MBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = flatten().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(String.format("Metric %1$s is read-only", attribute.getName()));
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = flatten();
+            AttributeList result = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    result.add(new Attribute(attribute, value));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            //metrics expose no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> metric : flatten().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(), metric.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Crawler pipeline metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.izapolsky.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent index of 64 bit perceptual hashes, finding hashes within given hamming distance through multi-index
+ * hashing: hash is split into <code>maxDistance + 1</code> chunks and every chunk value has its own bucket. Two hashes
+ * which differ in at most <code>maxDistance</code> bits share at least one chunk, so only few buckets are scanned.
+ * <p>
+ * Buckets are append-only arrays, lookups take no locks. Large distances mean narrow chunks and long buckets, which
+ * makes both lookups and additions slower. Two near-duplicates added at the same moment might both become
+ * representatives of their own clusters.
+ */
+public class NearDuplicateIndex {
+
+    public static final int MAX_DISTANCE = 15;
+
+    /**
+     * Indexed hash found close to the looked up one
+     */
+    public static class Match {
+        public final long hash;
+        public final String representative;
+        public final int distance;
+
+        Match(long hash, String representative, int distance) {
+            this.hash = hash;
+            this.representative = representative;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Hashes sharing value of a chunk. Entry is written before size is published, array before entry count, so
+     * readers see complete entries up to size they read.
+     */
+    private static class Bucket {
+        volatile long[] hashes = new long[4];
+        volatile int size;
+
+        synchronized void add(long hash) {
+            long[] current = hashes;
+            if (size == current.length) {
+                long[] grown = new long[current.length * 2];
+                System.arraycopy(current, 0, grown, 0, size);
+                grown[size] = hash;
+                hashes = grown;
+            } else {
+                current[size] = hash;
+            }
+            size = size + 1;
+        }
+    }
+
+    private final int maxDistance;
+    private final int[] shifts;
+    private final int[] widths;
+    private final AtomicReferenceArray<Bucket>[] tables;
+    private final ConcurrentMap<Long, String> representatives = new ConcurrentHashMap<>();
+    //representative -> its near-duplicates
+    private final ConcurrentMap<String, Set<String>> clusters = new ConcurrentHashMap<>();
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    /**
+     * @param maxDistance hashes at most this many bits apart are near-duplicates, up to {@value #MAX_DISTANCE}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public NearDuplicateIndex(int maxDistance) {
+        if (maxDistance < 0 || maxDistance > MAX_DISTANCE) {
+            throw new IllegalArgumentException(String.format("Distance %1$s has to be between 0 and %2$s", maxDistance, MAX_DISTANCE));
+        }
+        this.maxDistance = maxDistance;
+        int chunks = maxDistance + 1;
+        shifts = new int[chunks];
+        widths = new int[chunks];
+        tables = new AtomicReferenceArray[chunks];
+        int shift = 0;
+        for (int i = 0; i < chunks; i++) {
+            //earlier chunks take the remainder bits
+            widths[i] = Long.SIZE / chunks + (i < Long.SIZE % chunks ? 1 : 0);
+            shifts[i] = shift;
+            shift += widths[i];
+            tables[i] = new AtomicReferenceArray<>(1 << Math.min(widths[i], 20));
+        }
+    }
+
+    /**
+     * Finds closest indexed hash
+     *
+     * @param hash
+     * @return null if no indexed hash is within distance
+     */
+    public Match find(long hash) {
+        long best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < tables.length; i++) {
+            Bucket bucket = tables[i].get(slot(i, hash));
+            if (bucket == null) {
+                continue;
+            }
+            int size = bucket.size;
+            long[] candidates = bucket.hashes;
+            for (int j = 0; j < size; j++) {
+                long candidate = candidates[j];
+                int distance = PerceptualHash.distance(hash, candidate);
+                if (distance < bestDistance) {
+                    best = candidate;
+                    bestDistance = distance;
+                    if (distance == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (bestDistance > maxDistance) {
+            return null;
+        }
+        return new Match(best, representatives.get(best), bestDistance);
+    }
+
+    /**
+     * Looks up near-duplicate of given image, image becomes representative of a new cluster if there is none
+     *
+     * @param hash
+     * @param name identifies the image
+     * @return match which given image joined as a duplicate, null if the image is a representative now
+     */
+    public Match findOrAdd(long hash, String name) {
+        Match match = find(hash);
+        if (match == null) {
+            String existing = representatives.putIfAbsent(hash, name);
+            if (existing == null) {
+                for (int i = 0; i < tables.length; i++) {
+                    append(tables[i], slot(i, hash), hash);
+                }
+                return null;
+            }
+            //same hash added concurrently
+            match = new Match(hash, existing, 0);
+        }
+        clusters.computeIfAbsent(match.representative, r -> ConcurrentHashMap.newKeySet()).add(name);
+        duplicates.incrementAndGet();
+        return match;
+    }
+
+    /**
+     * @return representatives with their near-duplicates, only clusters with duplicates are included
+     */
+    public Map<String, Set<String>> getClusters() {
+        return Collections.unmodifiableMap(clusters);
+    }
+
+    /**
+     * Writes clusters, one per line - representative, tab, then its duplicates separated by commas
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeClusters(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Set<String>> cluster : clusters.entrySet()) {
+                writer.write(cluster.getKey());
+                writer.write('\t');
+                writer.write(String.join(",", cluster.getValue()));
+                writer.write('\n');
+            }
+        }
+    }
+
+    public int size() {
+        return representatives.size();
+    }
+
+    public int getDuplicates() {
+        return duplicates.get();
+    }
+
+    private int slot(int chunk, long hash) {
+        long value = widths[chunk] == Long.SIZE ? hash : (hash >>> shifts[chunk]) & ((1L << widths[chunk]) - 1);
+        //chunks wider than the table fold their upper bits in
+        return (int) (value ^ (value >>> 20)) & (tables[chunk].length() - 1);
+    }
+
+    private static void append(AtomicReferenceArray<Bucket> table, int slot, long hash) {
+        Bucket bucket = table.get(slot);
+        if (bucket == null) {
+            table.compareAndSet(slot, null, new Bucket());
+            bucket = table.get(slot);
+        }
+        bucket.add(hash);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Near-duplicates : %1$s distinct pictures, %2$s duplicates in %3$s clusters", size(), getDuplicates(), clusters.size());
+    }
+}
@@ -0,0 +1,62 @@
+package com.izapolsky.crawler;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Difference hash (dHash) of an image - image is reduced to 9x8 grid of average luminance, every bit tells if a cell is
+ * brighter than its right neighbour. Re-encoded or rescaled copies of a picture end up few bits apart.
+ */
+public final class PerceptualHash {
+
+    public static final int HASH_WIDTH = 8;
+    public static final int HASH_HEIGHT = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * @param image any size, works best on small thumbnail as every pixel is visited
+     * @return 64 bit hash, rows from top, most significant bit first
+     */
+    public static long dHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+
+        int columns = HASH_WIDTH + 1;
+        long[] sums = new long[columns * HASH_HEIGHT];
+        int[] counts = new int[columns * HASH_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int row = Math.min(HASH_HEIGHT - 1, y * HASH_HEIGHT / height);
+            for (int x = 0; x < width; x++) {
+                int cell = row * columns + Math.min(columns - 1, x * columns / width);
+                int pixel = rgb[y * width + x];
+                //integer approximation of rec. 601 luma
+                sums[cell] += (((pixel >> 16) & 0xff) * 299 + ((pixel >> 8) & 0xff) * 587 + (pixel & 0xff) * 114);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < HASH_HEIGHT; row++) {
+            for (int column = 0; column < HASH_WIDTH; column++) {
+                int cell = row * columns + column;
+                hash <<= 1;
+                //cells of images narrower than the grid stay empty and compare as dark
+                if (sums[cell] * Math.max(1, counts[cell + 1]) > sums[cell + 1] * Math.max(1, counts[cell])) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return number of differing bits
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
@@ -0,0 +1,173 @@
+package com.izapolsky.crawler;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Http client shared by discovery and fetching. Keeps pool of keep-alive connections and counts how well they are reused.
+ */
+public class PooledHttpClient implements Closeable {
+
+    private final PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+    private final CloseableHttpClient client;
+
+    private final AtomicLong leased = new AtomicLong();
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong leaseWaitNanos = new AtomicLong();
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+
+    /**
+     * @param maxTotal         connections in the pool across all hosts
+     * @param maxPerRoute      connections in the pool for single host
+     * @param connectTimeoutMs
+     * @param socketTimeoutMs  max inactivity while reading response
+     * @param leaseTimeoutMs   max time to wait for connection from the pool
+     * @param maxIdleMs        connections idle for longer get closed
+     */
+    public PooledHttpClient(int maxTotal, int maxPerRoute, int connectTimeoutMs, int socketTimeoutMs, int leaseTimeoutMs, long maxIdleMs) {
+        pool.setMaxTotal(maxTotal);
+        pool.setDefaultMaxPerRoute(maxPerRoute);
+
+        client = HttpClients.custom()
+                .setConnectionManager(new InstrumentedConnectionManager())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setSocketTimeout(socketTimeoutMs)
+                        .setConnectionRequestTimeout(leaseTimeoutMs)
+                        .build())
+                //gzip / deflate are requested and transparently decoded, mostly pays off for html
+                .evictIdleConnections(maxIdleMs, TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .build();
+    }
+
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return number of connections handed out by the pool
+     */
+    public long getLeased() {
+        return leased.get();
+    }
+
+    /**
+     * @return number of connections which had to be opened
+     */
+    public long getConnected() {
+        return connected.get();
+    }
+
+    /**
+     * @return number of leases served by already open connection
+     */
+    public long getReused() {
+        return Math.max(0, leased.get() - connected.get());
+    }
+
+    /**
+     * @return total time spent waiting for connection from the pool
+     */
+    public long getLeaseWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos.get());
+    }
+
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Connections : leased %1$s, opened %2$s, reused %3$s, lease wait %4$s ms, lease timeouts %5$s",
+                getLeased(), getConnected(), getReused(), getLeaseWaitMillis(), getLeaseTimeouts());
+    }
+
+    /**
+     * Delegates to the pool, counting leases and connects on the way
+     */
+    private class InstrumentedConnectionManager implements HttpClientConnectionManager {
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = pool.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long started = System.nanoTime();
+                    try {
+                        HttpClientConnection result = request.get(timeout, tunit);
+                        leased.incrementAndGet();
+                        return result;
+                    } catch (ConnectionPoolTimeoutException e) {
+                        leaseTimeouts.incrementAndGet();
+                        throw e;
+                    } finally {
+                        leaseWaitNanos.addAndGet(System.nanoTime() - started);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+            pool.releaseConnection(conn, newState, validDuration, timeUnit);
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+            //only called for connections which are not open yet
+            connected.incrementAndGet();
+            pool.connect(conn, route, connectTimeout, context);
+        }
+
+        @Override
+        public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            pool.upgrade(conn, route, context);
+        }
+
+        @Override
+        public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            pool.routeComplete(conn, route, context);
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit tunit) {
+            pool.closeIdleConnections(idletime, tunit);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            pool.closeExpiredConnections();
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.izapolsky.crawler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Retries downloads which failed for transient reasons - i/o errors, 429 and 5xx gateway statuses. Next attempt is
+ * put on a timer after exponential backoff with full jitter, so no thread waits for it. Hosts which keep failing are
+ * cut off by circuit breaker.
+ */
+public class RetryEngine {
+
+    public static final Set<String> TRANSIENT_STATUSES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            UrlFetcher.SC_IO_ERROR, String.valueOf(UrlFetcher.SC_TOO_MANY_REQUESTS), "502", "503", "504")));
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final CircuitBreaker breaker;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "retry-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    //host -> time before which it asked not to be contacted
+    private final ConcurrentMap<String, Long> retryAfter = new ConcurrentHashMap<>();
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param maxAttempts including the first one, 1 disables retries
+     * @param baseDelayMs delay ceiling after first failure, doubles with every next one
+     * @param maxDelayMs  cap of delay ceiling
+     * @param breaker
+     */
+    public RetryEngine(int maxAttempts, long baseDelayMs, long maxDelayMs, CircuitBreaker breaker) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Runs attempts until one succeeds, fails permanently or attempts are used up
+     *
+     * @param host
+     * @param attempt starts single attempt, completes with status of {@link UrlFetcher}
+     * @return status of last attempt
+     */
+    public CompletableFuture<String> execute(String host, Supplier<CompletableFuture<String>> attempt) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        run(host, attempt, 1, result);
+        return result;
+    }
+
+    /**
+     * Host told us when to come back (Retry-After), next attempt won't start earlier
+     *
+     * @param host
+     * @param delayMs
+     */
+    public void retryAfter(String host, long delayMs) {
+        long until = System.currentTimeMillis() + Math.min(delayMs, maxDelayMs);
+        retryAfter.merge(host, until, Math::max);
+    }
+
+    /**
+     * Delay before given retry - random up to exponentially growing ceiling
+     *
+     * @param failedAttempts
+     * @return
+     */
+    protected long delayMs(int failedAttempts) {
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(failedAttempts - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of attempts not made because circuit of their host was open
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Retries : %1$s retried, %2$s refused by open circuit", getRetries(), getRefused());
+    }
+
+    private void run(String host, Supplier<CompletableFuture<String>> attempt, int number, CompletableFuture<String> result) {
+        if (!breaker.allow(host)) {
+            refused.incrementAndGet();
+            result.complete(UrlFetcher.SC_CIRCUIT_OPEN);
+            return;
+        }
+
+        CompletableFuture<String> started;
+        try {
+            started = attempt.get();
+        } catch (Throwable e) {
+            breaker.failure(host);
+            result.completeExceptionally(e);
+            return;
+        }
+
+        started.whenComplete((status, failure) -> {
+            if (failure != null) {
+                breaker.failure(host);
+                result.completeExceptionally(failure);
+                return;
+            }
+
+            boolean transientFailure = TRANSIENT_STATUSES.contains(status);
+            //busy host is still alive
+            if (transientFailure && !String.valueOf(UrlFetcher.SC_TOO_MANY_REQUESTS).equals(status)) {
+                breaker.failure(host);
+            } else {
+                breaker.success(host);
+            }
+
+            if (!transientFailure || number >= maxAttempts) {
+                result.complete(status);
+                return;
+            }
+
+            long delay = delayMs(number);
+            Long notBefore = retryAfter.get(host);
+            if (notBefore != null) {
+                long remaining = notBefore - System.currentTimeMillis();
+                if (remaining > 0) {
+                    delay = Math.max(delay, remaining);
+                } else {
+                    retryAfter.remove(host, notBefore);
+                }
+            }
+            retries.incrementAndGet();
+            try {
+                timer.schedule(() -> run(host, attempt, number + 1, result), delay, TimeUnit.MILLISECONDS);
+            } catch (Throwable e) {
+                //timer is shut down, last status stands
+                result.complete(status);
+            }
+        });
+    }
+}
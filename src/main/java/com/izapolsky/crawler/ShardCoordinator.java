@@ -0,0 +1,197 @@
+package com.izapolsky.crawler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coordinator of distributed crawl. Workers register with it and learn their shard and addresses of their peers, then
+ * crawl their shards sending documents and images owned by other shards straight to the owners. Coordinator hands
+ * seeds to their owners and detects the end of the crawl - every worker idle and every sent message received, with
+ * the same totals in two rounds in a row.
+ * <p>
+ * Protocol is line based, utf-8, tab separated: message type followed by its fields -
+ * <ul>
+ * <li>HELLO host port - worker registers with address it takes peer messages on</li>
+ * <li>SHARD shard shards - coordinator assigns shard to the worker</li>
+ * <li>PEER shard host port - address of every worker, sent to all once everybody has registered</li>
+ * <li>DOC depth url - document to crawl, from coordinator or a peer</li>
+ * <li>IMG document image - image to download, from a peer</li>
+ * <li>STATUS - coordinator asks for status, worker answers with STATUS idle sent received</li>
+ * <li>STOP - crawl is over, worker finishes its downloads and exits</li>
+ * </ul>
+ */
+public class ShardCoordinator implements Closeable {
+
+    public static final String HELLO = "HELLO";
+    public static final String SHARD = "SHARD";
+    public static final String PEER = "PEER";
+    public static final String DOC = "DOC";
+    public static final String IMG = "IMG";
+    public static final String STATUS = "STATUS";
+    public static final String STOP = "STOP";
+
+    public static final long STATUS_INTERVAL_MS = 100;
+
+    private final ServerSocket server;
+    private final int workers;
+    private final ShardRing ring;
+    private final List<Channel> channels = new ArrayList<>();
+    private long rounds;
+
+    /**
+     * @param port    0 picks any free port
+     * @param workers number of workers to wait for
+     * @throws IOException
+     */
+    public ShardCoordinator(int port, int workers) throws IOException {
+        this.server = new ServerSocket(port);
+        this.workers = workers;
+        this.ring = new ShardRing(workers);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Waits for all workers to register, hands out seeds, then waits for the crawl to finish
+     *
+     * @param seeds
+     * @throws IOException
+     */
+    public void run(List<URL> seeds) throws IOException {
+        List<String[]> addresses = new ArrayList<>();
+        while (channels.size() < workers) {
+            Channel channel = new Channel(server.accept());
+            String[] hello = channel.receive(HELLO);
+            channel.send(SHARD, String.valueOf(channels.size()), String.valueOf(workers));
+            channels.add(channel);
+            addresses.add(hello);
+            System.out.println(String.format("Worker %1$s of %2$s registered from %3$s:%4$s", channels.size(), workers, hello[1], hello[2]));
+        }
+        for (Channel channel : channels) {
+            for (int shard = 0; shard < workers; shard++) {
+                channel.send(PEER, String.valueOf(shard), addresses.get(shard)[1], addresses.get(shard)[2]);
+            }
+        }
+
+        long seeded = 0;
+        for (URL seed : seeds) {
+            channels.get(ring.owner(seed)).send(DOC, "0", seed.toString());
+            seeded++;
+        }
+
+        long previous = -1;
+        while (true) {
+            try {
+                Thread.sleep(STATUS_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for workers", e);
+            }
+            rounds++;
+            boolean idle = true;
+            long sent = seeded;
+            long received = 0;
+            for (Channel channel : channels) {
+                channel.send(STATUS);
+                String[] status = channel.receive(STATUS);
+                idle &= Boolean.parseBoolean(status[1]);
+                sent += Long.parseLong(status[2]);
+                received += Long.parseLong(status[3]);
+            }
+            boolean quiet = idle && sent == received;
+            //message can be in flight between two idle workers, unchanged totals rule that out
+            if (quiet && sent == previous) {
+                break;
+            }
+            previous = quiet ? sent : -1;
+        }
+        for (Channel channel : channels) {
+            channel.send(STOP);
+        }
+        System.out.println(String.format("Crawl over after %1$s status rounds", rounds));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Channel channel : channels) {
+            channel.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Socket exchanging protocol lines
+     */
+    protected static class Channel implements Closeable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final Writer writer;
+
+        protected Channel(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        public synchronized void send(String... fields) throws IOException {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    writer.write('\t');
+                }
+                //separators can only come from broken urls, they are escaped the way url would have them
+                writer.write(fields[i].replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D"));
+            }
+            writer.write('\n');
+            writer.flush();
+        }
+
+        /**
+         * @return fields of next line, null once peer closed the connection
+         * @throws IOException
+         */
+        public String[] receive() throws IOException {
+            String line = reader.readLine();
+            return line == null ? null : line.split("\t", -1);
+        }
+
+        /**
+         * @param type
+         * @return fields of next line, which has to be of given type
+         * @throws IOException
+         */
+        public String[] receive(String type) throws IOException {
+            String[] fields = receive();
+            if (fields == null) {
+                throw new EOFException(String.format("Connection closed by %1$s while waiting for %2$s", socket.getRemoteSocketAddress(), type));
+            }
+            if (!type.equals(fields[0])) {
+                throw new IOException(String.format("Expected %1$s from %2$s, got %3$s", type, socket.getRemoteSocketAddress(), fields[0]));
+            }
+            return fields;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring assigning every origin - protocol, host and port - to one of the shards of a distributed crawl.
+ * All documents and images of an origin are handled by the same worker, so per-host politeness and de-duplication
+ * stay local to it. Every shard owns many points of the ring, which keeps shards even and moves only keys of the
+ * added or removed shard when their number changes.
+ */
+public class ShardRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shards;
+
+    public ShardRing(int shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param shards
+     * @param virtualNodes points each shard owns on the ring
+     */
+    public ShardRing(int shards, int virtualNodes) {
+        if (shards < 1) {
+            throw new IllegalArgumentException(String.format("Number of shards has to be positive, got %1$s", shards));
+        }
+        this.shards = shards;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                ring.put(hash(shard + "#" + node), shard);
+            }
+        }
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @param url
+     * @return shard owning origin of the url
+     */
+    public int owner(URL url) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key(url)));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * Origin of url in the same normalised form files are named by
+     *
+     * @param url
+     * @return
+     */
+    protected static String key(URL url) {
+        try {
+            return AbstractUrlFetcher.normalise(new URL(url.getProtocol(), url.getHost().toLowerCase(Locale.ROOT), url.getPort(), "/"));
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(String.format("Failed to construct origin of %1$s", url), e);
+        }
+    }
+
+    private static long hash(String value) {
+        return ByteBuffer.wrap(DigestUtils.sha256(value.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+}
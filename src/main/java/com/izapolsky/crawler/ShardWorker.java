@@ -0,0 +1,236 @@
+package com.izapolsky.crawler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker of distributed crawl, see {@link ShardCoordinator} for the protocol. Crawls documents and downloads images of
+ * origins its shard owns, everything else is sent to the owning peer.
+ */
+public class ShardWorker implements Closeable {
+
+    private final ServerSocket server;
+    private final ShardCoordinator.Channel coordinator;
+    private final int shard;
+    private final ShardRing ring;
+    private final InetSocketAddress[] peers;
+    private final ShardCoordinator.Channel[] outbound;
+    private final List<Closeable> inbound = new CopyOnWriteArrayList<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private volatile boolean stopped;
+    private CrawlFrontier frontier;
+    private ImageDiscoveredCallback images;
+
+    /**
+     * Registers with coordinator and waits until all workers have, so shards are known once constructor returns
+     *
+     * @param coordinatorAddress
+     * @param host               address peers reach this worker at, null for the one coordinator is reached from
+     * @param port               port peers connect to, 0 picks any free port
+     * @throws IOException
+     */
+    public ShardWorker(InetSocketAddress coordinatorAddress, String host, int port) throws IOException {
+        //peers connecting before crawl is started wait in the backlog
+        server = new ServerSocket(port);
+        try {
+            coordinator = new ShardCoordinator.Channel(new Socket(coordinatorAddress.getAddress(), coordinatorAddress.getPort()));
+            String advertised = host == null ? coordinator.getSocket().getLocalAddress().getHostAddress() : host;
+            coordinator.send(ShardCoordinator.HELLO, advertised, String.valueOf(server.getLocalPort()));
+            String[] assigned = coordinator.receive(ShardCoordinator.SHARD);
+            shard = Integer.parseInt(assigned[1]);
+            int shards = Integer.parseInt(assigned[2]);
+            ring = new ShardRing(shards);
+            peers = new InetSocketAddress[shards];
+            outbound = new ShardCoordinator.Channel[shards];
+            for (int i = 0; i < shards; i++) {
+                String[] peer = coordinator.receive(ShardCoordinator.PEER);
+                peers[Integer.parseInt(peer[1])] = new InetSocketAddress(peer[2], Integer.parseInt(peer[3]));
+            }
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return peers.length;
+    }
+
+    /**
+     * @param url
+     * @return true if origin of url belongs to this worker's shard
+     */
+    public boolean isLocal(URL url) {
+        return ring.owner(url) == shard;
+    }
+
+    /**
+     * Starts taking documents and images from coordinator and peers
+     *
+     * @param frontier receives documents of this shard
+     * @param images   receives images of this shard
+     */
+    public void start(CrawlFrontier frontier, ImageDiscoveredCallback images) {
+        this.frontier = frontier;
+        this.images = images;
+        daemon("shard-" + shard + "-control", this::control);
+        daemon("shard-" + shard + "-accept", () -> {
+            try {
+                while (!server.isClosed()) {
+                    ShardCoordinator.Channel peer = new ShardCoordinator.Channel(server.accept());
+                    inbound.add(peer);
+                    daemon("shard-" + shard + "-peer", () -> read(peer));
+                }
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends document to the worker owning its origin
+     *
+     * @param url
+     * @param depth
+     * @return false if document belongs to this shard or owner can not be reached
+     */
+    public boolean forwardDocument(URL url, int depth) {
+        return send(ring.owner(url), ShardCoordinator.DOC, String.valueOf(depth), url.toString());
+    }
+
+    /**
+     * Sends image to the worker owning its origin
+     *
+     * @param document
+     * @param image
+     * @return false if image belongs to this shard or owner can not be reached
+     */
+    public boolean forwardImage(URL document, String image) {
+        try {
+            return send(ring.owner(new URL(image)), ShardCoordinator.IMG, document.toString(), image);
+        } catch (MalformedURLException e) {
+            //fetcher reports it
+            return false;
+        }
+    }
+
+    /**
+     * @return true once coordinator has seen the whole crawl idle, no more documents or images will come
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        server.close();
+        coordinator.close();
+        for (Closeable channel : inbound) {
+            channel.close();
+        }
+        for (ShardCoordinator.Channel channel : outbound) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Shard %1$s of %2$s : sent %3$s, received %4$s", shard, peers.length, sent.get(), received.get());
+    }
+
+    private boolean send(int owner, String... message) {
+        if (owner == shard) {
+            return false;
+        }
+        try {
+            peer(owner).send(message);
+            sent.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            new RuntimeException(String.format("Failed to reach shard %1$s at %2$s, keeping %3$s", owner, peers[owner], message[2]), e).printStackTrace();
+            return false;
+        }
+    }
+
+    private synchronized ShardCoordinator.Channel peer(int owner) throws IOException {
+        if (outbound[owner] == null) {
+            outbound[owner] = new ShardCoordinator.Channel(new Socket(peers[owner].getAddress(), peers[owner].getPort()));
+        }
+        return outbound[owner];
+    }
+
+    private void control() {
+        try {
+            String[] message;
+            while ((message = coordinator.receive()) != null) {
+                if (ShardCoordinator.STATUS.equals(message[0])) {
+                    //counted before idleness is checked, message handled in between shows up as unmatched
+                    long in = received.get();
+                    boolean idle = frontier.isDone();
+                    coordinator.send(ShardCoordinator.STATUS, String.valueOf(idle), String.valueOf(sent.get()), String.valueOf(in));
+                } else if (ShardCoordinator.STOP.equals(message[0])) {
+                    break;
+                } else {
+                    handle(message);
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                e.printStackTrace();
+            }
+        } finally {
+            stopped = true;
+        }
+    }
+
+    private void read(ShardCoordinator.Channel peer) {
+        try {
+            String[] message;
+            while ((message = peer.receive()) != null) {
+                handle(message);
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handle(String[] message) {
+        try {
+            if (ShardCoordinator.DOC.equals(message[0])) {
+                frontier.offer(new URL(message[2]), Integer.parseInt(message[1]));
+            } else if (ShardCoordinator.IMG.equals(message[0])) {
+                images.notifyImageDiscovered(new URL(message[1]), message[2]);
+            }
+        } catch (MalformedURLException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            received.incrementAndGet();
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
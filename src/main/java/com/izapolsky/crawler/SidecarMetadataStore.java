@@ -0,0 +1,92 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * Metadata kept in <code>&lt;hash&gt;.properties</code> file next to every image, the file also serves as a lock
+ */
+public class SidecarMetadataStore implements MetadataStore {
+
+    private final File outputDir;
+
+    public SidecarMetadataStore(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public Closeable tryLock(String mangledName) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(propertiesFile(mangledName), "rw");
+        try {
+            FileLock l = raf.getChannel().tryLock();
+            if (l == null) {
+                raf.close();
+                return null;
+            }
+            //closing the file releases the lock
+            return raf;
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Pair<Boolean, Properties> read(String mangledName) {
+        File propertiesFile = propertiesFile(mangledName);
+        Properties result = new Properties();
+        boolean created = false;
+        if (!propertiesFile.isFile()) {
+            write(mangledName, result);
+            created = true;
+        } else {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(propertiesFile);
+                result.load(new ByteArrayInputStream(IOUtils.toByteArray(fis)));
+            } catch (Throwable e) {
+                throw new RuntimeException(String.format("Failed to read %1$s", propertiesFile), e);
+            } finally {
+                IOUtils.closeQuietly(fis);
+            }
+        }
+        return new Pair<>(created, result);
+    }
+
+    @Override
+    public void write(String mangledName, Properties props) {
+        File propertiesFile = propertiesFile(mangledName);
+        FileOutputStream fos = null;
+        try {
+            //Properties methods are synchronized, file i/o is kept out of them so virtual threads are not pinned
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            props.store(buffer, String.format("Change on %1$s", new Date()));
+            fos = new FileOutputStream(propertiesFile);
+            buffer.writeTo(fos);
+        } catch (Throwable e) {
+            throw new RuntimeException(String.format("Failed writing to %1$s", propertiesFile.getAbsolutePath()), e);
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+    }
+
+    @Override
+    public void close() {
+        //nothing is held open
+    }
+
+    protected File propertiesFile(String mangledName) {
+        return new File(outputDir, mangledName + ".properties");
+    }
+}
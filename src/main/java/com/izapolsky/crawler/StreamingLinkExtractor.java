@@ -0,0 +1,510 @@
+package com.izapolsky.crawler;
+
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts image urls and links from html while it is being read, without building DOM. Only the tag being read is
+ * held in memory, so size of document does not matter.
+ * <p>
+ * Images are taken from src, srcset and lazy-load data-* attributes of img, from src and srcset of source inside
+ * picture, and from background / background-image urls of style attributes and style elements. Urls are resolved
+ * against first base href, urls seen before it are resolved against document url.
+ * <p>
+ * Instances are stateless and can be shared between threads.
+ */
+public class StreamingLinkExtractor {
+
+    public static final int MAX_NAME_LENGTH = 64;
+    //longer values are mostly inline data: urls, they are dropped rather than buffered
+    public static final int MAX_VALUE_LENGTH = 16 * 1024;
+
+    private static final List<String> IMAGE_ATTRIBUTES = Arrays.asList("src", "data-src", "data-lazy-src", "data-original");
+    private static final List<String> SRCSET_ATTRIBUTES = Arrays.asList("srcset", "data-srcset");
+    private static final Set<String> RAW_TEXT_TAGS = new HashSet<>(Arrays.asList("script", "style", "textarea", "title"));
+    private static final Set<String> CSS_IMAGE_PROPERTIES = new HashSet<>(Arrays.asList("background", "background-image"));
+
+    /**
+     * Reads document to its end, handing images and links to callback as they are found
+     *
+     * @param document url of document, used for resolving relative urls
+     * @param reader   document content, it is not closed
+     * @param callback
+     * @return number of images found
+     * @throws IOException
+     */
+    public int extract(URL document, Reader reader, ImageDiscoveredCallback callback) throws IOException {
+        return new Tokenizer(document, reader, callback).run();
+    }
+
+    /**
+     * Parses srcset attribute value into candidate urls, descriptors are dropped
+     *
+     * @param srcset
+     * @return
+     */
+    protected static List<String> srcsetUrls(String srcset) {
+        List<String> urls = new ArrayList<>();
+        int length = srcset.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (Character.isWhitespace(srcset.charAt(i)) || srcset.charAt(i) == ',')) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(srcset.charAt(i))) {
+                i++;
+            }
+            int end = i;
+            boolean candidateDone = false;
+            while (end > start && srcset.charAt(end - 1) == ',') {
+                end--;
+                candidateDone = true;
+            }
+            if (end > start) {
+                urls.add(srcset.substring(start, end));
+            }
+            if (!candidateDone) {
+                //skip descriptors, commas inside parens do not separate candidates
+                int depth = 0;
+                while (i < length && (depth > 0 || srcset.charAt(i) != ',')) {
+                    char c = srcset.charAt(i++);
+                    if (c == '(') {
+                        depth++;
+                    } else if (c == ')' && depth > 0) {
+                        depth--;
+                    }
+                }
+            }
+        }
+        return urls;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static void append(StringBuilder sb, int c, int limit) {
+        if (sb.length() < limit) {
+            sb.append((char) c);
+        }
+    }
+
+    /**
+     * Single pass over one document
+     */
+    private static final class Tokenizer {
+        private final URL document;
+        private final Reader reader;
+        private final ImageDiscoveredCallback callback;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder name = new StringBuilder();
+        private final StringBuilder value = new StringBuilder();
+        private final Map<String, String> attributes = new HashMap<>();
+        private int position;
+        private int limit;
+        private URL base;
+        private boolean baseSeen;
+        private int pictureDepth;
+        private int images;
+
+        private Tokenizer(URL document, Reader reader, ImageDiscoveredCallback callback) {
+            this.document = document;
+            this.reader = reader;
+            this.callback = callback;
+            this.base = document;
+        }
+
+        private int run() throws IOException {
+            int c;
+            while ((c = read()) != -1) {
+                if (c == '<') {
+                    markup();
+                }
+            }
+            return images;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        /**
+         * Steps back by one character, valid only right after read of a character
+         */
+        private void unread() {
+            position--;
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (isWhitespace(c));
+            return c;
+        }
+
+        private void skipUntil(char end) throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c != -1 && c != end);
+        }
+
+        private void markup() throws IOException {
+            int c = read();
+            if (c == '!') {
+                declaration();
+            } else if (c == '?') {
+                skipUntil('>');
+            } else if (c == '/') {
+                String tag = tagName(read());
+                if ("picture".equals(tag) && pictureDepth > 0) {
+                    pictureDepth--;
+                }
+                skipUntil('>');
+            } else if (Character.isLetter(c)) {
+                String tag = tagName(c);
+                boolean selfClosing = attributes();
+                startTag(tag, selfClosing);
+                if (!selfClosing && RAW_TEXT_TAGS.contains(tag)) {
+                    rawText(tag, "style".equals(tag) ? new CssScanner() : null);
+                }
+            } else if (c != -1) {
+                //stray '<' in text
+                unread();
+            }
+        }
+
+        private void declaration() throws IOException {
+            int c = read();
+            if (c != '-') {
+                if (c != '>' && c != -1) {
+                    skipUntil('>');
+                }
+                return;
+            }
+            c = read();
+            if (c != '-') {
+                if (c != '>' && c != -1) {
+                    skipUntil('>');
+                }
+                return;
+            }
+            int dashes = 0;
+            while ((c = read()) != -1) {
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+        private String tagName(int c) throws IOException {
+            name.setLength(0);
+            while (c != -1 && !isWhitespace(c) && c != '/' && c != '>') {
+                append(name, Character.toLowerCase(c), MAX_NAME_LENGTH);
+                c = read();
+            }
+            if (c != -1) {
+                unread();
+            }
+            return name.toString();
+        }
+
+        /**
+         * Reads attributes up to the end of tag, first occurrence of attribute wins
+         *
+         * @return if tag is self-closing
+         * @throws IOException
+         */
+        private boolean attributes() throws IOException {
+            attributes.clear();
+            boolean selfClosing = false;
+            while (true) {
+                int c = skipWhitespace();
+                if (c == -1 || c == '>') {
+                    return selfClosing;
+                }
+                if (c == '/') {
+                    selfClosing = true;
+                    continue;
+                }
+                selfClosing = false;
+
+                name.setLength(0);
+                do {
+                    append(name, Character.toLowerCase(c), MAX_NAME_LENGTH);
+                    c = read();
+                } while (c != -1 && !isWhitespace(c) && c != '=' && c != '>' && c != '/');
+                if (isWhitespace(c)) {
+                    c = skipWhitespace();
+                }
+                String attribute = name.toString();
+                if (c != '=') {
+                    attributes.putIfAbsent(attribute, "");
+                    if (c != -1) {
+                        unread();
+                    }
+                    continue;
+                }
+
+                String attributeValue = attributeValue();
+                if (attributeValue != null) {
+                    attributes.putIfAbsent(attribute, attributeValue);
+                }
+            }
+        }
+
+        /**
+         * @return value of attribute, null if it is too long
+         * @throws IOException
+         */
+        private String attributeValue() throws IOException {
+            value.setLength(0);
+            int c = skipWhitespace();
+            if (c == '"' || c == '\'') {
+                int quote = c;
+                while ((c = read()) != -1 && c != quote) {
+                    append(value, c, MAX_VALUE_LENGTH + 1);
+                }
+            } else {
+                while (c != -1 && !isWhitespace(c) && c != '>') {
+                    append(value, c, MAX_VALUE_LENGTH + 1);
+                    c = read();
+                }
+                if (c != -1) {
+                    unread();
+                }
+            }
+            return value.length() > MAX_VALUE_LENGTH ? null : value.toString();
+        }
+
+        private void startTag(String tag, boolean selfClosing) {
+            switch (tag) {
+                case "base":
+                    String href = attributes.get("href");
+                    if (!baseSeen && href != null) {
+                        baseSeen = true;
+                        String resolved = resolve(unescape(href));
+                        if (resolved != null) {
+                            try {
+                                base = new URL(resolved);
+                            } catch (MalformedURLException e) {
+                                //resolved urls always parse
+                            }
+                        }
+                    }
+                    break;
+                case "a":
+                    String link = resolve(unescape(attributes.get("href")));
+                    if (link != null) {
+                        callback.notifyLinkDiscovered(document, link);
+                    }
+                    break;
+                case "img":
+                    for (String attribute : IMAGE_ATTRIBUTES) {
+                        image(attributes.get(attribute));
+                    }
+                    for (String attribute : SRCSET_ATTRIBUTES) {
+                        srcset(attributes.get(attribute));
+                    }
+                    break;
+                case "picture":
+                    if (!selfClosing) {
+                        pictureDepth++;
+                    }
+                    break;
+                case "source":
+                    //outside of picture, source points to audio or video
+                    if (pictureDepth > 0) {
+                        image(attributes.get("src"));
+                        for (String attribute : SRCSET_ATTRIBUTES) {
+                            srcset(attributes.get(attribute));
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            String style = attributes.get("style");
+            if (style != null) {
+                CssScanner css = new CssScanner();
+                String unescaped = unescape(style);
+                for (int i = 0; i < unescaped.length(); i++) {
+                    css.feed(unescaped.charAt(i));
+                }
+            }
+        }
+
+        /**
+         * Skips content of element that can not contain tags
+         *
+         * @param tag
+         * @param css receives content of element, can be null
+         * @throws IOException
+         */
+        private void rawText(String tag, CssScanner css) throws IOException {
+            String end = "</" + tag;
+            int matched = 0;
+            int c;
+            while ((c = read()) != -1) {
+                if (Character.toLowerCase(c) == end.charAt(matched)) {
+                    if (++matched < end.length()) {
+                        continue;
+                    }
+                    c = read();
+                    if (c == -1 || c == '>' || c == '/' || isWhitespace(c)) {
+                        if (c != -1 && c != '>') {
+                            skipUntil('>');
+                        }
+                        return;
+                    }
+                }
+                if (css != null) {
+                    for (int i = 0; i < matched; i++) {
+                        css.feed(end.charAt(i));
+                    }
+                }
+                matched = 0;
+                if (c == '<') {
+                    matched = 1;
+                } else if (css != null) {
+                    css.feed(c);
+                }
+            }
+        }
+
+        private void srcset(String srcset) {
+            if (srcset != null) {
+                for (String url : srcsetUrls(unescape(srcset))) {
+                    emitImage(url);
+                }
+            }
+        }
+
+        private void image(String src) {
+            if (src != null) {
+                emitImage(unescape(src));
+            }
+        }
+
+        private void emitImage(String src) {
+            String resolved = resolve(src);
+            if (resolved != null) {
+                images++;
+                callback.notifyImageDiscovered(document, resolved);
+            }
+        }
+
+        private String unescape(String value) {
+            return value == null || value.indexOf('&') < 0 ? value : Parser.unescapeEntities(value, true);
+        }
+
+        /**
+         * @param value unescaped url
+         * @return absolute url, null if there is none
+         */
+        private String resolve(String value) {
+            if (value == null) {
+                return null;
+            }
+            String trimmed = value.trim();
+            if (trimmed.isEmpty()) {
+                return null;
+            }
+            try {
+                //data: and javascript: have no url handler and are dropped here
+                return new URL(base, trimmed).toExternalForm();
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Finds url() values of background properties, fed character by character
+         */
+        private final class CssScanner {
+            private final StringBuilder property = new StringBuilder();
+            private final StringBuilder url = new StringBuilder();
+            private boolean inValue;
+            private boolean imageProperty;
+            private boolean inUrl;
+            private int quote;
+            private int urlPrefixMatched;
+
+            private void feed(int c) {
+                if (inUrl) {
+                    urlChar(c);
+                } else if (!inValue) {
+                    if (c == ':') {
+                        inValue = true;
+                        imageProperty = CSS_IMAGE_PROPERTIES.contains(property.toString().trim());
+                        property.setLength(0);
+                    } else if (c == ';' || c == '{' || c == '}') {
+                        property.setLength(0);
+                    } else {
+                        append(property, Character.toLowerCase(c), MAX_NAME_LENGTH);
+                    }
+                } else if (c == ';' || c == '{' || c == '}') {
+                    inValue = false;
+                    imageProperty = false;
+                    urlPrefixMatched = 0;
+                } else {
+                    int lower = Character.toLowerCase(c);
+                    if (lower == "url(".charAt(urlPrefixMatched)) {
+                        if (++urlPrefixMatched == 4) {
+                            urlPrefixMatched = 0;
+                            inUrl = true;
+                            quote = 0;
+                            url.setLength(0);
+                        }
+                    } else {
+                        urlPrefixMatched = lower == 'u' ? 1 : 0;
+                    }
+                }
+            }
+
+            private void urlChar(int c) {
+                if (quote == 0 && c == ')') {
+                    inUrl = false;
+                    if (imageProperty && url.length() <= MAX_VALUE_LENGTH) {
+                        String value = url.toString().trim();
+                        if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')
+                                && value.charAt(value.length() - 1) == value.charAt(0)) {
+                            value = value.substring(1, value.length() - 1);
+                        }
+                        emitImage(value);
+                    }
+                    return;
+                }
+                if (quote == 0 && (c == '"' || c == '\'')) {
+                    quote = c;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                append(url, c, MAX_VALUE_LENGTH + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.izapolsky.crawler;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Thumbnail stage - decodes image once, possibly subsampled, then produces every configured size from the previous one
+ * and encodes it into every configured format. Image writers are looked up once per thread and reused.
+ */
+public class ThumbnailGenerator {
+
+    public static final int MIN_DIMENSION = 10;
+    //decoded image is kept at least this many times wider than largest thumbnail, so scaling still has detail to work with
+    public static final int SUBSAMPLING_HEADROOM = 2;
+
+    private final int[] widths;
+    private final List<String> formats;
+    private final Map<String, String> suffixes = new HashMap<>();
+    private final ThreadLocal<Map<String, ImageWriter>> writers = ThreadLocal.withInitial(HashMap::new);
+    private final Metrics metrics;
+    //null disables near-duplicate detection
+    private final NearDuplicateIndex nearDuplicates;
+    private final ImageFilter imageFilter;
+    //scalers keep destination pixels of every width, thumbnails of one image are encoded before next one is scaled
+    private final ThreadLocal<ImageScaler> scalers;
+
+    /**
+     * @param widths  thumbnail widths, in any order
+     * @param formats image io format names, e.g. png or jpeg
+     */
+    public ThumbnailGenerator(List<Integer> widths, List<String> formats) {
+        this(widths, formats, new Metrics());
+    }
+
+    /**
+     * @param widths  thumbnail widths, in any order
+     * @param formats image io format names, e.g. png or jpeg
+     * @param metrics receives decode, scale and encode timings
+     */
+    public ThumbnailGenerator(List<Integer> widths, List<String> formats, Metrics metrics) {
+        this(widths, formats, metrics, null);
+    }
+
+    /**
+     * @param widths         thumbnail widths, in any order
+     * @param formats        image io format names, e.g. png or jpeg
+     * @param metrics        receives decode, scale and encode timings
+     * @param nearDuplicates images close to already indexed ones are not encoded, null to encode every image
+     */
+    public ThumbnailGenerator(List<Integer> widths, List<String> formats, Metrics metrics, NearDuplicateIndex nearDuplicates) {
+        this(widths, formats, metrics, nearDuplicates,
+                new ImageFilter(MIN_DIMENSION + 1, MIN_DIMENSION + 1, 0, ImageFilter.UNLIMITED, Collections.<String>emptyList()));
+    }
+
+    /**
+     * @param widths         thumbnail widths, in any order
+     * @param formats        image io format names, e.g. png or jpeg
+     * @param metrics        receives decode, scale and encode timings
+     * @param nearDuplicates images close to already indexed ones are not encoded, null to encode every image
+     * @param imageFilter    images it rejects by dimensions are not decoded
+     */
+    public ThumbnailGenerator(List<Integer> widths, List<String> formats, Metrics metrics, NearDuplicateIndex nearDuplicates, ImageFilter imageFilter) {
+        this(widths, formats, metrics, nearDuplicates, imageFilter, ImageScaler.Quality.BILINEAR);
+    }
+
+    /**
+     * @param widths         thumbnail widths, in any order
+     * @param formats        image io format names, e.g. png or jpeg
+     * @param metrics        receives decode, scale and encode timings
+     * @param nearDuplicates images close to already indexed ones are not encoded, null to encode every image
+     * @param imageFilter    images it rejects by dimensions are not decoded
+     * @param quality        how thumbnails are scaled
+     */
+    public ThumbnailGenerator(List<Integer> widths, List<String> formats, Metrics metrics, NearDuplicateIndex nearDuplicates, ImageFilter imageFilter,
+                              ImageScaler.Quality quality) {
+        this(widths, formats, metrics, nearDuplicates, imageFilter, quality, null, 0);
+    }
+
+    /**
+     * @param widths         thumbnail widths, in any order
+     * @param formats        image io format names, e.g. png or jpeg
+     * @param metrics        receives decode, scale and encode timings
+     * @param nearDuplicates images close to already indexed ones are not encoded, null to encode every image
+     * @param imageFilter    images it rejects by dimensions are not decoded
+     * @param quality        how thumbnails are scaled
+     * @param scalingPool    scales bands of large images in parallel, null to scale every image on its own thread
+     * @param parallelPixels decoded images with fewer pixels are scaled on their own thread
+     */
+    public ThumbnailGenerator(List<Integer> widths, List<String> formats, Metrics metrics, NearDuplicateIndex nearDuplicates, ImageFilter imageFilter,
+                              ImageScaler.Quality quality, ForkJoinPool scalingPool, long parallelPixels) {
+        this.scalers = ThreadLocal.withInitial(() -> new ImageScaler(quality, scalingPool, parallelPixels));
+        this.metrics = metrics;
+        this.nearDuplicates = nearDuplicates;
+        this.imageFilter = imageFilter;
+        List<Integer> sorted = new ArrayList<>(widths);
+        //cascade goes from largest to smallest
+        Collections.sort(sorted, Collections.reverseOrder());
+        this.widths = new int[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            this.widths[i] = sorted.get(i);
+        }
+        this.formats = new ArrayList<>(formats);
+        for (String format : formats) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+            if (!found.hasNext()) {
+                throw new IllegalArgumentException(String.format("No image writer for format %1$s", format));
+            }
+            String[] formatSuffixes = found.next().getOriginatingProvider().getFileSuffixes();
+            suffixes.put(format, formatSuffixes.length == 0 ? format : formatSuffixes[0]);
+        }
+    }
+
+    /**
+     * Generates thumbnails next to given image file
+     *
+     * @param file
+     * @return generated files, empty if image is too small, can't be decoded or is near-duplicate of another one
+     * @throws IOException
+     */
+    public List<File> generate(File file) throws IOException {
+        List<File> generated = new ArrayList<>();
+        long started = System.nanoTime();
+        BufferedImage image = decode(file);
+        metrics.recordSince(Metrics.DECODE, started);
+        if (image == null) {
+            return generated;
+        }
+
+        //every size is scaled before anything is encoded, so near-duplicates cost no encoding
+        BufferedImage[] scaled = new BufferedImage[widths.length];
+        ImageScaler scaler = scalers.get();
+        for (int i = 0; i < widths.length; i++) {
+            started = System.nanoTime();
+            image = scaler.scale(image, widths[i]);
+            metrics.recordSince(Metrics.SCALE, started);
+            scaled[i] = image;
+        }
+        if (nearDuplicates != null && isNearDuplicate(file, image)) {
+            return generated;
+        }
+
+        for (int i = 0; i < widths.length; i++) {
+            for (String format : formats) {
+                File output = new File(file.getParent(), file.getName() + "x" + widths[i] + "." + suffixes.get(format));
+                started = System.nanoTime();
+                if (encode(scaled[i], format, output)) {
+                    metrics.recordSince(Metrics.ENCODE, started);
+                    generated.add(output);
+                }
+            }
+        }
+        return generated;
+    }
+
+    /**
+     * Hashes image and looks it up in near-duplicate index, image is added to the index if it is new
+     *
+     * @param file
+     * @param image smallest thumbnail, or decoded image if there are no thumbnail sizes
+     * @return true if similar image was processed before
+     */
+    protected boolean isNearDuplicate(File file, BufferedImage image) {
+        long started = System.nanoTime();
+        NearDuplicateIndex.Match match = nearDuplicates.findOrAdd(PerceptualHash.dHash(image), file.getName());
+        metrics.recordSince(Metrics.PERCEPTUAL_HASH, started);
+        if (match == null) {
+            return false;
+        }
+        metrics.increment(Metrics.NEAR_DUPLICATES);
+        System.out.println(String.format("Skipping %1$s, near-duplicate of %2$s at distance %3$s", file, match.representative, match.distance));
+        return true;
+    }
+
+    /**
+     * Decodes image, skipping pixels which would be lost by scaling anyway
+     *
+     * @param file
+     * @return null for images which are too small or not recognized
+     * @throws IOException
+     */
+    protected BufferedImage decode(File file) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = iis == null ? Collections.<ImageReader>emptyIterator() : ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (imageFilter.rejectDimensions(width, height) != null) {
+                    return null;
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = subsampling(width);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Calculates how many source pixels can be skipped in each direction
+     *
+     * @param sourceWidth
+     * @return
+     */
+    protected int subsampling(int sourceWidth) {
+        if (widths.length == 0) {
+            return 1;
+        }
+        return Math.max(1, sourceWidth / (widths[0] * SUBSAMPLING_HEADROOM));
+    }
+
+    /**
+     * Encodes image with writer cached for current thread
+     *
+     * @param image
+     * @param format
+     * @param output
+     * @return false if format can't represent the image
+     * @throws IOException
+     */
+    protected boolean encode(BufferedImage image, String format, File output) throws IOException {
+        ImageWriter writer = writers.get().computeIfAbsent(format, f -> ImageIO.getImageWritersByFormatName(f).next());
+        if (!writer.getOriginatingProvider().canEncodeImage(image)) {
+            return false;
+        }
+
+        System.out.println("Generating " + output);
+        //stale file could be left from previous run
+        output.delete();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(ios);
+            writer.write(image);
+        } finally {
+            writer.reset();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+package com.izapolsky.crawler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals of completed transfers
+ */
+public class TransferStats {
+
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    public void record(long transferBytes, long transferNanos) {
+        transfers.incrementAndGet();
+        bytes.addAndGet(transferBytes);
+        nanos.addAndGet(transferNanos);
+    }
+
+    public long getTransfers() {
+        return transfers.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return average throughput of single transfer, concurrent transfers add up to more
+     */
+    public long getKilobytesPerSecond() {
+        return FileTransfers.kilobytesPerSecond(bytes.get(), nanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Transfers : %1$s files, %2$s bytes, %3$s KB/s per transfer", getTransfers(), getBytes(), getKilobytesPerSecond());
+    }
+}
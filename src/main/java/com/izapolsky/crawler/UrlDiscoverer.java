@@ -2,6 +2,7 @@ package com.izapolsky.crawler;
 
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Interface for discovering urls from given list of remote documents
@@ -13,4 +14,12 @@ public interface UrlDiscoverer {
      * @return
      */
     List<Pair<URL, String>> discover(List<URL> documents);
+
+    /**
+     * Push-style discovery - each image is handed to callback as soon as it is found, without waiting for other documents
+     * @param documents
+     * @param callback
+     * @return one promise per document, holding number of images found on it
+     */
+    List<Future<Integer>> discover(List<URL> documents, ImageDiscoveredCallback callback);
 }
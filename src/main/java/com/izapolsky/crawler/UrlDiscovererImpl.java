@@ -1,13 +1,24 @@
 package com.izapolsky.crawler;
 
 import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -19,9 +30,38 @@ import java.util.concurrent.Future;
 public class UrlDiscovererImpl implements UrlDiscoverer {
 
     private final ExecutorService ioBoundService;
+    private final CloseableHttpClient chc;
+    private final StreamingLinkExtractor extractor;
+    protected final Metrics metrics;
 
     public UrlDiscovererImpl(ExecutorService ioBoundService) {
+        this(ioBoundService, HttpClients.createDefault());
+    }
+
+    public UrlDiscovererImpl(ExecutorService ioBoundService, CloseableHttpClient chc) {
+        this(ioBoundService, chc, null);
+    }
+
+    /**
+     * @param ioBoundService
+     * @param chc
+     * @param extractor      when given, documents are tokenized while they are read instead of being parsed into DOM
+     */
+    public UrlDiscovererImpl(ExecutorService ioBoundService, CloseableHttpClient chc, StreamingLinkExtractor extractor) {
+        this(ioBoundService, chc, extractor, new Metrics());
+    }
+
+    /**
+     * @param ioBoundService
+     * @param chc
+     * @param extractor      when given, documents are tokenized while they are read instead of being parsed into DOM
+     * @param metrics        receives discovery latency
+     */
+    public UrlDiscovererImpl(ExecutorService ioBoundService, CloseableHttpClient chc, StreamingLinkExtractor extractor, Metrics metrics) {
         this.ioBoundService = ioBoundService;
+        this.chc = chc;
+        this.extractor = extractor;
+        this.metrics = metrics;
     }
 
     @Override
@@ -30,17 +70,9 @@ public class UrlDiscovererImpl implements UrlDiscoverer {
 
         try {
             List<Future<List<Pair<URL, String>>>> imagePromises = ioBoundService.invokeAll(Collections2.transform(documents, url -> () -> {
-                List<Pair<URL, String>> result;
-
-                try (InputStream is = url.openStream()){
-                    //TODO - encoding detection...
-                    Document doc = Jsoup.parse(is, "utf-8", url.toString());
-                    Elements els = doc.select("img[src]");
-                    result = Lists.transform(els, elements -> new Pair<>(url, elements.attr("abs:src")));
-                } catch (Throwable e) {
-                    throw new RuntimeException(String.format("Failed processing url %1$s", url), e);
-                }
-                return result;
+                List<Pair<URL, String>> found = new ArrayList<>();
+                process(url, (document, imageSrc) -> found.add(new Pair<>(document, imageSrc)));
+                return found;
             }));
             for (Future<List<Pair<URL, String>>> future : imagePromises) {
                 images.addAll(extract(future));
@@ -52,6 +84,111 @@ public class UrlDiscovererImpl implements UrlDiscoverer {
         return images;
     }
 
+    @Override
+    public List<Future<Integer>> discover(List<URL> documents, ImageDiscoveredCallback callback) {
+        List<Future<Integer>> results = new ArrayList<>(documents.size());
+
+        for (URL url : documents) {
+            results.add(ioBoundService.submit(() -> {
+                try {
+                    return process(url, callback);
+                } catch (RuntimeException e) {
+                    //nobody might be waiting on the promise, so make failure visible
+                    e.printStackTrace();
+                    throw e;
+                } finally {
+                    callback.notifyDocumentProcessed(url);
+                }
+            }));
+        }
+
+        return results;
+    }
+
+    /**
+     * Hands images and links of parsed document to callback
+     *
+     * @param url
+     * @param doc
+     * @param callback
+     * @return number of images found
+     */
+    protected int emit(URL url, Document doc, ImageDiscoveredCallback callback) {
+        Elements els = doc.select("img[src]");
+        for (Element element : els) {
+            callback.notifyImageDiscovered(url, element.attr("abs:src"));
+        }
+        for (Element element : doc.select("a[href]")) {
+            callback.notifyLinkDiscovered(url, element.attr("abs:href"));
+        }
+        return els.size();
+    }
+
+    /**
+     * Fetches document and hands its images and links to callback
+     *
+     * @param url
+     * @param callback
+     * @return number of images found
+     */
+    protected int process(URL url, ImageDiscoveredCallback callback) {
+        long started = System.nanoTime();
+        try {
+            return read(url, callback);
+        } finally {
+            metrics.recordSince(Metrics.DISCOVERY, started);
+        }
+    }
+
+    /**
+     * Opens document and extracts it
+     *
+     * @param url
+     * @param callback
+     * @return number of images found
+     */
+    protected int read(URL url, ImageDiscoveredCallback callback) {
+        if ("file".equals(url.getProtocol())) {
+            try (InputStream is = url.openStream()) {
+                //TODO - encoding detection...
+                return extract(url, is, null, callback);
+            } catch (Throwable e) {
+                throw new RuntimeException(String.format("Failed processing url %1$s", url), e);
+            }
+        }
+
+        try (CloseableHttpResponse response = chc.execute(new HttpGet(url.toURI()))) {
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                EntityUtils.consumeQuietly(entity);
+                throw new IllegalStateException(String.format("Unexpected response %1$s", response.getStatusLine()));
+            }
+            try (InputStream is = entity.getContent()) {
+                return extract(url, is, ContentType.getOrDefault(entity).getCharset(), callback);
+            }
+        } catch (Throwable e) {
+            throw new RuntimeException(String.format("Failed processing url %1$s", url), e);
+        }
+    }
+
+    /**
+     * Reads document content, either into DOM or through streaming extractor
+     *
+     * @param url
+     * @param is
+     * @param charset  declared charset, utf-8 is used when null
+     * @param callback
+     * @return number of images found
+     * @throws IOException
+     */
+    protected int extract(URL url, InputStream is, Charset charset, ImageDiscoveredCallback callback) throws IOException {
+        String charsetName = charset == null ? "utf-8" : charset.name();
+        if (extractor != null) {
+            return extractor.extract(url, new InputStreamReader(is, charsetName), callback);
+        }
+        return emit(url, Jsoup.parse(is, charsetName, url.toString()), callback);
+    }
+
     protected List<Pair<URL, String>> extract(Future<List<Pair<URL, String>>> futures) {
         try {
             return futures.get();
@@ -2,7 +2,7 @@ package com.izapolsky.crawler;
 
 import java.net.URL;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service for downloading images
@@ -12,11 +12,26 @@ public interface UrlFetcher {
     String SC_SKIPPED_CONCURRENCY = "-1";
     String SC_IO_ERROR = "-2";
     String SC_GENERIC_ERROR = "-3";
+    String SC_SKIPPED_DUPLICATE = "-4";
+    String SC_SKIPPED_FRESH = "-5";
+    String SC_CIRCUIT_OPEN = "-6";
+    String SC_SKIPPED_FILTERED = "-7";
+
+    int SC_TOO_MANY_REQUESTS = 429;
 
     /**
      * Downloads images from given urls to pre-defined location
      * @param imageInfo
-     * @return
+     * @param callback notified of every new body before its result completes, null if not needed
+     * @return results in order of given images, completing as each download is over
+     */
+    List<CompletableFuture<ImageResult>> downloadImages(List<Pair<URL, String>> imageInfo, ImageFetchedCallback callback);
+
+    /**
+     * Downloads single image as soon as it is known, push-style counterpart of {@link #downloadImages(List, ImageFetchedCallback)}
+     * @param imageInfo
+     * @param callback notified of new body before result completes, null if not needed
+     * @return never completes exceptionally, failures are carried by the result
      */
-    List<Future<String>> downloadImages(List<Pair<URL, String>> imageInfo, ImageFetchedCallback callback);
+    CompletableFuture<ImageResult> downloadImage(Pair<URL, String> imageInfo, ImageFetchedCallback callback);
 }
@@ -1,107 +1,163 @@
 package com.izapolsky.crawler;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 
-import java.io.*;
-import java.net.MalformedURLException;
-import java.net.URISyntaxException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
-import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Fetcher implementation
  */
-public class UrlFetcherImpl implements UrlFetcher {
+public class UrlFetcherImpl extends AbstractUrlFetcher {
 
-    private final CloseableHttpClient chc = HttpClients.createDefault();
-    private final ExecutorService ioBoundService;
-    private final File outputDir;
+    private static final String NOT_MODIFIED = String.valueOf(HttpStatus.SC_NOT_MODIFIED);
+
+    private final CloseableHttpClient chc;
+    private final HostScheduler scheduler;
 
     public UrlFetcherImpl(ExecutorService ioBoundService, File outputDir) {
-        this.ioBoundService = ioBoundService;
-        this.outputDir = outputDir;
+        this(new HostScheduler(ioBoundService, Integer.MAX_VALUE, Integer.MAX_VALUE, 0), HttpClients.createDefault(), outputDir);
     }
 
-    @Override
-    public List<Future<String>> downloadImages(List<Pair<URL, String>> images, ImageFetchedCallback callback) {
-
-        List<Future<String>> results = new ArrayList<>(images.size());
-
-        for (Pair<URL, String> imageInfo : images) {
-            results.add(ioBoundService.submit(() -> {
-                URL imageUrl = new URL(imageInfo.second);
-                String mangledName = mangle(imageUrl);
-                boolean modified = false;
-                File destinationFile = new File(outputDir, mangledName);
-                File propertiesFile = new File(outputDir, mangledName + ".properties");
-                try (RandomAccessFile raf = new RandomAccessFile(propertiesFile, "rw")) {
-                    FileLock l = null;
-                    try {
-                        l = raf.getChannel().tryLock();
-                        if (l == null) {
-                            return SC_SKIPPED_CONCURRENCY;
-                        }
+    public UrlFetcherImpl(HostScheduler scheduler, CloseableHttpClient chc, File outputDir) {
+        this(scheduler, chc, outputDir, null);
+    }
 
-                        Pair<Boolean, Properties> imageInfo1 = readOrCreate(propertiesFile, imageUrl);
-                        InputStream toClose = null;
-                        try {
-                            Pair<Pair<Boolean, String>, InputStream> fetchResult = fetch(chc, imageInfo1.second, imageUrl);
-                            if (fetchResult.first.first) {
-                                try (InputStream is = fetchResult.second) {
-                                    FileUtils.copyInputStreamToFile(is, destinationFile);
-                                    modified = true;
-                                }
-                            }
+    /**
+     * @param scheduler
+     * @param chc
+     * @param outputDir
+     * @param contentStore keeps each distinct body once, null to keep file per url
+     */
+    public UrlFetcherImpl(HostScheduler scheduler, CloseableHttpClient chc, File outputDir, ContentStore contentStore) {
+        this(scheduler, chc, outputDir, contentStore, new SidecarMetadataStore(outputDir), null);
+    }
 
-                            return fetchResult.first.second;
-                        } finally {
-                            IOUtils.closeQuietly(toClose);
-                            if (modified) {
-                                writeProps(propertiesFile, imageInfo1.second);
-                            }
-                        }
-                    } catch (OverlappingFileLockException e) {
-                        new RuntimeException(String.format("URL %1$s already being processed", imageUrl), e).printStackTrace();
-                        return SC_SKIPPED_CONCURRENCY;
-                    } finally {
-                        if (l != null) {
-                            l.close();
+    /**
+     * @param scheduler
+     * @param chc
+     * @param outputDir
+     * @param contentStore keeps each distinct body once, null to keep file per url
+     * @param metadata     where image metadata is kept between runs
+     * @param retries      null to give up after first attempt
+     */
+    public UrlFetcherImpl(HostScheduler scheduler, CloseableHttpClient chc, File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries) {
+        this(scheduler, chc, outputDir, contentStore, metadata, retries, new Metrics());
+    }
+
+    /**
+     * @param scheduler
+     * @param chc
+     * @param outputDir
+     * @param contentStore keeps each distinct body once, null to keep file per url
+     * @param metadata     where image metadata is kept between runs
+     * @param retries      null to give up after first attempt
+     * @param metrics      receives timings, sizes and statuses of downloads
+     */
+    public UrlFetcherImpl(HostScheduler scheduler, CloseableHttpClient chc, File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries, Metrics metrics) {
+        this(scheduler, chc, outputDir, contentStore, metadata, retries, metrics, null);
+    }
+
+    /**
+     * @param scheduler
+     * @param chc
+     * @param outputDir
+     * @param contentStore keeps each distinct body once, null to keep file per url
+     * @param metadata     where image metadata is kept between runs
+     * @param retries      null to give up after first attempt
+     * @param metrics      receives timings, sizes and statuses of downloads
+     * @param imageFilter  drops junk images while their headers are read, null to keep every image
+     */
+    public UrlFetcherImpl(HostScheduler scheduler, CloseableHttpClient chc, File outputDir, ContentStore contentStore, MetadataStore metadata, RetryEngine retries, Metrics metrics, ImageFilter imageFilter) {
+        super(outputDir, contentStore, metadata, retries, metrics, imageFilter);
+        this.scheduler = scheduler;
+        this.chc = chc;
+    }
+
+    @Override
+    protected CompletableFuture<String> submit(Download download) {
+        URL imageUrl = download.imageUrl;
+        String mangledName = download.mangledName;
+        return scheduler.submit(imageUrl.getHost(), () -> {
+            boolean modified = false;
+            boolean newContent = false;
+            File destinationFile = new File(outputDir, mangledName);
+            Closeable l = null;
+            try {
+                l = lockMetadata(mangledName);
+                if (l == null) {
+                    return SC_SKIPPED_CONCURRENCY;
+                }
+
+                Pair<Boolean, Properties> imageInfo1 = readOrCreate(mangledName, imageUrl);
+                if (isFresh(imageInfo1.second, destinationFile)) {
+                    return SC_SKIPPED_FRESH;
+                }
+                long started = System.nanoTime();
+                String status = String.valueOf(HttpStatus.SC_OK);
+                try {
+                    Pair<File, Boolean> stored = null;
+                    if (isLocal(imageUrl)) {
+                        stored = storeLocal(imageUrl, destinationFile, imageInfo1.second);
+                    } else {
+                        Pair<Pair<Boolean, String>, InputStream> fetchResult = fetch(chc, imageInfo1.second, imageUrl);
+                        status = fetchResult.first.second;
+                        if (NOT_MODIFIED.equals(status)) {
+                            //validators and freshness might have been renewed
+                            writeProps(mangledName, imageInfo1.second);
                         }
-                        try {
-                            if (modified && callback != null) {
-                                callback.notifyImageDownloaded(imageUrl, destinationFile);
+                        if (fetchResult.first.first) {
+                            try (InputStream is = fetchResult.second) {
+                                stored = store(is, destinationFile, imageInfo1.second);
                             }
-                        } catch (Throwable  e) {
-                            //we'll swallow exception
-                            e.printStackTrace();
                         }
                     }
-                }
-            }));
-        }
 
-        return results;
+                    if (stored != null) {
+                        destinationFile = stored.first;
+                        newContent = stored.second;
+                        modified = true;
+                        transferred(download, destinationFile, started);
+                    }
+                    return status;
+                } catch (IOException e) {
+                    //partial body never reaches destination, old validators stay in place
+                    e.printStackTrace();
+                    return SC_IO_ERROR;
+                } finally {
+                    if (modified) {
+                        writeProps(mangledName, imageInfo1.second);
+                    }
+                }
+            } catch (OverlappingFileLockException e) {
+                new RuntimeException(String.format("URL %1$s already being processed", imageUrl), e).printStackTrace();
+                return SC_SKIPPED_CONCURRENCY;
+            } finally {
+                if (l != null) {
+                    l.close();
+                }
+                //same bytes served under another url were processed already
+                if (modified && newContent) {
+                    notifyQuietly(download, destinationFile);
+                }
+            }
+        });
     }
 
     /**
-     * Process of actual fetching - have to distinguish between local and remote files
+     * Requests remote image, body of successful response is checked against announced length while it is read
      *
      * @param chc
      * @param props
@@ -110,135 +166,49 @@ public class UrlFetcherImpl implements UrlFetcher {
      */
     protected Pair<Pair<Boolean, String>, InputStream> fetch(CloseableHttpClient chc, Properties props, URL url) {
         try {
-            if (isLocal(url)) {
-                return new Pair<>(new Pair<>(true, String.valueOf(HttpStatus.SC_OK)), url.openStream());
-            }
-
-            HttpGet imageGet = new HttpGet(url.toURI());
-            imageGet.setConfig(RequestConfig.DEFAULT);
-            if (props.containsKey(HttpHeaders.ETAG)) {
-                imageGet.addHeader(HttpHeaders.IF_NONE_MATCH, props.getProperty(HttpHeaders.ETAG));
-            }
-
             //todo can be a problem when we close response before write image from stream
             //unfortunately there is mixed responsibility in when we should close requests due to commons-http API
-            CloseableHttpResponse response = chc.execute(imageGet);
+            long requested = System.nanoTime();
+            CloseableHttpResponse response = chc.execute(createRequest(props, url));
+            metrics.recordSince(Metrics.TIME_TO_FIRST_BYTE, requested);
+            int code = response.getStatusLine().getStatusCode();
+            if (code == SC_TOO_MANY_REQUESTS || code == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                scheduler.backOff(url.getHost(), retryAfter(url, response));
+            } else {
+                scheduler.recover(url.getHost());
+            }
+            HttpEntity entity = response.getEntity();
             if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
-                return new Pair<>(new Pair<>(false, String.valueOf(HttpStatus.SC_NOT_MODIFIED)), null);
+                recordResponse(response, props);
             }
-
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                HttpEntity entity = response.getEntity();
-                if (response.containsHeader(HttpHeaders.ETAG)) {
-                    //todo might have multiple etag headers
-                    props.setProperty(HttpHeaders.ETAG, response.getFirstHeader(HttpHeaders.ETAG).getValue());
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK && entity != null) {
+                InputStream body;
+                try {
+                    body = filter(url, entity.getContentType() == null ? null : entity.getContentType().getValue(), entity.getContentLength(),
+                            FileTransfers.expectLength(entity.getContent(), entity.getContentLength()));
+                } catch (IOException e) {
+                    response.close();
+                    throw e;
                 }
-                return new Pair<>(new Pair<>(true, String.valueOf(HttpStatus.SC_OK)), entity.getContent());
+                if (body == null) {
+                    //closing response without reading rest of the body drops the connection, which is cheaper than the transfer
+                    response.close();
+                    return new Pair<>(new Pair<>(false, SC_SKIPPED_FILTERED), null);
+                }
+                recordResponse(response, props);
+                //closing content stream hands connection back to the pool
+                return new Pair<>(new Pair<>(true, String.valueOf(HttpStatus.SC_OK)), body);
             }
 
+            //nothing to read, draining body lets connection go back to the pool right away
+            EntityUtils.consumeQuietly(entity);
+            response.close();
             return new Pair<>(new Pair<>(false, String.valueOf(response.getStatusLine().getStatusCode())), null);
 
         } catch (IOException e) {
             e.printStackTrace();
             return new Pair<>(new Pair<>(false, SC_IO_ERROR), null);
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(String.format("Failed to parse URI %1$s", url), e);
-        }
-    }
-
-    /**
-     * Checks if given url is from "local" filesystem
-     *
-     * @param url
-     * @return
-     */
-    protected boolean isLocal(URL url) {
-        return "file".equals(url.getProtocol());
-    }
-
-    /**
-     * Writes property data to file
-     *
-     * @param propertiesFIle
-     * @param what
-     */
-    protected void writeProps(File propertiesFIle, Properties what) {
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(propertiesFIle);
-            what.store(fos, String.format("Change on %1$s", new Date()));
-        } catch (Throwable e) {
-            throw new RuntimeException(String.format("Failed writing to %1$s", propertiesFIle.getAbsolutePath()), e);
-        } finally {
-            IOUtils.closeQuietly(fos);
-        }
-    }
-
-    /**
-     * Obtains or creates properties
-     *
-     * @param propertiesFile
-     * @param imageUrl
-     * @return
-     */
-    protected Pair<Boolean, Properties> readOrCreate(File propertiesFile, URL imageUrl) {
-        Properties result = new Properties();
-        boolean created = false;
-        if (!propertiesFile.isFile()) {
-            writeProps(propertiesFile, result);
-            created = true;
-        } else {
-            FileInputStream fis = null;
-            try {
-                fis = new FileInputStream(propertiesFile);
-                result.load(fis);
-            } catch (Throwable e) {
-                throw new RuntimeException(String.format("Failed to read %1$s", propertiesFile), e);
-            } finally {
-                IOUtils.closeQuietly(fis);
-            }
-        }
-
-        if (!result.containsKey("image-uri")) {
-            result.setProperty("image-uri", imageUrl.toString());
-        }
-
-        return new Pair<>(created, result);
-    }
-
-    /**
-     * Transforms file url into sha-256 hex hash
-     *
-     * @param imageUrl
-     * @return
-     */
-    protected static String mangle(URL imageUrl) {
-        //we exclude query part from image uri
-        try {
-            int port = imageUrl.getPort() == -1 ? detectPort(imageUrl.getProtocol()) : imageUrl.getPort();
-            return DigestUtils.sha256Hex(new URL(imageUrl.getProtocol(), imageUrl.getHost(), port, imageUrl.getPath(), null).toString());
-        } catch (MalformedURLException e) {
-            throw new RuntimeException(String.format("Failed to construct url %1$s", imageUrl), e);
-        }
-    }
-
-    /**
-     * Detects port for few known protocols
-     *
-     * @param protocol
-     * @return
-     */
-    private static int detectPort(String protocol) {
-        if ("http".equals(protocol)) {
-            return 80;
-        }
-        if ("https".equals(protocol)) {
-            return 443;
-        }
-        if ("file".equals(protocol)) {
-            return 0;
         }
-        throw new IllegalArgumentException(String.format("I don't know about protocol %1$s", protocol));
     }
 
 }
@@ -0,0 +1,62 @@
+package com.izapolsky.crawler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Access to virtual threads without raising build target - they are looked up reflectively, so the same jar runs on
+ * 1.8 with platform threads and on 21+ with virtual ones.
+ */
+public final class VirtualThreads {
+
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupFactory("crawler-virtual-");
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if running JVM provides virtual threads
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Creates executor which starts new thread for every task - virtual one if supported, platform otherwise
+     *
+     * @param namePrefix used for platform threads
+     * @return
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        if (VIRTUAL_FACTORY != null) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, VIRTUAL_FACTORY);
+            } catch (ReflectiveOperationException e) {
+                //fall through to platform threads
+            }
+        }
+
+        AtomicLong counter = new AtomicLong();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, namePrefix + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static ThreadFactory lookupFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //older jvm or virtual threads are still preview
+            return null;
+        }
+    }
+}
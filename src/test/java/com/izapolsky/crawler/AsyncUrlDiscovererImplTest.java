@@ -0,0 +1,102 @@
+package com.izapolsky.crawler;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncUrlDiscovererImplTest {
+
+    private CloseableHttpAsyncClient client;
+    private LocalHttpServer server;
+    private AsyncUrlDiscovererImpl toTest;
+
+    @Before
+    public void setUp() throws Exception {
+        client = HttpAsyncClients.createDefault();
+        client.start();
+        server = new LocalHttpServer();
+        toTest = new AsyncUrlDiscovererImpl(Executors.newSingleThreadExecutor(), client);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testRemoteAndLocalDocuments() throws Exception {
+        List<Pair<URL, String>> images = toTest.discover(Arrays.asList(server.url("/sample.html"), getClass().getResource("/other.html")));
+        assertEquals(2, images.size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMissingDocumentFails() throws Exception {
+        toTest.discover(Arrays.asList(server.url("/missing.html")));
+    }
+
+    @Test
+    public void testImagesReportedBeforeBodyEnds() throws Exception {
+        CountDownLatch discovered = new CountDownLatch(1);
+        AtomicBoolean seenEarly = new AtomicBoolean();
+        server.handle("/slow.html", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write("<html><body><img src=\"first.png\">".getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                try {
+                    seenEarly.set(discovered.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                os.write("<img src=\"second.png\"></body></html>".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        toTest = new AsyncUrlDiscovererImpl(Executors.newSingleThreadExecutor(), client, new StreamingLinkExtractor());
+
+        AtomicInteger images = new AtomicInteger();
+        int found = toTest.discover(Collections.singletonList(server.url("/slow.html")), (document, imageSrc) -> {
+            images.incrementAndGet();
+            discovered.countDown();
+        }).get(0).get(10, TimeUnit.SECONDS);
+
+        assertTrue("first image has to be reported while rest of body is in transfer", seenEarly.get());
+        assertEquals(2, found);
+        assertEquals(2, images.get());
+    }
+
+    @Test
+    public void testBodyLargerThanBuffer() throws Exception {
+        int count = 50000;
+        StringBuilder page = new StringBuilder("<html><body>");
+        for (int i = 0; i < count; i++) {
+            page.append("<p>filler</p><img src=\"").append(i).append(".png\">");
+        }
+        byte[] body = page.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+        assertTrue(body.length > AsyncUrlDiscovererImpl.MAX_BUFFERED_BYTES * 10);
+        server.handle("/large.html", exchange -> LocalHttpServer.respond(exchange, 200, body));
+        toTest = new AsyncUrlDiscovererImpl(Executors.newSingleThreadExecutor(), client, new StreamingLinkExtractor());
+
+        List<Pair<URL, String>> images = toTest.discover(Collections.singletonList(server.url("/large.html")));
+
+        assertEquals(count, images.size());
+        assertEquals(server.url("/49999.png").toString(), images.get(count - 1).second);
+    }
+}
@@ -0,0 +1,220 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncUrlFetcherImplTest {
+
+    private CloseableHttpAsyncClient client;
+    private ExecutorService service;
+    private LocalHttpServer server;
+    private File outputDir;
+    private AsyncUrlFetcherImpl toTest;
+
+    @Before
+    public void setUp() throws Exception {
+        client = HttpAsyncClients.custom().setMaxConnPerRoute(100).setMaxConnTotal(100).build();
+        client.start();
+        service = Executors.newSingleThreadExecutor();
+        server = new LocalHttpServer();
+        outputDir = Files.createTempDir();
+        toTest = new AsyncUrlFetcherImpl(client, service, outputDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        service.shutdown();
+    }
+
+    @Test
+    public void testDownloadsToFile() throws Exception {
+        URL rose = server.url("/rose.jpg");
+        assertEquals("200", toTest.downloadImage(new Pair<>(null, rose.toString()), null).get().getStatus());
+        assertArrayEquals(Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI())), Files.toByteArray(new File(outputDir, UrlFetcherImpl.mangle(rose))));
+    }
+
+    @Test
+    public void testMissingLeavesNoFile() throws Exception {
+        URL missing = server.url("/missing.png");
+        assertEquals("404", toTest.downloadImage(new Pair<>(null, missing.toString()), null).get().getStatus());
+        assertFalse(new File(outputDir, UrlFetcherImpl.mangle(missing)).exists());
+        assertFalse(new File(outputDir, UrlFetcherImpl.mangle(missing) + ".part").exists());
+    }
+
+    @Test
+    public void testManyConcurrentTransfers() throws Exception {
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        server.handle("/img/", exchange -> LocalHttpServer.respond(exchange, 200, rose));
+
+        List<CompletableFuture<ImageResult>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            results.add(toTest.downloadImage(new Pair<>(null, server.url("/img/" + i + ".jpg").toString()), null));
+        }
+        for (CompletableFuture<ImageResult> result : results) {
+            assertEquals("200", result.get().getStatus());
+        }
+        assertEquals(rose.length, new File(outputDir, UrlFetcherImpl.mangle(server.url("/img/49.jpg"))).length());
+    }
+
+    @Test
+    public void testLocalFile() throws Exception {
+        assertEquals("200", toTest.downloadImage(new Pair<>(null, getClass().getResource("/rose.jpg").toString()), null).get().getStatus());
+    }
+
+    @Test
+    public void testFreshImageIsNotRequested() throws Exception {
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        server.handle("/fresh.jpg", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=3600");
+            LocalHttpServer.respond(exchange, 200, rose);
+        });
+        String fresh = server.url("/fresh.jpg").toString();
+
+        assertEquals("200", toTest.downloadImage(new Pair<>(null, fresh), null).get().getStatus());
+        AsyncUrlFetcherImpl nextRun = new AsyncUrlFetcherImpl(client, service, outputDir);
+        assertEquals(UrlFetcher.SC_SKIPPED_FRESH, nextRun.downloadImage(new Pair<>(null, fresh), null).get().getStatus());
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testRevalidatesWithLastModified() throws Exception {
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        String lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+        server.handle("/dated.jpg", exchange -> {
+            if (lastModified.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+                LocalHttpServer.respond(exchange, 304, new byte[0]);
+            } else {
+                exchange.getResponseHeaders().add("Last-Modified", lastModified);
+                LocalHttpServer.respond(exchange, 200, rose);
+            }
+        });
+        String dated = server.url("/dated.jpg").toString();
+
+        assertEquals("200", toTest.downloadImage(new Pair<>(null, dated), null).get().getStatus());
+        AsyncUrlFetcherImpl nextRun = new AsyncUrlFetcherImpl(client, service, outputDir);
+        assertEquals("304", nextRun.downloadImage(new Pair<>(null, dated), null).get().getStatus());
+    }
+
+    @Test
+    public void testTrackingPixelIsFiltered() throws Exception {
+        byte[] pixel = ImageProbeTest.encode(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED), "gif");
+        server.handle("/pixel.gif", exchange -> LocalHttpServer.respond(exchange, 200, pixel));
+        server.handle("/page.jpg", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            LocalHttpServer.respond(exchange, 200, pixel);
+        });
+        Metrics metrics = new Metrics();
+        AsyncUrlFetcherImpl filtering = new AsyncUrlFetcherImpl(client, service, outputDir, null, new SidecarMetadataStore(outputDir), null, metrics,
+                new ImageFilter(11, 11, 0, ImageFilter.UNLIMITED, Collections.singletonList("image/")));
+
+        URL filtered = server.url("/pixel.gif");
+        assertEquals(UrlFetcher.SC_SKIPPED_FILTERED, filtering.downloadImage(new Pair<>(null, filtered.toString()), null).get().getStatus());
+        assertEquals(UrlFetcher.SC_SKIPPED_FILTERED, filtering.downloadImage(new Pair<>(null, server.url("/page.jpg").toString()), null).get().getStatus());
+        assertEquals("200", filtering.downloadImage(new Pair<>(null, server.url("/rose.jpg").toString()), null).get().getStatus());
+        assertEquals(2, metrics.getCount(Metrics.FILTERED));
+        assertFalse(new File(outputDir, UrlFetcherImpl.mangle(filtered)).exists());
+        assertFalse(new File(outputDir, UrlFetcherImpl.mangle(filtered) + ".part").exists());
+    }
+
+    @Test
+    public void testFilteredBeforeBodyEnds() throws Exception {
+        byte[] pixel = ImageProbeTest.encode(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED), "gif");
+        CountDownLatch released = new CountDownLatch(1);
+        server.handle("/slow.gif", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/gif");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(pixel);
+                os.flush();
+                released.await(5, TimeUnit.SECONDS);
+                os.write(new byte[1024 * 1024]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                //connection dropped by the client
+            }
+        });
+        AsyncUrlFetcherImpl filtering = new AsyncUrlFetcherImpl(client, service, outputDir, null, new SidecarMetadataStore(outputDir), null, new Metrics(),
+                new ImageFilter(11, 11, 0, ImageFilter.UNLIMITED, Collections.singletonList("image/")));
+
+        URL filtered = server.url("/slow.gif");
+        try {
+            //rest of the body is only sent after the verdict
+            assertEquals(UrlFetcher.SC_SKIPPED_FILTERED, filtering.downloadImage(new Pair<>(null, filtered.toString()), null).get(3, TimeUnit.SECONDS).getStatus());
+        } finally {
+            released.countDown();
+        }
+        assertFalse(new File(outputDir, UrlFetcherImpl.mangle(filtered) + ".part").exists());
+    }
+
+    @Test
+    public void testPerHostDelay() throws Exception {
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        List<Long> arrivals = new CopyOnWriteArrayList<>();
+        server.handle("/polite/", exchange -> {
+            arrivals.add(System.nanoTime());
+            LocalHttpServer.respond(exchange, 200, rose);
+        });
+        HostScheduler scheduler = new HostScheduler(service, 100, 4, 200);
+        AsyncUrlFetcherImpl polite = new AsyncUrlFetcherImpl(scheduler, client, service, outputDir, null, new SidecarMetadataStore(outputDir), null, new Metrics(), null);
+
+        List<CompletableFuture<ImageResult>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(polite.downloadImage(new Pair<>(null, server.url("/polite/" + i + ".jpg").toString()), null));
+        }
+        for (CompletableFuture<ImageResult> result : results) {
+            assertEquals("200", result.get().getStatus());
+        }
+        //requests would all arrive at once without the scheduler
+        assertTrue(arrivals.toString(), arrivals.get(1) - arrivals.get(0) >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(arrivals.toString(), arrivals.get(2) - arrivals.get(1) >= TimeUnit.MILLISECONDS.toNanos(150));
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testBacksOffOverloadedHost() throws Exception {
+        List<Long> arrivals = new CopyOnWriteArrayList<>();
+        server.handle("/busy.jpg", exchange -> {
+            arrivals.add(System.nanoTime());
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            LocalHttpServer.respond(exchange, 503, new byte[0]);
+        });
+        server.handle("/after.jpg", exchange -> {
+            arrivals.add(System.nanoTime());
+            LocalHttpServer.respond(exchange, 404, new byte[0]);
+        });
+        HostScheduler scheduler = new HostScheduler(service, 100, 4, 0);
+        AsyncUrlFetcherImpl polite = new AsyncUrlFetcherImpl(scheduler, client, service, outputDir, null, new SidecarMetadataStore(outputDir), null, new Metrics(), null);
+
+        assertEquals("503", polite.downloadImage(new Pair<>(null, server.url("/busy.jpg").toString()), null).get().getStatus());
+        assertEquals("404", polite.downloadImage(new Pair<>(null, server.url("/after.jpg").toString()), null).get().getStatus());
+        assertTrue(arrivals.toString(), arrivals.get(1) - arrivals.get(0) >= TimeUnit.MILLISECONDS.toNanos(900));
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,99 @@
+package com.izapolsky.crawler;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachePolicyTest {
+
+    private static final long NOW = 1000000000000L;
+
+    private final CachePolicy toTest = new CachePolicy();
+
+    @Test
+    public void testMaxAge() {
+        Properties props = new Properties();
+        toTest.record(response(200, HttpHeaders.CACHE_CONTROL, "public, max-age=60", HttpHeaders.AGE, "10"), props, NOW);
+
+        assertTrue(toTest.isFresh(props, NOW + TimeUnit.SECONDS.toMillis(49)));
+        assertFalse(toTest.isFresh(props, NOW + TimeUnit.SECONDS.toMillis(50)));
+    }
+
+    @Test
+    public void testMaxAgeWinsOverExpires() {
+        Properties props = new Properties();
+        toTest.record(response(200, HttpHeaders.CACHE_CONTROL, "max-age=0", HttpHeaders.EXPIRES, DateUtils.formatDate(new Date(NOW + 60000))), props, NOW);
+
+        assertFalse(toTest.isFresh(props, NOW));
+    }
+
+    @Test
+    public void testExpiresRelativeToServerDate() {
+        Properties props = new Properties();
+        //server clock is an hour behind ours
+        long serverNow = NOW - TimeUnit.HOURS.toMillis(1);
+        toTest.record(response(200, HttpHeaders.DATE, DateUtils.formatDate(new Date(serverNow)),
+                HttpHeaders.EXPIRES, DateUtils.formatDate(new Date(serverNow + 60000))), props, NOW);
+
+        assertTrue(toTest.isFresh(props, NOW + 59000));
+        assertFalse(toTest.isFresh(props, NOW + 61000));
+    }
+
+    @Test
+    public void testNoCacheAndInvalidExpires() {
+        Properties props = new Properties();
+        toTest.record(response(200, HttpHeaders.CACHE_CONTROL, "no-cache, max-age=60"), props, NOW);
+        assertFalse(toTest.isFresh(props, NOW));
+
+        toTest.record(response(200, HttpHeaders.EXPIRES, "0"), props, NOW);
+        assertFalse(toTest.isFresh(props, NOW));
+    }
+
+    @Test
+    public void testValidators() {
+        Properties props = new Properties();
+        toTest.record(response(200, HttpHeaders.ETAG, "\"a\"", HttpHeaders.ETAG, "W/\"b\"", HttpHeaders.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT"), props, NOW);
+
+        HttpGet request = new HttpGet("http://example.com/image.png");
+        toTest.addValidators(request, props);
+        assertEquals("\"a\", W/\"b\"", request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue());
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE).getValue());
+    }
+
+    @Test
+    public void testNotModifiedKeepsMissingValidators() {
+        Properties props = new Properties();
+        toTest.record(response(200, HttpHeaders.ETAG, "\"a\"", HttpHeaders.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT"), props, NOW);
+
+        toTest.record(response(304, HttpHeaders.ETAG, "\"b\"", HttpHeaders.CACHE_CONTROL, "max-age=60"), props, NOW);
+        assertEquals("\"b\"", props.getProperty(HttpHeaders.ETAG));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", props.getProperty(HttpHeaders.LAST_MODIFIED));
+        assertTrue(toTest.isFresh(props, NOW));
+
+        toTest.record(response(200), props, NOW);
+        assertNull(props.getProperty(HttpHeaders.ETAG));
+        assertNull(props.getProperty(HttpHeaders.LAST_MODIFIED));
+        assertFalse(toTest.isFresh(props, NOW));
+    }
+
+    private static HttpResponse response(int status, String... headers) {
+        HttpResponse result = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        for (int i = 0; i < headers.length; i += 2) {
+            result.addHeader(headers[i], headers[i + 1]);
+        }
+        return result;
+    }
+}
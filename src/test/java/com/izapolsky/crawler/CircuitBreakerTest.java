@@ -0,0 +1,36 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testProbeClosesCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.failure("example.com");
+        assertFalse(breaker.allow("example.com"));
+
+        Thread.sleep(100);
+        assertTrue(breaker.allow("example.com"));
+        //only single probe is let through
+        assertFalse(breaker.allow("example.com"));
+        breaker.success("example.com");
+        assertTrue(breaker.allow("example.com"));
+        assertFalse(breaker.isOpen("example.com"));
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 50);
+        for (int i = 0; i < 3; i++) {
+            breaker.failure("example.com");
+        }
+        Thread.sleep(100);
+        assertTrue(breaker.allow("example.com"));
+        breaker.failure("example.com");
+        assertFalse(breaker.allow("example.com"));
+    }
+}
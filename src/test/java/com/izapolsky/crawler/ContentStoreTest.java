@@ -0,0 +1,51 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentStoreTest {
+
+    @Test
+    public void testSameContentIsStoredOnce() throws Exception {
+        ContentStore toTest = new ContentStore(Files.createTempDir());
+        byte[] body = "image bytes".getBytes(StandardCharsets.UTF_8);
+
+        Pair<File, Boolean> first = toTest.store(new ByteArrayInputStream(body));
+        Pair<File, Boolean> second = toTest.store(new ByteArrayInputStream(body));
+
+        assertTrue(first.second);
+        assertFalse(second.second);
+        assertEquals(first.first, second.first);
+        assertEquals(DigestUtils.sha256Hex(body), first.first.getName());
+        assertArrayEquals(body, Files.toByteArray(first.first));
+        assertEquals(1, toTest.getStored());
+        assertEquals(1, toTest.getDeduplicated());
+        //temporary files are cleaned up
+        assertEquals(1, first.first.getParentFile().list().length);
+    }
+
+    @Test
+    public void testStoreFileKeepsSource() throws Exception {
+        File dir = Files.createTempDir();
+        ContentStore toTest = new ContentStore(dir);
+        File part = new File(dir, "image.part");
+        Files.write("other bytes".getBytes(StandardCharsets.UTF_8), part);
+
+        Pair<File, Boolean> stored = toTest.store(part);
+
+        assertTrue(stored.second);
+        assertTrue(part.isFile());
+        assertEquals(DigestUtils.sha256Hex("other bytes"), stored.first.getName());
+        assertFalse(toTest.store(new ByteArrayInputStream("other bytes".getBytes(StandardCharsets.UTF_8))).second);
+    }
+}
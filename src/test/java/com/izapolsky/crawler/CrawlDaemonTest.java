@@ -0,0 +1,219 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CrawlDaemonTest {
+
+    private static final String TOKEN = "secret";
+
+    @Test
+    public void testRunsSubmittedJobs() throws Exception {
+        File outputDir = Files.createTempDir();
+        List<Main.Args> crawled = Collections.synchronizedList(new ArrayList<>());
+        try (CrawlDaemon toTest = new CrawlDaemon(args -> {
+            crawled.add(args);
+            Map<String, AtomicInteger> results = new ConcurrentHashMap<>();
+            results.put("200", new AtomicInteger(args.inputUrls.size()));
+            return results;
+        }, 0, 2, outputDir, TOKEN)) {
+            String[] submitted = request(toTest, "POST", CrawlDaemon.JOBS, "{\"args\": [\"--max-depth\", 1, \"http://example.com\", \"http://example.org\"]}");
+            assertEquals("202", submitted[0]);
+            assertTrue(submitted[1], submitted[1].contains("\"id\":1"));
+
+            String[] done = awaitState(toTest, 1, CrawlDaemon.State.DONE);
+            assertTrue(done[1], done[1].contains("\"results\":{\"200\":2}"));
+            assertEquals(1, crawled.size());
+            assertEquals(1, crawled.get(0).maxDepth);
+            assertEquals(outputDir, crawled.get(0).outputDir);
+
+            String[] all = request(toTest, "GET", CrawlDaemon.JOBS, null);
+            assertTrue(all[1], all[1].startsWith("[{") && all[1].contains("\"state\":\"DONE\""));
+            assertEquals("404", request(toTest, "GET", CrawlDaemon.JOBS + "/2", null)[0]);
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidJobs() throws Exception {
+        try (CrawlDaemon toTest = new CrawlDaemon(args -> {
+            throw new AssertionError("Invalid job should not run");
+        }, 0, 1, Files.createTempDir(), TOKEN)) {
+            String outside = Files.createTempDir().getAbsolutePath();
+            StringBuilder nested = new StringBuilder("{\"args\": ");
+            for (int i = 0; i < 10000; i++) {
+                nested.append('[');
+            }
+            for (String invalid : new String[]{nested.toString(), "{\"args\": [\"http://example.com\"", "{\"urls\": [\"http://example.com\"]}",
+                    "{\"args\": [\"--max-depth\", \"1\"]}", "{\"args\": [\"--daemon\", \"http://example.com\"]}", "{\"args\": [\"--max-depth\", \"many\", \"http://example.com\"]}",
+                    "{\"args\": [\"-o\", \"" + outside + "\", \"http://example.com\"]}",
+                    "{\"args\": [\"--metrics-file\", \"" + outside + "/metrics.json\", \"http://example.com\"]}"}) {
+                String[] response = request(toTest, "POST", CrawlDaemon.JOBS, invalid);
+                assertEquals(invalid + " : " + response[1], "400", response[0]);
+                assertTrue(response[1], response[1].startsWith("{\"error\":"));
+            }
+        }
+    }
+
+    @Test
+    public void testQueuesJobsBeyondLimit() throws Exception {
+        File outputDir = Files.createTempDir();
+        CountDownLatch release = new CountDownLatch(1);
+        try (CrawlDaemon toTest = new CrawlDaemon(args -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new ConcurrentHashMap<>();
+        }, 0, 1, outputDir, TOKEN)) {
+            toTest.submit(Arrays.asList("--journal", "http://example.com"));
+            awaitState(toTest, 1, CrawlDaemon.State.RUNNING);
+            toTest.submit(Collections.singletonList("http://example.org"));
+            assertEquals("QUEUED", toTest.status(2).get("state"));
+            //both would append to the same journal
+            assertEquals("409", request(toTest, "POST", CrawlDaemon.JOBS, "{\"args\": [\"--resume\", \"http://example.net\"]}")[0]);
+
+            assertEquals("202", request(toTest, "POST", CrawlDaemon.SHUTDOWN, "")[0]);
+            assertEquals("503", request(toTest, "POST", CrawlDaemon.JOBS, "{\"args\": [\"http://example.net\"]}")[0]);
+            release.countDown();
+            toTest.awaitShutdown();
+            assertEquals("DONE", toTest.status(1).get("state"));
+            assertEquals("DONE", toTest.status(2).get("state"));
+        }
+    }
+
+    @Test
+    public void testRequiresTokenAndJson() throws Exception {
+        try (CrawlDaemon toTest = new CrawlDaemon(args -> {
+            throw new AssertionError("Unauthorized job should not run");
+        }, 0, 1, Files.createTempDir(), TOKEN)) {
+            URL jobs = new URL("http", "127.0.0.1", toTest.getPort(), CrawlDaemon.JOBS);
+            String job = "{\"args\": [\"http://example.com\"]}";
+            assertEquals("401", request(jobs, "POST", job, null, CrawlDaemon.JSON)[0]);
+            assertEquals("401", request(jobs, "POST", job, "guess", CrawlDaemon.JSON)[0]);
+            assertEquals("401", request(jobs, "GET", null, null, null)[0]);
+            //what a form on a web page could send
+            assertEquals("415", request(jobs, "POST", job, TOKEN, "text/plain")[0]);
+            assertEquals("401", request(new URL("http", "127.0.0.1", toTest.getPort(), CrawlDaemon.SHUTDOWN), "POST", "", null, null)[0]);
+            assertEquals("200", request(jobs, "GET", null, TOKEN, null)[0]);
+        }
+    }
+
+    @Test
+    public void testJobsShareWarmCrawler() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        File outputDir = Files.createTempDir();
+        Thread daemon = new Thread(() -> Main.main("--keep-going", "--daemon", "--daemon-port", String.valueOf(port), "--daemon-token", TOKEN,
+                "-o", outputDir.getAbsolutePath()));
+        daemon.start();
+        URL jobs = new URL("http", "127.0.0.1", port, CrawlDaemon.JOBS);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (true) {
+            try {
+                request(jobs, "GET", null);
+                break;
+            } catch (IOException e) {
+                assertTrue("Daemon did not start", System.currentTimeMillis() < deadline);
+                Thread.sleep(50);
+            }
+        }
+        String sample = getClass().getResource("/sample.html").toString();
+        for (int i = 0; i < 2; i++) {
+            File jobDir = new File(outputDir, "job" + i);
+            assertTrue(jobDir.mkdir());
+            String job = String.format("{\"args\": [\"--metadata-index\", \"--metrics-file\", \"%1$s\", \"-o\", \"%2$s\", \"%3$s\"]}",
+                    new File(jobDir, "metrics.json").getAbsolutePath(), jobDir.getAbsolutePath(), sample);
+            assertEquals("202", request(jobs, "POST", job)[0]);
+        }
+        for (int id = 1; id <= 2; id++) {
+            URL status = new URL("http", "127.0.0.1", port, CrawlDaemon.JOBS + "/" + id);
+            String[] response;
+            do {
+                assertTrue("Job did not finish", System.currentTimeMillis() < deadline);
+                Thread.sleep(50);
+                response = request(status, "GET", null);
+            } while (!response[1].contains("\"state\":\"DONE\"") && !response[1].contains("\"state\":\"FAILED\""));
+            assertTrue(response[1], response[1].contains("\"results\":{\"200\":1}"));
+        }
+        for (int i = 0; i < 2; i++) {
+            //each job writes its own numbers, not those of every job the daemon ran
+            String metrics = Files.toString(new File(outputDir, "job" + i + "/metrics.json"), StandardCharsets.UTF_8);
+            assertTrue(metrics, metrics.contains("\"results.200\":1"));
+        }
+        request(new URL("http", "127.0.0.1", port, CrawlDaemon.SHUTDOWN), "POST", "");
+        daemon.join(TimeUnit.SECONDS.toMillis(30));
+        assertTrue("Daemon did not exit", !daemon.isAlive());
+    }
+
+    private static String[] awaitState(CrawlDaemon daemon, long id, CrawlDaemon.State state) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!state.name().equals(daemon.status(id).get("state"))) {
+            assertTrue(String.valueOf(daemon.status(id)), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return request(daemon, "GET", CrawlDaemon.JOBS + "/" + id, null);
+    }
+
+    private static String[] request(CrawlDaemon daemon, String method, String path, String body) throws IOException {
+        return request(new URL("http", "127.0.0.1", daemon.getPort(), path), method, body);
+    }
+
+    private static String[] request(URL url, String method, String body) throws IOException {
+        return request(url, method, body, TOKEN, CrawlDaemon.JSON);
+    }
+
+    /**
+     * @param token       null sends no token
+     * @param contentType null sends no content type
+     * @return status code and body of response
+     */
+    private static String[] request(URL url, String method, String body, String token, String contentType) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            if (token != null) {
+                connection.setRequestProperty(CrawlDaemon.AUTHORIZATION, CrawlDaemon.BEARER + token);
+            }
+            if (body != null) {
+                if (contentType != null) {
+                    connection.setRequestProperty("Content-Type", contentType);
+                }
+                connection.setDoOutput(true);
+                try (OutputStream os = connection.getOutputStream()) {
+                    os.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            try (InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                return new String[]{String.valueOf(status), IOUtils.toString(is, StandardCharsets.UTF_8)};
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
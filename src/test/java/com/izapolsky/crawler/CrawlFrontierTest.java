@@ -0,0 +1,73 @@
+package com.izapolsky.crawler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CrawlFrontierTest {
+
+    private ExecutorService service;
+    private List<Pair<URL, String>> images;
+
+    @Before
+    public void setUp() {
+        service = Executors.newFixedThreadPool(2);
+        images = new CopyOnWriteArrayList<>();
+    }
+
+    @Test
+    public void testSeedsOnly() throws Exception {
+        CrawlFrontier frontier = crawl(0, 100);
+        assertEquals(1, frontier.getAdmitted());
+        assertEquals(1, images.size());
+    }
+
+    @Test
+    public void testFollowsLinksOnceEach() throws Exception {
+        CrawlFrontier frontier = crawl(5, 100);
+        //sample -> other -> sample (and sample#top) are the same document
+        assertEquals(2, frontier.getAdmitted());
+        assertEquals(2, images.size());
+    }
+
+    @Test
+    public void testMaxPages() throws Exception {
+        CrawlFrontier frontier = crawl(5, 1);
+        assertEquals(1, frontier.getAdmitted());
+        assertEquals(1, images.size());
+    }
+
+    @Test
+    public void testSkipsUnknownProtocols() throws Exception {
+        CrawlFrontier frontier = new CrawlFrontier(new UrlDiscovererImpl(service), (document, imageSrc) -> {}, 1, 10, 1);
+        assertFalse(frontier.offer(new URL("mailto:nobody@example.com"), 0));
+        assertTrue(frontier.isDone());
+    }
+
+    @Test
+    public void testDoneWhenDocumentCannotBeSubmitted() throws Exception {
+        service.shutdown();
+        CrawlFrontier frontier = new CrawlFrontier(new UrlDiscovererImpl(service), (document, imageSrc) -> {}, 1, 10, 1);
+        assertTrue(frontier.offer(getClass().getResource("/sample.html"), 0));
+        assertTrue(frontier.isDone());
+    }
+
+    private CrawlFrontier crawl(int maxDepth, int maxPages) throws InterruptedException {
+        CrawlFrontier frontier = new CrawlFrontier(new UrlDiscovererImpl(service), (document, imageSrc) -> images.add(new Pair<>(document, imageSrc)), maxDepth, maxPages, 2);
+        frontier.start(Collections.singletonList(getClass().getResource("/sample.html")));
+        while (!frontier.isDone()) {
+            Thread.sleep(10);
+        }
+        return frontier;
+    }
+}
@@ -0,0 +1,146 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CrawlJournalTest {
+
+    @Test
+    public void testReplaySkipsCompletedWork() throws Exception {
+        File dir = Files.createTempDir();
+        URL seed = new URL("http://example.com/");
+        URL child = new URL("http://example.com/child.html");
+        File stored = new File(dir, "stored");
+        File thumbnailed = new File(dir, "thumbnailed");
+
+        try (CrawlJournal journal = new CrawlJournal(dir)) {
+            journal.enqueued(seed, 0);
+            journal.discovered(seed, "http://example.com/done.png");
+            journal.discovered(seed, "http://example.com/failed.png");
+            journal.discovered(seed, "http://example.com/pending.png");
+            journal.discovered(seed, "http://example.com/duplicate.png");
+            journal.enqueued(child, 1);
+            journal.processed(seed);
+            journal.fetched("http://example.com/done.png", "200");
+            journal.fetched("http://example.com/failed.png", "503");
+            journal.fetched("http://example.com/duplicate.png", UrlFetcher.SC_SKIPPED_DUPLICATE);
+            journal.stored(stored);
+            journal.stored(thumbnailed);
+            journal.thumbnailed(thumbnailed);
+        }
+
+        CrawlJournal.State state = CrawlJournal.replay(dir);
+
+        assertEquals(Collections.singletonList(seed), state.getProcessedDocuments());
+        assertEquals(1, state.getPendingDocuments().size());
+        assertEquals(child, state.getPendingDocuments().get(0).first);
+        assertEquals(Integer.valueOf(1), state.getPendingDocuments().get(0).second);
+        assertTrue(state.isFetched("http://example.com/done.png"));
+        assertFalse(state.isFetched("http://example.com/failed.png"));
+        assertEquals(3, state.getPendingImages().size());
+        assertEquals(Collections.singletonList(stored.getAbsoluteFile()), state.getPendingThumbnails());
+    }
+
+    @Test
+    public void testTornEntryIsIgnored() throws Exception {
+        File dir = Files.createTempDir();
+        try (CrawlJournal journal = new CrawlJournal(dir)) {
+            journal.discovered(new URL("http://example.com/"), "http://example.com/image.png");
+        }
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, CrawlJournal.FILE_NAME), true)) {
+            //crash in the middle of "F image 503"
+            fos.write("F\thttp://example.com/image.png\t50".getBytes(StandardCharsets.UTF_8));
+        }
+
+        CrawlJournal.State state = CrawlJournal.replay(dir);
+        assertFalse(state.isFetched("http://example.com/image.png"));
+        assertEquals(1, state.getPendingImages().size());
+    }
+
+    @Test
+    public void testResumesAfterRepeatedCrashes() throws Exception {
+        File dir = Files.createTempDir();
+        File file = new File(dir, CrawlJournal.FILE_NAME);
+        URL seed = new URL("http://example.com/");
+        File stored = new File(dir, "stored");
+        try (CrawlJournal journal = new CrawlJournal(dir)) {
+            journal.enqueued(seed, 0);
+            journal.discovered(seed, "http://example.com/first.png");
+        }
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            //first run crashes in the middle of "Q 1 document"
+            fos.write("Q	1".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(1, CrawlJournal.replay(dir).getPendingDocuments().size());
+        try (CrawlJournal journal = new CrawlJournal(dir)) {
+            journal.stored(stored);
+            journal.discovered(seed, "http://example.com/second.png");
+        }
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            //resumed run crashes too
+            fos.write("F	http://example.com/second".getBytes(StandardCharsets.UTF_8));
+        }
+
+        CrawlJournal.State state = CrawlJournal.replay(dir);
+        assertEquals(1, state.getPendingDocuments().size());
+        assertEquals(2, state.getPendingImages().size());
+        assertEquals(Collections.singletonList(stored.getAbsoluteFile()), state.getPendingThumbnails());
+        try (CrawlJournal journal = new CrawlJournal(dir)) {
+            journal.thumbnailed(stored);
+        }
+        assertTrue(CrawlJournal.replay(dir).getPendingThumbnails().isEmpty());
+    }
+
+    @Test
+    public void testSkipsEntriesWithWrongFields() throws Exception {
+        File dir = Files.createTempDir();
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, CrawlJournal.FILE_NAME))) {
+            //entries merged by older version which appended onto torn line
+            fos.write("Q\t1S\t/stored\nI\thttp://example.com/\nQ\t0\thttp://example.com/\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        CrawlJournal.State state = CrawlJournal.replay(dir);
+        assertEquals(1, state.getPendingDocuments().size());
+        assertTrue(state.getPendingImages().isEmpty());
+        assertTrue(state.getPendingThumbnails().isEmpty());
+    }
+
+    @Test
+    public void testFieldsWithSeparatorsReadBackUnchanged() throws Exception {
+        File dir = Files.createTempDir();
+        URL seed = new URL("http://example.com/");
+        String pending = "http://example.com/a%09b\tc.png";
+        String fetched = "http://example.com/100%25\n.png";
+        File stored = new File(dir, "odd\tname%0A");
+        try (CrawlJournal journal = new CrawlJournal(dir)) {
+            journal.discovered(seed, pending);
+            journal.discovered(seed, fetched);
+            journal.fetched(fetched, "200");
+            journal.stored(stored);
+        }
+
+        CrawlJournal.State state = CrawlJournal.replay(dir);
+        assertEquals(1, state.getPendingImages().size());
+        assertEquals(pending, state.getPendingImages().get(0).second);
+        assertTrue(state.isFetched(fetched));
+        assertEquals(Collections.singletonList(stored.getAbsoluteFile()), state.getPendingThumbnails());
+    }
+
+    @Test
+    public void testNoJournal() throws Exception {
+        CrawlJournal.State state = CrawlJournal.replay(Files.createTempDir());
+        assertTrue(state.getPendingImages().isEmpty());
+        assertFalse(state.isFetched("http://example.com/image.png"));
+    }
+}
@@ -0,0 +1,68 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSharesTest {
+
+    @Test
+    public void testSingleCrawlTakesWholeWindow() {
+        DownloadShares toTest = new DownloadShares(4);
+        try (DownloadShares.Share share = toTest.join()) {
+            for (int i = 0; i < 4; i++) {
+                share.acquire();
+            }
+            assertEquals(4, share.getHeld());
+        }
+    }
+
+    @Test
+    public void testLaterCrawlGetsEvenShare() throws Exception {
+        DownloadShares toTest = new DownloadShares(4);
+        DownloadShares.Share first = toTest.join();
+        for (int i = 0; i < 4; i++) {
+            first.acquire();
+        }
+        DownloadShares.Share second = toTest.join();
+        assertEquals(2, toTest.limit());
+
+        CountDownLatch acquired = new CountDownLatch(2);
+        Thread later = new Thread(() -> {
+            for (int i = 0; i < 2; i++) {
+                second.acquire();
+                acquired.countDown();
+            }
+        });
+        later.start();
+        //window is full, second crawl waits for first one to give permits back
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        first.release();
+        first.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        later.join();
+
+        //first crawl is at its share, its next download waits for second crawl to be over
+        Thread more = new Thread(first::acquire);
+        more.start();
+        more.join(100);
+        assertTrue(more.isAlive());
+        second.release();
+        second.release();
+        second.close();
+        more.join(5000);
+        assertFalse(more.isAlive());
+        assertEquals(3, first.getHeld());
+        first.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEmptyWindow() {
+        new DownloadShares(0);
+    }
+}
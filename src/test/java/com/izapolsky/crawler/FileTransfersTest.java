@@ -0,0 +1,55 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class FileTransfersTest {
+
+    private static final byte[] BODY = "image bytes".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testCopyAndCommit() throws Exception {
+        File dir = Files.createTempDir();
+        File part = new File(dir, "image.part");
+        File target = new File(dir, "image");
+        Files.write("stale and longer content".getBytes(StandardCharsets.UTF_8), part);
+
+        assertEquals(BODY.length, FileTransfers.copy(new ByteArrayInputStream(BODY), part));
+        FileTransfers.commit(part, target);
+
+        assertFalse(part.exists());
+        assertArrayEquals(BODY, Files.toByteArray(target));
+    }
+
+    @Test
+    public void testExpectLength() throws Exception {
+        assertArrayEquals(BODY, IOUtils.toByteArray(FileTransfers.expectLength(new ByteArrayInputStream(BODY), BODY.length)));
+        assertArrayEquals(BODY, IOUtils.toByteArray(FileTransfers.expectLength(new ByteArrayInputStream(BODY), FileTransfers.UNKNOWN_LENGTH)));
+        try {
+            FileTransfers.copy(FileTransfers.expectLength(new ByteArrayInputStream(BODY), BODY.length + 1), File.createTempFile("image", ".part"));
+            fail("body is shorter than announced");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testKilobytesPerSecond() {
+        assertEquals(2, FileTransfers.kilobytesPerSecond(2048, 1000000000L));
+        assertEquals(0, FileTransfers.kilobytesPerSecond(2048, 0));
+        //10 GiB over 100 seconds
+        assertEquals(10L * 1024 * 1024 / 100, FileTransfers.kilobytesPerSecond(10L << 30, 100000000000L));
+        assertEquals(8L << 20, FileTransfers.kilobytesPerSecond(1L << 33, 1000000000L));
+    }
+}
@@ -0,0 +1,75 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void testEmpty() {
+        Histogram toTest = new Histogram();
+        assertEquals(0, toTest.getCount());
+        assertEquals(0, toTest.getMin());
+        assertEquals(0, toTest.getQuantile(0.99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram toTest = new Histogram();
+        for (int i = 1; i <= 7; i++) {
+            toTest.record(i);
+        }
+        assertEquals(4, toTest.getQuantile(0.5));
+        assertEquals(7, toTest.getQuantile(1));
+        assertEquals(1, toTest.getMin());
+        assertEquals(28, toTest.getSum());
+    }
+
+    @Test
+    public void testQuantileErrorIsBounded() {
+        Histogram toTest = new Histogram();
+        for (int i = 1; i <= 100000; i++) {
+            toTest.record(i);
+        }
+        long p99 = toTest.getQuantile(0.99);
+        assertTrue("p99 " + p99, p99 >= 99000 && p99 <= 99000 + 99000 / Histogram.SUB_BUCKETS);
+        assertEquals(100000, toTest.getMax());
+        assertEquals(50000.5, toTest.getMean(), 0.001);
+    }
+
+    @Test
+    public void testBucketBounds() {
+        for (long value : new long[]{0, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucket(value);
+            assertTrue("upper bound of " + value, Histogram.upperBound(bucket) >= value);
+            assertTrue("lower bound of " + value, bucket == 0 || Histogram.upperBound(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        Histogram toTest = new Histogram();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            done.add(threads.submit(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    toTest.record(i);
+                }
+            }));
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        threads.shutdown();
+        assertEquals(40000, toTest.getCount());
+    }
+}
@@ -0,0 +1,126 @@
+package com.izapolsky.crawler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HostSchedulerTest {
+
+    private ExecutorService service;
+
+    @Before
+    public void setUp() {
+        service = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        service.shutdownNow();
+    }
+
+    @Test
+    public void testPerHostLimit() throws Exception {
+        HostScheduler toTest = new HostScheduler(service, 4, 2, 0);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(toTest.submit("cdn", () -> {
+                int now = active.incrementAndGet();
+                maxActive.accumulateAndGet(now, Math::max);
+                Thread.sleep(5);
+                active.decrementAndGet();
+                return now;
+            }));
+        }
+        for (Future<Integer> result : results) {
+            result.get();
+        }
+        assertEquals(2, maxActive.get());
+        toTest.shutdown();
+    }
+
+    @Test
+    public void testRoundRobinAcrossHosts() throws Exception {
+        HostScheduler toTest = new HostScheduler(service, 1, 1, 0);
+        List<String> order = new CopyOnWriteArrayList<>();
+        List<Future<?>> results = new ArrayList<>();
+        //busy host is held until quiet one has queued, otherwise busy tasks might all be done before it arrives
+        CountDownLatch queued = new CountDownLatch(1);
+        results.add(toTest.submit("busy", () -> {
+            queued.await();
+            return order.add("busy");
+        }));
+        for (int i = 1; i < 5; i++) {
+            results.add(toTest.submit("busy", () -> order.add("busy")));
+        }
+        results.add(toTest.submit("quiet", () -> order.add("quiet")));
+        queued.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        //quiet host does not wait until busy host is drained
+        assertTrue(order.toString(), order.indexOf("quiet") < 3);
+        toTest.shutdown();
+    }
+
+    @Test
+    public void testMinDelay() throws Exception {
+        List<Long> starts = new CopyOnWriteArrayList<>();
+        //scheduler controls when tasks are handed to executor, not how soon executor's threads pick them up
+        HostScheduler toTest = new HostScheduler(task -> {
+            starts.add(System.nanoTime());
+            service.execute(task);
+        }, 4, 4, 50);
+        //first hand-off links lambdas and loads classes, which would be counted against the delay
+        toTest.submit("warm-up", () -> null).get();
+        starts.clear();
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(toTest.submit("slow", () -> null));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        assertTrue(starts.get(2) - starts.get(0) >= 2 * 50 * 1000000L - 1000000L);
+        toTest.shutdown();
+    }
+
+    @Test
+    public void testAsyncTaskHoldsSlotUntilDone() throws Exception {
+        HostScheduler toTest = new HostScheduler(service, 4, 1, 0);
+        CompletableFuture<String> transfer = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> first = toTest.submitAsync("cdn", () -> {
+            started.incrementAndGet();
+            return transfer;
+        });
+        CompletableFuture<String> second = toTest.submitAsync("cdn", () -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture("second");
+        });
+        Thread.sleep(50);
+        //first task has returned long ago, its work still holds the only slot of the host
+        assertEquals(1, started.get());
+        assertEquals(1, toTest.getQueued());
+
+        transfer.complete("first");
+        assertEquals("first", first.get());
+        assertEquals("second", second.get());
+        assertEquals(2, started.get());
+        toTest.shutdown();
+    }
+}
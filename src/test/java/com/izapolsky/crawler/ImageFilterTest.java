@@ -0,0 +1,69 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ImageFilterTest {
+
+    private final ImageFilter toTest = new ImageFilter(11, 11, 100, 1000, Arrays.asList("image/", "application/octet-stream"));
+
+    @Test
+    public void testContentType() {
+        assertNull(toTest.rejectResponse("image/jpeg", -1));
+        assertNull(toTest.rejectResponse("Image/PNG; charset=binary", -1));
+        assertNull(toTest.rejectResponse(null, -1));
+        assertNotNull(toTest.rejectResponse("text/html; charset=utf-8", -1));
+        assertNull(new ImageFilter(11, 11, 0, ImageFilter.UNLIMITED, Collections.<String>emptyList()).rejectResponse("text/html", -1));
+    }
+
+    @Test
+    public void testContentLength() {
+        assertNull(toTest.rejectResponse("image/gif", 500));
+        assertNotNull(toTest.rejectResponse("image/gif", 43));
+        assertNotNull(toTest.rejectResponse("image/gif", 1001));
+        assertNull(new ImageFilter(11, 11, 0, ImageFilter.UNLIMITED, Collections.<String>emptyList()).rejectResponse("image/gif", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testProbeRejectsTrackingPixel() throws Exception {
+        byte[] pixel = ImageProbeTest.encode(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED), "gif");
+        assertNull(toTest.probe(new ByteArrayInputStream(pixel)));
+    }
+
+    @Test
+    public void testProbeReplaysHeader() throws Exception {
+        byte[] image = ImageProbeTest.encode(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png");
+        try (InputStream probed = toTest.probe(new ByteArrayInputStream(image))) {
+            assertArrayEquals(image, IOUtils.toByteArray(probed));
+        }
+    }
+
+    @Test
+    public void testProbePassesUnknownFormat() throws Exception {
+        byte[] body = "GIF87 is not quite a gif".getBytes();
+        try (InputStream probed = toTest.probe(new ByteArrayInputStream(body))) {
+            assertArrayEquals(body, IOUtils.toByteArray(probed));
+        }
+    }
+
+    @Test
+    public void testRejectFile() throws Exception {
+        assertNull(toTest.rejectFile(new File(getClass().getResource("/rose.jpg").toURI())));
+        File pixel = File.createTempFile("pixel", ".gif");
+        pixel.deleteOnExit();
+        Files.write(pixel.toPath(), ImageProbeTest.encode(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED), "gif"));
+        assertNotNull(toTest.rejectFile(pixel));
+    }
+}
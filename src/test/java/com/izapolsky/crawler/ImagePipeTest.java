@@ -0,0 +1,52 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImagePipeTest {
+
+    @Test
+    public void testDrainsEverythingFromBlockedProducers() throws Exception {
+        ImagePipe pipe = new ImagePipe(1);
+        ExecutorService producers = Executors.newFixedThreadPool(2);
+        URL document = new URL("http://example.com/");
+        List<Future<?>> done = new ArrayList<>();
+        for (int p = 0; p < 2; p++) {
+            done.add(producers.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    pipe.notifyImageDiscovered(document, "img" + i);
+                }
+            }));
+        }
+
+        List<Pair<URL, String>> drained = new ArrayList<>();
+        assertEquals(100, pipe.drain(() -> done.stream().allMatch(Future::isDone), drained::add));
+        assertEquals(100, drained.size());
+        producers.shutdown();
+    }
+
+    @Test
+    public void testFirstImageArrivesBeforeProducerFinishes() throws Exception {
+        ImagePipe pipe = new ImagePipe(10);
+        CountDownLatch consumed = new CountDownLatch(1);
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        Future<?> done = producer.submit(() -> {
+            pipe.notifyImageDiscovered(new URL("http://example.com/"), "first");
+            //producer stays busy until consumer saw the first image
+            consumed.await();
+            return null;
+        });
+
+        assertEquals(1, pipe.drain(done::isDone, image -> consumed.countDown()));
+        producer.shutdown();
+    }
+}
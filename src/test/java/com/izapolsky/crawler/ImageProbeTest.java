@@ -0,0 +1,79 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageProbeTest {
+
+    @Test
+    public void testPng() throws Exception {
+        byte[] png = encode(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png");
+        assertArrayEquals(new int[]{300, 200}, ImageProbe.dimensions(png, png.length));
+    }
+
+    @Test
+    public void testGif() throws Exception {
+        byte[] gif = encode(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED), "gif");
+        assertArrayEquals(new int[]{1, 1}, ImageProbe.dimensions(gif, gif.length));
+    }
+
+    @Test
+    public void testJpeg() throws Exception {
+        byte[] jpeg = encode(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "jpeg");
+        assertArrayEquals(new int[]{640, 480}, ImageProbe.dimensions(jpeg, jpeg.length));
+    }
+
+    @Test
+    public void testJpegWithMetadataSegments() throws Exception {
+        byte[] rose = Files.readAllBytes(new File(getClass().getResource("/rose.jpg").toURI()).toPath());
+        BufferedImage decoded = ImageIO.read(getClass().getResource("/rose.jpg"));
+        assertArrayEquals(new int[]{decoded.getWidth(), decoded.getHeight()}, ImageProbe.dimensions(rose, Math.min(rose.length, ImageProbe.MAX_PROBE_BYTES)));
+    }
+
+    @Test
+    public void testLosslessWebp() {
+        byte[] webp = new byte[32];
+        System.arraycopy("RIFF".getBytes(), 0, webp, 0, 4);
+        System.arraycopy("WEBPVP8L".getBytes(), 0, webp, 8, 8);
+        webp[20] = 0x2f;
+        //99 and 49 are stored, as width and height minus one
+        int bits = 99 | (49 << 14);
+        webp[21] = (byte) bits;
+        webp[22] = (byte) (bits >>> 8);
+        webp[23] = (byte) (bits >>> 16);
+        webp[24] = (byte) (bits >>> 24);
+        assertArrayEquals(new int[]{100, 50}, ImageProbe.dimensions(webp, webp.length));
+    }
+
+    @Test
+    public void testIncompleteHeader() throws Exception {
+        byte[] png = encode(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png");
+        assertTrue(ImageProbe.isKnownFormat(png, 12));
+        assertNull(ImageProbe.dimensions(png, 12));
+    }
+
+    @Test
+    public void testUnknownFormat() {
+        byte[] html = "<html><body>not found</body></html>".getBytes();
+        assertFalse(ImageProbe.isKnownFormat(html, html.length));
+        assertNull(ImageProbe.dimensions(html, html.length));
+        assertNull(ImageProbe.dimensions(Arrays.copyOf(html, 64), 0));
+    }
+
+    static byte[] encode(BufferedImage image, String format) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, format, bos);
+        return bos.toByteArray();
+    }
+}
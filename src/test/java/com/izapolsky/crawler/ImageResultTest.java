@@ -0,0 +1,57 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImageResultTest {
+
+    @Test
+    public void testStagesAddTheirParts() throws Exception {
+        URL document = new URL("http://example.com/page.html");
+        File stored = new File("rose.jpg");
+        ImageResult downloaded = new ImageResult(new Pair<>(document, "http://example.com/rose.jpg"), "200", stored, true, 1024, 10, 20);
+        assertEquals(document, downloaded.getDocument());
+        assertEquals("http://example.com/rose.jpg", downloaded.getImage());
+        assertTrue(downloaded.getThumbnails().isEmpty());
+        assertFalse(downloaded.isFailed());
+        assertFalse(downloaded.isSkipped());
+
+        ImageResult thumbnailed = downloaded.withThumbnails(Arrays.asList(new File("rose-100.jpg"), new File("rose-200.jpg")), 30);
+        assertEquals(2, thumbnailed.getThumbnails().size());
+        assertEquals(30, thumbnailed.getThumbnailMicros());
+        assertSame(stored, thumbnailed.getFile());
+        assertEquals(1024, thumbnailed.getBytes());
+        assertTrue(downloaded.getThumbnails().isEmpty());
+
+        IOException failure = new IOException("broken");
+        ImageResult failed = downloaded.withFailure(failure);
+        assertEquals("200", failed.getStatus());
+        assertSame(failure, failed.getFailure());
+        assertTrue(failed.isFailed());
+        assertNull(downloaded.getFailure());
+    }
+
+    @Test
+    public void testClassifiesStatuses() {
+        Pair<URL, String> image = new Pair<>(null, "http://example.com/rose.jpg");
+        assertTrue(new ImageResult(image, UrlFetcher.SC_SKIPPED_DUPLICATE, null, false, 0, 0, 0).isSkipped());
+        assertFalse(new ImageResult(image, "304", null, false, 0, 0, 0).isFailed());
+        assertTrue(new ImageResult(image, "404", null, false, 0, 0, 0).isFailed());
+        assertTrue(new ImageResult(image, UrlFetcher.SC_IO_ERROR, null, false, 0, 0, 0).isFailed());
+
+        ImageResult failed = ImageResult.failed(image, new RuntimeException("unexpected"));
+        assertEquals(UrlFetcher.SC_GENERIC_ERROR, failed.getStatus());
+        assertTrue(failed.isFailed());
+        assertNull(failed.getFile());
+    }
+}
@@ -0,0 +1,119 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImageScalerTest {
+
+    @Test
+    public void testNormalisesToIntPackedTypes() throws Exception {
+        BufferedImage rose = ImageIO.read(getClass().getResource("/rose.jpg"));
+        BufferedImage indexed = ImageIO.read(new ByteArrayInputStream(ImageProbeTest.encode(Main.getScaledImage(rose, 400), "gif")));
+        for (ImageScaler.Quality quality : ImageScaler.Quality.values()) {
+            ImageScaler toTest = new ImageScaler(quality);
+            BufferedImage scaled = toTest.scale(rose, 320);
+            assertEquals(BufferedImage.TYPE_INT_RGB, scaled.getType());
+            assertEquals(320, scaled.getWidth());
+            assertEquals(rose.getHeight() * 320 / rose.getWidth(), scaled.getHeight());
+            assertEquals(BufferedImage.TYPE_INT_RGB, toTest.scale(indexed, 100).getType());
+            assertEquals(BufferedImage.TYPE_INT_ARGB, toTest.scale(new BufferedImage(200, 100, BufferedImage.TYPE_4BYTE_ABGR), 50).getType());
+        }
+    }
+
+    @Test
+    public void testQualityModesAgreeOnSmoothImage() {
+        BufferedImage gradient = new BufferedImage(1000, 500, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < gradient.getHeight(); y++) {
+            for (int x = 0; x < gradient.getWidth(); x++) {
+                gradient.setRGB(x, y, (x * 255 / 999) << 16 | (y * 255 / 499) << 8 | 0x80);
+            }
+        }
+        BufferedImage bilinear = new ImageScaler(ImageScaler.Quality.BILINEAR).scale(gradient, 100);
+        for (ImageScaler.Quality quality : ImageScaler.Quality.values()) {
+            BufferedImage scaled = new ImageScaler(quality).scale(gradient, 100);
+            for (int y = 0; y < scaled.getHeight(); y++) {
+                for (int x = 0; x < scaled.getWidth(); x++) {
+                    assertClose(bilinear.getRGB(x, y), scaled.getRGB(x, y), 4);
+                    assertClose(gradient.getRGB(x * 10 + 5, y * 10 + 5), scaled.getRGB(x, y), 4);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAreaAveragesWholeBlock() {
+        BufferedImage checkers = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                checkers.setRGB(x, y, (x + y) % 2 == 0 ? 0xffffff : 0);
+            }
+        }
+        BufferedImage scaled = new ImageScaler(ImageScaler.Quality.AREA).scale(checkers, 2);
+        assertClose(0x808080, scaled.getRGB(0, 0), 1);
+        assertClose(0x808080, scaled.getRGB(1, 1), 1);
+    }
+
+    @Test
+    public void testDestinationIsReusedByWidth() {
+        ImageScaler toTest = new ImageScaler(ImageScaler.Quality.BILINEAR);
+        BufferedImage source = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        BufferedImage first = toTest.scale(source, 100);
+        assertSame(first, toTest.scale(source, 100));
+        assertNotSame(first, toTest.scale(source, 200));
+        //scaling earlier result to its own width must not write into it
+        assertNotSame(first, toTest.scale(first, 100));
+    }
+
+    @Test
+    public void testSubImage() {
+        BufferedImage source = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 300; x++) {
+                source.setRGB(x, y, x >= 100 && y >= 100 ? 0xff0000 : 0x0000ff);
+            }
+        }
+        BufferedImage scaled = new ImageScaler(ImageScaler.Quality.BILINEAR).scale(source.getSubimage(100, 100, 200, 200), 50);
+        assertEquals(0xffff0000, scaled.getRGB(0, 0));
+        assertEquals(0xffff0000, scaled.getRGB(49, 49));
+    }
+
+    @Test
+    public void testBandsMatchSingleThread() {
+        BufferedImage noise = new BufferedImage(1500, 1000, BufferedImage.TYPE_BYTE_INDEXED);
+        Random random = new Random(42);
+        for (int y = 0; y < noise.getHeight(); y++) {
+            for (int x = 0; x < noise.getWidth(); x++) {
+                noise.setRGB(x, y, random.nextInt());
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (ImageScaler.Quality quality : ImageScaler.Quality.values()) {
+                BufferedImage expected = new ImageScaler(quality).scale(noise, 320);
+                BufferedImage actual = new ImageScaler(quality, pool, 1).scale(noise, 320);
+                assertArrayEquals(quality.name(), expected.getRGB(0, 0, 320, expected.getHeight(), null, 0, 320),
+                        actual.getRGB(0, 0, 320, actual.getHeight(), null, 0, 320));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertClose(int expected, int actual, int tolerance) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int difference = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+            assertTrue(String.format("%1$x vs %2$x", expected, actual), difference <= tolerance);
+        }
+    }
+}
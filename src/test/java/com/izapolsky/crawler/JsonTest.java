@@ -0,0 +1,67 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JsonTest {
+
+    @Test
+    public void testRoundTrip() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("args", Arrays.asList("-o", "/tmp/\"out\"", "http://example.com/a\tb"));
+        value.put("depth", 2L);
+        value.put("mean", 1.5);
+        value.put("done", true);
+        value.put("error", null);
+        String json = Json.toJson(value);
+        assertEquals("{\"args\":[\"-o\",\"/tmp/\\\"out\\\"\",\"http://example.com/a\\u0009b\"],\"depth\":2,\"mean\":1.500,\"done\":true,\"error\":null}", json);
+        assertEquals(value, Json.parse(json));
+    }
+
+    @Test
+    public void testParsesWhitespaceAndEscapes() {
+        Map<?, ?> parsed = (Map<?, ?>) Json.parse(" { \"args\" : [ \"a\\nb\" , \"\\u00e9\" , -3 , 1e2 ] , \"empty\" : { } } ");
+        List<?> args = (List<?>) parsed.get("args");
+        assertEquals(Arrays.asList("a\nb", "\u00e9", -3L, 100.0), args);
+        assertEquals(0, ((Map<?, ?>) parsed.get("empty")).size());
+    }
+
+    @Test
+    public void testWritesNonFiniteNumbersAsNull() {
+        assertEquals("[null,null,null,0.500]", Json.toJson(Arrays.asList(Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 0.5f)));
+    }
+
+    @Test
+    public void testRejectsDeepNesting() {
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            nested.append('[');
+        }
+        try {
+            Json.parse(nested.toString());
+            fail("nesting is too deep");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertEquals(Arrays.asList(Arrays.asList(Arrays.asList())), Json.parse("[[[]]]"));
+    }
+
+    @Test
+    public void testRejectsInvalidJson() {
+        for (String invalid : new String[]{"", "{", "{\"args\":[1,]}", "{\"a\" 1}", "[1] 2", "\"open", "nope"}) {
+            try {
+                Json.parse(invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.izapolsky.crawler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Http server on loopback interface, serving test resources from classpath
+ */
+public class LocalHttpServer implements AutoCloseable {
+
+    private final HttpServer server;
+    //handlers can wait for each other, so every request gets its own thread
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public LocalHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try (InputStream is = getClass().getResourceAsStream(exchange.getRequestURI().getPath())) {
+                if (is == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    respond(exchange, 200, IOUtils.toByteArray(is));
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * Registers custom handler for given path prefix
+     *
+     * @param path
+     * @param handler
+     */
+    public void handle(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            requests.incrementAndGet();
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    public URL url(String path) throws IOException {
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+}
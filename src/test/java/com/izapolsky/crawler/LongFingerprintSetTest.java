@@ -0,0 +1,105 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongFingerprintSetTest {
+
+    @Test
+    public void testAddsOnce() {
+        LongFingerprintSet set = new LongFingerprintSet(10);
+        assertTrue(set.add(42L));
+        assertFalse(set.add(42L));
+        assertTrue(set.contains(42L));
+        assertFalse(set.contains(43L));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void testZeroFingerprint() {
+        LongFingerprintSet set = new LongFingerprintSet(10);
+        assertTrue(set.add(0L));
+        assertFalse(set.add(0L));
+        assertTrue(set.contains(0L));
+    }
+
+    @Test
+    public void testCapacityKeepsLoadUnderHalf() {
+        assertEquals(262144, new LongFingerprintSet(100000).capacity());
+    }
+
+    @Test
+    public void testGrowsPastExpectedEntries() {
+        LongFingerprintSet set = new LongFingerprintSet(2);
+        for (long i = 1; i <= 1000; i++) {
+            assertTrue(set.add(i * 31));
+        }
+        assertEquals(1000, set.size());
+        assertEquals(2048, set.capacity());
+        for (long i = 1; i <= 1000; i++) {
+            assertTrue(set.contains(i * 31));
+        }
+        assertFalse(set.contains(7L));
+    }
+
+    @Test
+    public void testGrowsWhileAddedConcurrently() throws Exception {
+        LongFingerprintSet set = new LongFingerprintSet(2);
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        List<Future<?>> added = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long offset = t * 100000L;
+            added.add(service.submit(() -> {
+                for (long i = 1; i <= 10000; i++) {
+                    set.add(offset + i);
+                }
+            }));
+        }
+        for (Future<?> future : added) {
+            future.get();
+        }
+        service.shutdown();
+
+        assertEquals(40000, set.size());
+        for (int t = 0; t < 4; t++) {
+            for (long i = 1; i <= 10000; i++) {
+                assertTrue(set.contains(t * 100000L + i));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsAreCountedOnce() throws Exception {
+        LongFingerprintSet set = new LongFingerprintSet(10000);
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> added = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            added.add(service.submit(() -> {
+                int result = 0;
+                for (long i = 0; i < 10000; i++) {
+                    if (set.add(i * 31)) {
+                        result++;
+                    }
+                }
+                return result;
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> future : added) {
+            total += future.get();
+        }
+        service.shutdown();
+
+        assertEquals(10000, total);
+        assertEquals(10000, set.size());
+    }
+}
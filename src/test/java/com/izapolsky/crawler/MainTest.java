@@ -1,11 +1,19 @@
 package com.izapolsky.crawler;
 
 import com.beust.jcommander.ParameterException;
+import com.google.common.io.Files;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class MainTest {
 
@@ -36,6 +44,84 @@ public class MainTest {
         Main.main("--keep-going", "-o", System.getProperty("java.io.tmpdir"), getClass().getResource("/sample.html").toString());
     }
 
+    @Test
+    public void testFindsRoseStreaming() throws Exception {
+        Main.main("--keep-going", "--streaming", "-o", System.getProperty("java.io.tmpdir"), getClass().getResource("/sample.html").toString());
+    }
+
+    @Test(timeout = 60000)
+    public void testStreamsSeedsOnSingleIoThread() throws Exception {
+        Main.main("--keep-going", "--streaming", "-rs", "1", "-o", System.getProperty("java.io.tmpdir"), getClass().getResource("/sample.html").toString(),
+                getClass().getResource("/other.html").toString());
+    }
+
+    @Test
+    public void testFindsRoseFollowingLinks() throws Exception {
+        Main.main("--keep-going", "--max-depth", "2", "-o", System.getProperty("java.io.tmpdir"), getClass().getResource("/sample.html").toString());
+    }
+
+    @Test
+    public void testFindsRoseWithMetadataIndex() throws Exception {
+        Main.main("--keep-going", "--metadata-index", "-o", Files.createTempDir().getAbsolutePath(), getClass().getResource("/sample.html").toString());
+    }
+
+    @Test
+    public void testResumesFromJournal() throws Exception {
+        String outputDir = Files.createTempDir().getAbsolutePath();
+        Main.main("--keep-going", "--journal", "-o", outputDir, getClass().getResource("/sample.html").toString());
+        Main.main("--keep-going", "--resume", "-o", outputDir, getClass().getResource("/sample.html").toString());
+    }
+
+    @Test
+    public void testFindsRoseAsync() throws Exception {
+        Main.main("--keep-going", "--engine", "ASYNC", "--max-depth", "1", "-o", System.getProperty("java.io.tmpdir"), getClass().getResource("/sample.html").toString());
+    }
+
+    @Test(timeout = 60000)
+    public void testAsyncTransfersBeyondIoThreads() throws Exception {
+        int images = 8;
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        CountDownLatch arrived = new CountDownLatch(images);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            StringBuilder page = new StringBuilder("<html><body>");
+            for (int i = 0; i < images; i++) {
+                page.append("<img src=\"/held/").append(i).append(".jpg\">");
+            }
+            byte[] html = page.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+            server.handle("/many.html", exchange -> LocalHttpServer.respond(exchange, 200, html));
+            //every image is held until all of them are requested, single io thread can't get there on its own
+            server.handle("/held/", exchange -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                arrived.countDown();
+                try {
+                    arrived.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                LocalHttpServer.respond(exchange, 200, rose);
+            });
+            Main.main("--keep-going", "--engine", "ASYNC", "-rs", "1", "--per-host-connections", String.valueOf(images), "-o", Files.createTempDir().getAbsolutePath(),
+                    server.url("/many.html").toString());
+        }
+        assertEquals(images, maxInFlight.get());
+    }
+
+    @Test
+    public void testFindsRoseOnVirtualThreads() throws Exception {
+        Main.main("--keep-going", "--virtual-threads", "--max-depth", "1", "-o", System.getProperty("java.io.tmpdir"), getClass().getResource("/sample.html").toString());
+    }
+
+    @Test
+    public void testWritesMetrics() throws Exception {
+        File outputDir = Files.createTempDir();
+        File metricsFile = new File(outputDir, "metrics.json");
+        Main.main("--keep-going", "--metrics-file", metricsFile.getAbsolutePath(), "-o", outputDir.getAbsolutePath(), getClass().getResource("/sample.html").toString());
+        assertTrue(Files.toString(metricsFile, StandardCharsets.UTF_8).contains("\"results.200\":1"));
+    }
+
     @Test(expected = ParameterException.class)
     public void testFailsIfRandomDir() throws Exception {
         Main.main("--keep-going", "-o", UUID.randomUUID().toString());
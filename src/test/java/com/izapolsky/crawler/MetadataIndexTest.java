@@ -0,0 +1,169 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadataIndexTest {
+
+    private static final String FIRST = DigestUtils.sha256Hex("first");
+    private static final String SECOND = DigestUtils.sha256Hex("second");
+
+    @Test
+    public void testLatestRecordWinsAfterReopen() throws Exception {
+        File dir = Files.createTempDir();
+        try (MetadataIndex toTest = new MetadataIndex(dir)) {
+            assertTrue(toTest.read(FIRST).first);
+            toTest.write(FIRST, props("ETag", "\"1\""));
+            toTest.write(FIRST, props("ETag", "\"2\""));
+            toTest.write(SECOND, props("ETag", "\"3\""));
+        }
+
+        try (MetadataIndex reopened = new MetadataIndex(dir)) {
+            Pair<Boolean, Properties> first = reopened.read(FIRST);
+            assertFalse(first.first);
+            assertEquals("\"2\"", first.second.getProperty("ETag"));
+            assertEquals("\"3\"", reopened.read(SECOND).second.getProperty("ETag"));
+            assertEquals(2, reopened.size());
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File dir = Files.createTempDir();
+        try (MetadataIndex toTest = new MetadataIndex(dir)) {
+            for (int i = 0; i < 10; i++) {
+                toTest.write(FIRST, props("ETag", String.valueOf(i)));
+            }
+            assertEquals(10, toTest.getRecords());
+        }
+
+        try (MetadataIndex reopened = new MetadataIndex(dir)) {
+            //closing compacted the log
+            assertEquals(1, reopened.getRecords());
+            assertEquals("9", reopened.read(FIRST).second.getProperty("ETag"));
+        }
+    }
+
+    @Test
+    public void testCompactsOnAppend() throws Exception {
+        File dir = Files.createTempDir();
+        try (MetadataIndex toTest = new MetadataIndex(dir)) {
+            toTest.write(SECOND, props("ETag", "b"));
+            for (int i = 0; i < MetadataIndex.MIN_COMPACTION_RECORDS + 10; i++) {
+                toTest.write(FIRST, props("ETag", String.valueOf(i)));
+            }
+            //log was rewritten while open, records written since then follow the two kept ones
+            assertEquals(2 + 10, toTest.getRecords());
+            assertEquals(String.valueOf(MetadataIndex.MIN_COMPACTION_RECORDS + 9), toTest.read(FIRST).second.getProperty("ETag"));
+            assertEquals("b", toTest.read(SECOND).second.getProperty("ETag"));
+        }
+    }
+
+    @Test
+    public void testLargeValues() throws Exception {
+        File dir = Files.createTempDir();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append((char) ('a' + i % 26)).append('\u00e9');
+        }
+        try (MetadataIndex toTest = new MetadataIndex(dir)) {
+            toTest.write(FIRST, props("Link", large.toString()));
+            assertEquals(large.toString(), toTest.read(FIRST).second.getProperty("Link"));
+        }
+        try (MetadataIndex reopened = new MetadataIndex(dir)) {
+            assertEquals(large.toString(), reopened.read(FIRST).second.getProperty("Link"));
+        }
+    }
+
+    @Test
+    public void testWritersSharingLog() throws Exception {
+        File dir = Files.createTempDir();
+        try (MetadataIndex one = new MetadataIndex(dir); MetadataIndex other = new MetadataIndex(dir)) {
+            one.write(FIRST, props("ETag", "a"));
+            assertEquals("a", other.read(FIRST).second.getProperty("ETag"));
+
+            one.compact();
+            other.write(SECOND, props("ETag", "b"));
+            one.write(FIRST, props("ETag", "c"));
+
+            assertEquals("b", one.read(SECOND).second.getProperty("ETag"));
+            assertEquals("c", other.read(FIRST).second.getProperty("ETag"));
+        }
+    }
+
+    @Test
+    public void testReaderNoticesCompactionByOtherWriter() throws Exception {
+        File dir = Files.createTempDir();
+        try (MetadataIndex one = new MetadataIndex(dir); MetadataIndex other = new MetadataIndex(dir)) {
+            for (int i = 0; i < 3; i++) {
+                one.write(FIRST, props("ETag", String.valueOf(i)));
+            }
+            assertEquals("2", other.read(FIRST).second.getProperty("ETag"));
+
+            one.compact();
+            one.write(SECOND, props("ETag", "b"));
+            //other only reads, it has to find the replaced log by itself
+            assertEquals("b", other.read(SECOND).second.getProperty("ETag"));
+            assertEquals(2, other.getRecords());
+            assertFalse(new File(dir, MetadataIndex.FILE_NAME + ".compact").exists());
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        File dir = Files.createTempDir();
+        try (MetadataIndex toTest = new MetadataIndex(dir)) {
+            toTest.write(FIRST, props("ETag", "a"));
+        }
+        File log = new File(dir, MetadataIndex.FILE_NAME);
+        long length = log.length();
+        try (FileOutputStream fos = new FileOutputStream(log, true)) {
+            fos.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+
+        try (MetadataIndex reopened = new MetadataIndex(dir)) {
+            assertEquals("a", reopened.read(FIRST).second.getProperty("ETag"));
+            assertEquals(length, log.length());
+            reopened.write(SECOND, props("ETag", "b"));
+        }
+        try (MetadataIndex reopened = new MetadataIndex(dir)) {
+            assertEquals("b", reopened.read(SECOND).second.getProperty("ETag"));
+        }
+    }
+
+    @Test
+    public void testImageLock() throws Exception {
+        try (MetadataIndex toTest = new MetadataIndex(Files.createTempDir())) {
+            Closeable lock = toTest.tryLock(FIRST);
+            assertNotNull(lock);
+            try {
+                toTest.tryLock(FIRST);
+                fail("image is held already");
+            } catch (OverlappingFileLockException e) {
+                //expected
+            }
+            assertNotNull(toTest.tryLock(SECOND));
+            lock.close();
+            assertNotNull(toTest.tryLock(FIRST));
+        }
+    }
+
+    private static Properties props(String key, String value) {
+        Properties result = new Properties();
+        result.setProperty(key, value);
+        return result;
+    }
+}
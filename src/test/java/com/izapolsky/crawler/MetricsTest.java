@@ -0,0 +1,81 @@
+package com.izapolsky.crawler;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsTest {
+
+    @Test
+    public void testJsonSummary() {
+        Metrics toTest = new Metrics();
+        toTest.status("example.com", "200");
+        toTest.status("example.com", "200");
+        toTest.record(Metrics.BYTES, 1024);
+        String json = toTest.toJson();
+        assertTrue(json, json.contains("\"status.example.com.200\":2"));
+        assertTrue(json, json.contains("\"fetch.bytes\":{\"count\":1,\"sum\":1024,"));
+        assertTrue(json, json.contains("\"mean\":1024.000"));
+    }
+
+    @Test
+    public void testJmxAttributes() throws Exception {
+        Metrics toTest = new Metrics();
+        toTest.record(Metrics.DISCOVERY, 42);
+        toTest.increment(Metrics.THUMBNAIL_FAILURES);
+        String objectName = "com.izapolsky.crawler:type=Metrics,name=test";
+        Closeable registration = toTest.registerMBean(objectName);
+        try {
+            ObjectName name = new ObjectName(objectName);
+            assertEquals(42L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "discovery.us.max"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, Metrics.THUMBNAIL_FAILURES));
+            try {
+                ManagementFactory.getPlatformMBeanServer().invoke(name, "reset", new Object[0], new String[0]);
+                fail("metrics have no operations");
+            } catch (ReflectionException e) {
+                assertTrue(e.getCause() instanceof NoSuchMethodException);
+            }
+        } finally {
+            registration.close();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(objectName)));
+    }
+
+    @Test
+    public void testServesLiveMetrics() throws Exception {
+        Metrics toTest = new Metrics();
+        try (MetricsServer server = new MetricsServer(toTest, 0)) {
+            URL url = new URL("http", "127.0.0.1", server.getPort(), MetricsServer.PATH);
+            toTest.increment(Metrics.THUMBNAIL_FAILURES);
+            try (InputStream is = url.openStream()) {
+                assertEquals("{\"thumbnail.failures\":1}", IOUtils.toString(is, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testChildCountsIntoParent() {
+        Metrics parent = new Metrics();
+        Metrics first = new Metrics(parent);
+        Metrics second = new Metrics(parent);
+        first.increment(Metrics.FILTERED);
+        second.increment(Metrics.FILTERED);
+        second.record(Metrics.BYTES, 1024);
+        assertEquals(1, first.getCount(Metrics.FILTERED));
+        assertEquals(2, parent.getCount(Metrics.FILTERED));
+        assertEquals(0, first.histogram(Metrics.BYTES).getCount());
+        assertEquals(1, parent.histogram(Metrics.BYTES).getCount());
+    }
+}
@@ -0,0 +1,64 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NearDuplicateIndexTest {
+
+    @Test
+    public void testFindsWithinDistance() {
+        NearDuplicateIndex toTest = new NearDuplicateIndex(3);
+        long hash = 0x0123456789abcdefL;
+        assertNull(toTest.findOrAdd(hash, "first"));
+
+        //three bits flipped, one in each of three chunks
+        NearDuplicateIndex.Match match = toTest.findOrAdd(hash ^ 0x8000000080000001L, "second");
+        assertEquals("first", match.representative);
+        assertEquals(3, match.distance);
+
+        assertNull(toTest.find(hash ^ 0xfL));
+        assertEquals(1, toTest.size());
+        assertEquals(Collections.singleton("second"), toTest.getClusters().get("first"));
+    }
+
+    @Test
+    public void testExactOnly() {
+        NearDuplicateIndex toTest = new NearDuplicateIndex(0);
+        assertNull(toTest.findOrAdd(-1L, "first"));
+        assertEquals("first", toTest.findOrAdd(-1L, "second").representative);
+        assertNull(toTest.find(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(42);
+        NearDuplicateIndex toTest = new NearDuplicateIndex(6);
+        long[] hashes = new long[20000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+            toTest.findOrAdd(hashes[i], String.valueOf(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long probe = hashes[random.nextInt(hashes.length)];
+            for (int bit = random.nextInt(7); bit > 0; bit--) {
+                probe ^= 1L << random.nextInt(64);
+            }
+            int expected = Integer.MAX_VALUE;
+            for (long hash : hashes) {
+                expected = Math.min(expected, PerceptualHash.distance(hash, probe));
+            }
+            NearDuplicateIndex.Match match = toTest.find(probe);
+            assertEquals(expected, match == null ? Integer.MAX_VALUE : match.distance);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDistanceTooLarge() {
+        new NearDuplicateIndex(NearDuplicateIndex.MAX_DISTANCE + 1);
+    }
+}
@@ -0,0 +1,37 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PerceptualHashTest {
+
+    @Test
+    public void testRescaledCopyIsClose() throws Exception {
+        BufferedImage rose = ImageIO.read(getClass().getResource("/rose.jpg"));
+        long original = PerceptualHash.dHash(Main.getScaledImage(rose, 100));
+        long rescaled = PerceptualHash.dHash(Main.getScaledImage(Main.getScaledImage(rose, 220), 100));
+        assertTrue(PerceptualHash.distance(original, rescaled) <= 4);
+    }
+
+    @Test
+    public void testDifferentPicturesAreFar() throws Exception {
+        BufferedImage rose = ImageIO.read(getClass().getResource("/rose.jpg"));
+        BufferedImage flipped = new BufferedImage(rose.getWidth(), rose.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < rose.getHeight(); y++) {
+            for (int x = 0; x < rose.getWidth(); x++) {
+                flipped.setRGB(rose.getWidth() - 1 - x, y, rose.getRGB(x, y));
+            }
+        }
+        assertTrue(PerceptualHash.distance(PerceptualHash.dHash(rose), PerceptualHash.dHash(flipped)) > 16);
+    }
+
+    @Test
+    public void testUniformImage() {
+        assertEquals(0L, PerceptualHash.dHash(new BufferedImage(50, 50, BufferedImage.TYPE_INT_RGB)));
+    }
+}
@@ -0,0 +1,40 @@
+package com.izapolsky.crawler;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PooledHttpClientTest {
+
+    @Test
+    public void testReusesConnection() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer();
+             PooledHttpClient toTest = new PooledHttpClient(4, 2, 1000, 1000, 1000, 10000)) {
+            for (int i = 0; i < 3; i++) {
+                try (CloseableHttpResponse response = toTest.getClient().execute(new HttpGet(server.url("/sample.html").toURI()))) {
+                    assertEquals(200, response.getStatusLine().getStatusCode());
+                    EntityUtils.consume(response.getEntity());
+                }
+            }
+
+            assertEquals(3, toTest.getLeased());
+            assertEquals(1, toTest.getConnected());
+            assertEquals(2, toTest.getReused());
+        }
+    }
+
+    @Test
+    public void testReleasesConnectionOnNotFound() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer();
+             PooledHttpClient toTest = new PooledHttpClient(1, 1, 1000, 1000, 1000, 10000)) {
+            for (int i = 0; i < 2; i++) {
+                assertEquals(String.valueOf(404), new UrlFetcherImpl(new HostScheduler(Runnable::run, 1, 1, 0), toTest.getClient(), com.google.common.io.Files.createTempDir())
+                        .downloadImage(new Pair<>(null, server.url("/missing.png").toString()), null).get().getStatus());
+            }
+            assertEquals(0, toTest.getLeaseTimeouts());
+        }
+    }
+}
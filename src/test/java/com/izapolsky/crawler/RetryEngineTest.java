@@ -0,0 +1,100 @@
+package com.izapolsky.crawler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryEngineTest {
+
+    private RetryEngine toTest;
+
+    @After
+    public void tearDown() {
+        toTest.shutdown();
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception {
+        toTest = new RetryEngine(3, 10, 100, new CircuitBreaker(10, 1000));
+        Iterator<String> statuses = Arrays.asList("503", UrlFetcher.SC_IO_ERROR, "200").iterator();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String status = toTest.execute("example.com", () -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture(statuses.next());
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals("200", status);
+        assertEquals(3, attempts.get());
+        assertEquals(2, toTest.getRetries());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        toTest = new RetryEngine(2, 10, 100, new CircuitBreaker(10, 1000));
+        AtomicInteger attempts = new AtomicInteger();
+
+        String status = toTest.execute("example.com", () -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture("504");
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals("504", status);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() throws Exception {
+        toTest = new RetryEngine(3, 10, 100, new CircuitBreaker(10, 1000));
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("404", toTest.execute("example.com", () -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture("404");
+        }).get(5, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testRetryAfterDelaysNextAttempt() throws Exception {
+        toTest = new RetryEngine(2, 1, 10000, new CircuitBreaker(10, 1000));
+        toTest.retryAfter("example.com", 200);
+        Iterator<String> statuses = Arrays.asList("429", "200").iterator();
+
+        long started = System.nanoTime();
+        assertEquals("200", toTest.execute("example.com", () -> CompletableFuture.completedFuture(statuses.next())).get(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 150);
+    }
+
+    @Test
+    public void testOpenCircuitRefusesAttempts() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 100);
+        toTest = new RetryEngine(1, 10, 100, breaker);
+        AtomicInteger attempts = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            toTest.execute("down.example.com", () -> {
+                attempts.incrementAndGet();
+                return CompletableFuture.completedFuture(UrlFetcher.SC_IO_ERROR);
+            }).get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(breaker.isOpen("down.example.com"));
+        assertEquals(UrlFetcher.SC_CIRCUIT_OPEN, toTest.execute("down.example.com", () -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture("200");
+        }).get(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(1, toTest.getRefused());
+
+        //other hosts are not affected
+        assertEquals("200", toTest.execute("up.example.com", () -> CompletableFuture.completedFuture("200")).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,60 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardCoordinatorTest {
+
+    @Test
+    public void testWorkersCrawlTheirShards() throws Exception {
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        try (LocalHttpServer first = new LocalHttpServer();
+             LocalHttpServer second = new LocalHttpServer();
+             ShardCoordinator coordinator = new ShardCoordinator(0, 2)) {
+            //every page links to the other server, so documents and images cross shards
+            for (LocalHttpServer[] servers : new LocalHttpServer[][]{{first, second}, {second, first}}) {
+                String html = String.format("<html><body><img src=\"%1$s\"/><img src=\"%2$s\"/><a href=\"%3$s\">other</a></body></html>",
+                        servers[0].url("/own.jpg"), servers[1].url("/foreign.jpg"), servers[1].url("/page.html"));
+                servers[0].handle("/page.html", exchange -> LocalHttpServer.respond(exchange, 200, html.getBytes(StandardCharsets.UTF_8)));
+                servers[0].handle("/own.jpg", exchange -> LocalHttpServer.respond(exchange, 200, rose));
+                servers[0].handle("/foreign.jpg", exchange -> LocalHttpServer.respond(exchange, 200, rose));
+            }
+            File[] outputDirs = {Files.createTempDir(), Files.createTempDir()};
+            ExecutorService workers = Executors.newFixedThreadPool(outputDirs.length);
+            List<Future<?>> finished = new ArrayList<>();
+            for (File outputDir : outputDirs) {
+                finished.add(workers.submit(() -> Main.main("--keep-going", "--join", "127.0.0.1:" + coordinator.getPort(), "--max-depth", "2",
+                        "--thumbnail-widths", "100", "-o", outputDir.getAbsolutePath())));
+            }
+
+            coordinator.run(Collections.singletonList(first.url("/page.html")));
+            for (Future<?> worker : finished) {
+                worker.get(1, TimeUnit.MINUTES);
+            }
+            workers.shutdown();
+
+            //which worker got which shard depends on registration order, both images of an origin have to be in the same place
+            for (LocalHttpServer server : new LocalHttpServer[]{first, second}) {
+                File own = new File(outputDirs[0], AbstractUrlFetcher.mangle(server.url("/own.jpg")));
+                File foreign = new File(outputDirs[0], AbstractUrlFetcher.mangle(server.url("/foreign.jpg")));
+                assertEquals(own.isFile(), foreign.isFile());
+                assertTrue(own.isFile() ^ new File(outputDirs[1], own.getName()).isFile());
+                //page and both images, each requested by one worker only
+                assertEquals(3, server.getRequests());
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardRingTest {
+
+    @Test
+    public void testOriginHasSingleOwner() throws Exception {
+        ShardRing ring = new ShardRing(5);
+        int owner = ring.owner(new URL("http://Example.com/a.html"));
+        assertEquals(owner, ring.owner(new URL("http://example.com:80/b/c.jpg?x=1")));
+        assertEquals(owner, new ShardRing(5).owner(new URL("http://example.com/")));
+    }
+
+    @Test
+    public void testShardsAreEven() throws Exception {
+        int[] owned = new int[4];
+        ShardRing ring = new ShardRing(owned.length);
+        for (int i = 0; i < 10000; i++) {
+            owned[ring.owner(new URL("http://host" + i + ".example.com/"))]++;
+        }
+        for (int count : owned) {
+            assertTrue(String.valueOf(count), count > 1800 && count < 3200);
+        }
+    }
+
+    @Test
+    public void testAddedShardTakesOnlyItsShare() throws Exception {
+        ShardRing before = new ShardRing(4);
+        ShardRing after = new ShardRing(5);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            URL url = new URL("http://host" + i + ".example.com/");
+            int owner = after.owner(url);
+            if (owner != before.owner(url)) {
+                moved++;
+                assertEquals(4, owner);
+            }
+        }
+        assertTrue(String.valueOf(moved), moved > 1400 && moved < 2600);
+    }
+}
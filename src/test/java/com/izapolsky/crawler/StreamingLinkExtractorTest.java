@@ -0,0 +1,84 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamingLinkExtractorTest {
+
+    private final StreamingLinkExtractor toTest = new StreamingLinkExtractor();
+    private final List<String> images = new ArrayList<>();
+    private final List<String> links = new ArrayList<>();
+
+    private int extract(String html) throws Exception {
+        return toTest.extract(new URL("http://example.com/dir/page.html"), new StringReader(html), new ImageDiscoveredCallback() {
+            @Override
+            public void notifyImageDiscovered(URL document, String imageSrc) {
+                images.add(imageSrc);
+            }
+
+            @Override
+            public void notifyLinkDiscovered(URL document, String href) {
+                links.add(href);
+            }
+        });
+    }
+
+    @Test
+    public void testImagesAndLinks() throws Exception {
+        assertEquals(2, extract("<html><body><IMG SRC=a.jpg><img alt='x' src=\"/b.png\"/><a href='other.html?a=1&amp;b=2'>x</a></body></html>"));
+        assertEquals(Arrays.asList("http://example.com/dir/a.jpg", "http://example.com/b.png"), images);
+        assertEquals(Collections.singletonList("http://example.com/dir/other.html?a=1&b=2"), links);
+    }
+
+    @Test
+    public void testBaseHref() throws Exception {
+        extract("<head><base href='http://cdn.example.org/static/'><base href='http://ignored/'></head><img src='a.jpg'>");
+        assertEquals(Collections.singletonList("http://cdn.example.org/static/a.jpg"), images);
+    }
+
+    @Test
+    public void testSrcsetAndLazyLoading() throws Exception {
+        extract("<img data-src='lazy.jpg' srcset='s1.jpg 1x, s2.jpg 2x,s3.jpg'>"
+                + "<picture><source srcset='p.webp 100w' type='image/webp'><img src='p.jpg'></picture>"
+                + "<video><source src='movie.mp4'></video>");
+        assertEquals(Arrays.asList("http://example.com/dir/lazy.jpg", "http://example.com/dir/s1.jpg", "http://example.com/dir/s2.jpg",
+                "http://example.com/dir/s3.jpg", "http://example.com/dir/p.webp", "http://example.com/dir/p.jpg"), images);
+    }
+
+    @Test
+    public void testCssBackgrounds() throws Exception {
+        extract("<style>@font-face { src: url(font.woff) } .a:hover { color: red; background-image: url( \"bg.png\" ) }</style>"
+                + "<div style=\"background: #fff URL('div.gif') no-repeat\"></div>");
+        assertEquals(Arrays.asList("http://example.com/dir/bg.png", "http://example.com/dir/div.gif"), images);
+    }
+
+    @Test
+    public void testSkipsCommentsScriptsAndDataUrls() throws Exception {
+        extract("<!-- <img src='commented.jpg'> --><script>var s = '<img src=\"script.jpg\">';</script>"
+                + "<img src='data:image/gif;base64,R0lGOD'><img src=''><img src='real.jpg'>");
+        assertEquals(Collections.singletonList("http://example.com/dir/real.jpg"), images);
+    }
+
+    @Test
+    public void testOversizedAttributeIsDropped() throws Exception {
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i <= StreamingLinkExtractor.MAX_VALUE_LENGTH; i++) {
+            huge.append('x');
+        }
+        extract("<img src='" + huge + "'><img src='after.jpg'>");
+        assertEquals(Collections.singletonList("http://example.com/dir/after.jpg"), images);
+    }
+
+    @Test
+    public void testSrcsetUrls() {
+        assertEquals(Arrays.asList("a.jpg", "b,c.jpg", "d.jpg"), StreamingLinkExtractor.srcsetUrls(" a.jpg 1x, b,c.jpg 2x , d.jpg"));
+    }
+}
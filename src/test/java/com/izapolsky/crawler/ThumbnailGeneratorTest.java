@@ -0,0 +1,76 @@
+package com.izapolsky.crawler;
+
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailGeneratorTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @Test
+    public void testGeneratesEverySizeAndFormat() throws Exception {
+        File rose = new File(dir, "rose");
+        Files.copy(new File(getClass().getResource("/rose.jpg").toURI()), rose);
+
+        List<File> generated = new ThumbnailGenerator(Arrays.asList(100, 320, 220), Arrays.asList("png", "jpeg")).generate(rose);
+
+        assertEquals(6, generated.size());
+        assertEquals(new File(dir, "rosex320.png"), generated.get(0));
+        assertEquals(new File(dir, "rosex320.jpg"), generated.get(1));
+        assertEquals(100, ImageIO.read(new File(dir, "rosex100.jpg")).getWidth());
+    }
+
+    @Test
+    public void testSubsampledDecodeOfLargeImage() throws Exception {
+        File large = new File(dir, "large");
+        ImageIO.write(new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_RGB), "png", large);
+        ThumbnailGenerator toTest = new ThumbnailGenerator(Collections.singletonList(100), Collections.singletonList("png"));
+
+        assertEquals(10, toTest.subsampling(2000));
+        assertEquals(200, toTest.decode(large).getWidth());
+        assertEquals(50, ImageIO.read(toTest.generate(large).get(0)).getHeight());
+    }
+
+    @Test
+    public void testSkipsTinyImages() throws Exception {
+        File tiny = new File(dir, "tiny");
+        ImageIO.write(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), "gif", tiny);
+        assertTrue(new ThumbnailGenerator(Collections.singletonList(100), Collections.singletonList("png")).generate(tiny).isEmpty());
+    }
+
+    @Test
+    public void testSkipsNearDuplicates() throws Exception {
+        BufferedImage rose = ImageIO.read(getClass().getResource("/rose.jpg"));
+        File original = new File(dir, "original");
+        File reencoded = new File(dir, "reencoded");
+        ImageIO.write(rose, "png", original);
+        ImageIO.write(Main.getScaledImage(rose, 400), "jpeg", reencoded);
+        NearDuplicateIndex index = new NearDuplicateIndex(4);
+        ThumbnailGenerator toTest = new ThumbnailGenerator(Collections.singletonList(100), Collections.singletonList("png"), new Metrics(), index);
+
+        assertEquals(1, toTest.generate(original).size());
+        assertTrue(toTest.generate(reencoded).isEmpty());
+        assertEquals(Collections.singleton("reencoded"), index.getClusters().get("original"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormat() {
+        new ThumbnailGenerator(Collections.singletonList(100), Collections.singletonList("nope"));
+    }
+}
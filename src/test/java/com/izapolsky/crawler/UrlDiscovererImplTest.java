@@ -1,10 +1,15 @@
 package com.izapolsky.crawler;
 
+import org.apache.http.impl.client.HttpClients;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -28,6 +33,44 @@ public class UrlDiscovererImplTest {
         assertEquals(getClass().getResource("/sample.html"), toTest.discover(Collections.singletonList(getClass().getResource("/sample.html"))).get(0).first);
     }
 
+    @Test
+    public void testStreamingSample() throws Exception {
+        List<String> found = new ArrayList<>();
+        List<Future<Integer>> counts = toTest.discover(Collections.singletonList(getClass().getResource("/sample.html")), (document, imageSrc) -> found.add(imageSrc));
+        assertEquals(Integer.valueOf(1), counts.get(0).get());
+        assertTrue("Ends with rose.jpg", found.get(0).endsWith("/rose.jpg"));
+    }
+
+    @Test
+    public void testParsingOverHttp() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            List<Pair<URL, String>> images = toTest.discover(Collections.singletonList(server.url("/sample.html")));
+            assertEquals(server.url("/rose.jpg").toString(), images.get(0).second);
+        }
+    }
+
+    @Test
+    public void testStreamingExtractorOverHttp() throws Exception {
+        toTest = new UrlDiscovererImpl(Executors.newSingleThreadExecutor(), HttpClients.createDefault(), new StreamingLinkExtractor());
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            String rose = server.url("/rose.jpg").toString();
+            List<String> links = new ArrayList<>();
+            List<Future<Integer>> counts = toTest.discover(Collections.singletonList(server.url("/sample.html")), new ImageDiscoveredCallback() {
+                @Override
+                public void notifyImageDiscovered(URL document, String imageSrc) {
+                    assertEquals(rose, imageSrc);
+                }
+
+                @Override
+                public void notifyLinkDiscovered(URL document, String href) {
+                    links.add(href);
+                }
+            });
+            assertEquals(Integer.valueOf(1), counts.get(0).get());
+            assertEquals(Collections.singletonList(server.url("/other.html").toString()), links);
+        }
+    }
+
     @Test
     public void testParsingSampleImageSrc() throws Exception {
         assertTrue("Ends with rose.jpg", toTest.discover(Collections.singletonList(getClass().getResource("/sample.html"))).get(0).second.endsWith("/rose.jpg"));
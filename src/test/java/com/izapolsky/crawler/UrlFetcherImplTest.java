@@ -1,10 +1,25 @@
 package com.izapolsky.crawler;
 
+import com.google.common.io.Files;
+import org.apache.http.impl.client.HttpClients;
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class UrlFetcherImplTest {
 
@@ -29,5 +44,123 @@ public class UrlFetcherImplTest {
         assertEquals("fc97fdccbf364f8fd8a1a6ed440b0adff0412d66c4f6da20688a3e7b7aadb67c", UrlFetcherImpl.mangle(getClass().getResource("/sample.html")));
     }
 
+    @Test
+    public void testDuplicateImageIsNotSubmitted() throws Exception {
+        UrlFetcherImpl toTest = new UrlFetcherImpl(Executors.newSingleThreadExecutor(), Files.createTempDir());
+        String rose = getClass().getResource("/rose.jpg").toString();
+        URL first = new URL("http://example.com/first.html");
+        URL second = new URL("http://example.com/second.html");
+
+        List<CompletableFuture<ImageResult>> results = toTest.downloadImages(Arrays.asList(new Pair<>(first, rose), new Pair<>(second, rose)), null);
+
+        ImageResult stored = results.get(0).get();
+        assertEquals("200", stored.getStatus());
+        assertEquals(first, stored.getDocument());
+        assertTrue(stored.isNewContent());
+        assertEquals(stored.getFile().length(), stored.getBytes());
+        assertEquals(UrlFetcher.SC_SKIPPED_DUPLICATE, results.get(1).get().getStatus());
+        assertTrue(results.get(1).get().isSkipped());
+        assertEquals(2, toTest.getReferrers(UrlFetcherImpl.mangle(new URL(rose))).size());
+    }
+
+    @Test
+    public void testSameContentUnderDifferentUrlsIsProcessedOnce() throws Exception {
+        File outputDir = Files.createTempDir();
+        File inputDir = Files.createTempDir();
+        File rose = new File(getClass().getResource("/rose.jpg").toURI());
+        File copy1 = new File(inputDir, "rose1.jpg");
+        File copy2 = new File(inputDir, "rose2.jpg");
+        Files.copy(rose, copy1);
+        Files.copy(rose, copy2);
+        ContentStore store = new ContentStore(outputDir);
+        UrlFetcherImpl toTest = new UrlFetcherImpl(new HostScheduler(Executors.newSingleThreadExecutor(), 1, 1, 0),
+                null, outputDir, store);
+        List<File> notified = new CopyOnWriteArrayList<>();
+        URL page = new URL("http://example.com/page.html");
 
-}
\ No newline at end of file
+        List<CompletableFuture<ImageResult>> results = toTest.downloadImages(Arrays.asList(
+                new Pair<>(page, copy1.toURI().toURL().toString()),
+                new Pair<>(page, copy2.toURI().toURL().toString())), (url, file) -> notified.add(file));
+
+        assertEquals("200", results.get(0).get().getStatus());
+        assertEquals("200", results.get(1).get().getStatus());
+        assertEquals(1, notified.size());
+        assertEquals(1, store.getStored());
+        assertTrue(notified.get(0).isFile());
+
+        URL copy2Url = copy2.toURI().toURL();
+        Properties props = toTest.readOrCreate(UrlFetcherImpl.mangle(copy2Url), copy2Url).second;
+        assertEquals(notified.get(0).getName(), props.getProperty(ContentStore.CONTENT_HASH));
+    }
+
+    @Test
+    public void testTruncatedBodyLeavesNoFile() throws Exception {
+        File outputDir = Files.createTempDir();
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            server.handle("/truncated.jpg", exchange -> {
+                exchange.sendResponseHeaders(200, 1000);
+                exchange.getResponseBody().write(new byte[10]);
+            });
+            URL truncated = server.url("/truncated.jpg");
+            UrlFetcherImpl toTest = new UrlFetcherImpl(Executors.newSingleThreadExecutor(), outputDir);
+
+            assertEquals(UrlFetcher.SC_IO_ERROR, toTest.downloadImage(new Pair<>(null, truncated.toString()), null).get().getStatus());
+            assertFalse(new File(outputDir, UrlFetcherImpl.mangle(truncated)).exists());
+            assertFalse(new File(outputDir, UrlFetcherImpl.mangle(truncated) + ".part").exists());
+        }
+    }
+
+    @Test
+    public void testUnavailableHostIsRetried() throws Exception {
+        File outputDir = Files.createTempDir();
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        RetryEngine retries = new RetryEngine(3, 10, 100, new CircuitBreaker(10, 1000));
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            AtomicInteger calls = new AtomicInteger();
+            server.handle("/flaky.jpg", exchange -> {
+                if (calls.incrementAndGet() == 1) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                    LocalHttpServer.respond(exchange, 503, new byte[0]);
+                } else {
+                    LocalHttpServer.respond(exchange, 200, rose);
+                }
+            });
+            URL flaky = server.url("/flaky.jpg");
+            UrlFetcherImpl toTest = new UrlFetcherImpl(new HostScheduler(Executors.newSingleThreadExecutor(), 1, 1, 0),
+                    HttpClients.createDefault(), outputDir, null, new SidecarMetadataStore(outputDir), retries);
+
+            assertEquals("200", toTest.downloadImage(new Pair<>(null, flaky.toString()), null).get().getStatus());
+            assertEquals(2, calls.get());
+            assertTrue(new File(outputDir, UrlFetcherImpl.mangle(flaky)).isFile());
+        } finally {
+            retries.shutdown();
+        }
+    }
+
+    @Test
+    public void testTrackingPixelIsFiltered() throws Exception {
+        File outputDir = Files.createTempDir();
+        byte[] pixel = ImageProbeTest.encode(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED), "gif");
+        byte[] rose = Files.toByteArray(new File(getClass().getResource("/rose.jpg").toURI()));
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            server.handle("/pixel.gif", exchange -> LocalHttpServer.respond(exchange, 200, pixel));
+            server.handle("/page.jpg", exchange -> {
+                exchange.getResponseHeaders().add("Content-Type", "text/html");
+                LocalHttpServer.respond(exchange, 200, rose);
+            });
+            server.handle("/rose.jpg", exchange -> LocalHttpServer.respond(exchange, 200, rose));
+            Metrics metrics = new Metrics();
+            UrlFetcherImpl toTest = new UrlFetcherImpl(new HostScheduler(Executors.newSingleThreadExecutor(), 1, 1, 0),
+                    HttpClients.createDefault(), outputDir, null, new SidecarMetadataStore(outputDir), null, metrics,
+                    new ImageFilter(11, 11, 0, ImageFilter.UNLIMITED, Collections.singletonList("image/")));
+
+            URL filtered = server.url("/pixel.gif");
+            assertEquals(UrlFetcher.SC_SKIPPED_FILTERED, toTest.downloadImage(new Pair<>(null, filtered.toString()), null).get().getStatus());
+            assertEquals(UrlFetcher.SC_SKIPPED_FILTERED, toTest.downloadImage(new Pair<>(null, server.url("/page.jpg").toString()), null).get().getStatus());
+            assertEquals("200", toTest.downloadImage(new Pair<>(null, server.url("/rose.jpg").toString()), null).get().getStatus());
+            assertEquals(2, metrics.getCount(Metrics.FILTERED));
+            assertFalse(new File(outputDir, UrlFetcherImpl.mangle(filtered)).exists());
+            assertArrayEquals(rose, Files.toByteArray(new File(outputDir, UrlFetcherImpl.mangle(server.url("/rose.jpg")))));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.izapolsky.crawler;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testRunsBlockedTasksConcurrently() throws Exception {
+        ExecutorService toTest = VirtualThreads.newThreadPerTaskExecutor("test-");
+        int tasks = 200;
+        CountDownLatch started = new CountDownLatch(tasks);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < tasks; i++) {
+            toTest.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        //every task is blocked at the same time, nothing waits for a free thread
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        toTest.shutdown();
+        assertTrue(toTest.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}